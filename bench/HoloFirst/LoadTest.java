@@ -0,0 +1,269 @@
+package HoloFirst;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import HoloFirst.NetTableToSocket.ValueType;
+
+/******************************************************************************
+ *
+ * This class runs the whole relay under load on one machine, to find how
+ * many keys and updates it can keep up with.
+ *
+ * For each number of keys and update rate, a relay is configured with the
+ * keys split into messages, a StandInTable publishes every key at the rate
+ * through the table listeners, and a LoopbackSink receives and checks the
+ * messages. After a warmup, the sustained rates and the latency from an
+ * update to its message arriving are measured, printed, and written as CSV
+ * so the results of different releases and machines can be compared:
+ *
+ *    keys,rate,transport,target_per_sec,published_per_sec,ingested_per_sec,
+ *    frames_per_sec,mbytes_per_sec,missing,invalid,behind,p50_us,p99_us,
+ *    p999_us,max_us
+ *
+ * The relay sends protocol 2 with timestamps, on change, at most every
+ * min_interval seconds per message. Run it with the LoadTest target of
+ * Build.xml, or:
+ *
+ *    java -cp <classes>:lib/WPINetTable.jar HoloFirst.LoadTest
+ *         [--keys 1000,5000] [--rate 10,50] [--keys-per-message 500]
+ *         [--threads 1] [--transport udp|tcp] [--min-interval 0.01]
+ *         [--warmup 3] [--seconds 10] [--out results.csv]
+ *
+ *****************************************************************************/
+public class LoadTest
+{
+	private int[] key_counts = { 1000, 5000 };
+	private double[] rates = { 10, 50 };
+	private int keys_per_message = 500;
+	private int threads = 1;
+	private boolean tcp = false;
+	private double min_interval = 0.01;
+	private double warmup = 3;
+	private double seconds = 10;
+	private String out_file = null;
+
+	private final ArrayList<String> results = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception
+	{
+		LoadTest test = new LoadTest();
+
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (! test.setOption(args[i], args[i + 1]))
+			{
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+
+		// the relay logs every key it adds
+		RelayLog.setLevel("warn");
+
+		System.out.println(String.format("%7s %6s %10s %10s %10s %8s %7s %7s %7s %8s %8s %8s %8s",
+				"keys", "rate", "target/s", "publish/s", "ingest/s", "frames/s", "MB/s", "missing", "invalid",
+				"p50 us", "p99 us", "p999 us", "max us"));
+
+		for (int keys : test.key_counts)
+		{
+			for (double rate : test.rates)
+			{
+				test.run(keys, rate);
+			}
+		}
+
+		if (test.out_file != null)
+		{
+			test.writeResults();
+		}
+
+		System.exit(0);
+	}
+
+	private boolean setOption(String name, String value)
+	{
+		switch(name)
+		{
+			case("--keys"):
+				String[] k = value.split(",");
+				key_counts = new int[k.length];
+				for (int i = 0; i < k.length; i++)
+				{
+					key_counts[i] = Integer.parseInt(k[i].trim());
+				}
+				return true;
+			case("--rate"):
+				String[] r = value.split(",");
+				rates = new double[r.length];
+				for (int i = 0; i < r.length; i++)
+				{
+					rates[i] = Double.parseDouble(r[i].trim());
+				}
+				return true;
+			case("--keys-per-message"):
+				keys_per_message = Math.max(1, Math.min(Integer.parseInt(value), (MessageEncoder.MAX_MESSAGE_SIZE - 64) / 8 - 1));
+				return true;
+			case("--threads"):
+				threads = Integer.parseInt(value);
+				return true;
+			case("--transport"):
+				tcp = value.equalsIgnoreCase("tcp");
+				return true;
+			case("--min-interval"):
+				min_interval = Double.parseDouble(value);
+				return true;
+			case("--warmup"):
+				warmup = Double.parseDouble(value);
+				return true;
+			case("--seconds"):
+				seconds = Double.parseDouble(value);
+				return true;
+			case("--out"):
+				out_file = value;
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Run the relay with a number of keys, each updated rate times a second,
+	 * and record the results.
+	 *
+	 *************************************************************************/
+	private void run(int key_count, double rate) throws Exception
+	{
+		int message_count = Math.min((key_count + keys_per_message - 1) / keys_per_message, MessageEncoder.MAX_MESSAGE_ID);
+
+		// every message starts with its stamp key, then its share of the keys
+		String[] keys = new String[key_count];
+		String[] stamp_keys = new String[message_count];
+		MessageLayout[] layouts = new MessageLayout[message_count + 1];
+
+		for (int m = 0; m < message_count; m++)
+		{
+			stamp_keys[m] = "stamp " + (m + 1);
+			layouts[m + 1] = new MessageLayout();
+			layouts[m + 1].addValue(stamp_keys[m], ValueType.DOUBLE, Double.valueOf(0));
+		}
+
+		for (int i = 0; i < key_count; i++)
+		{
+			keys[i] = "value " + i;
+			layouts[(i % message_count) + 1].addValue(keys[i], ValueType.DOUBLE, Double.valueOf(0));
+		}
+
+		LoopbackSink sink = new LoopbackSink(tcp, layouts);
+		int port = sink.open();
+
+		File config = writeConfig(port, layouts);
+		NetTableToSocket app = new NetTableToSocket();
+		app.loadConfig(config.getPath());
+		config.delete();
+
+		SendScheduler scheduler = app.createSenders();
+		Thread sender = scheduler.start();
+
+		StandInTable table = new StandInTable(app, keys, stamp_keys, rate, threads);
+		table.start();
+
+		Thread.sleep((long)(warmup * 1000));
+
+		sink.reset();
+		long published = table.getPublished();
+		long ingested = app.getMetrics().getUpdates();
+		long behind = table.getBehind();
+		long start_ns = System.nanoTime();
+
+		Thread.sleep((long)(seconds * 1000));
+
+		double elapsed = (System.nanoTime() - start_ns) / 1.0e9;
+		published = table.getPublished() - published;
+		ingested = app.getMetrics().getUpdates() - ingested;
+		behind = table.getBehind() - behind;
+		long frames = sink.getFrames();
+		long bytes = sink.getBytes();
+		long missing = sink.getMissing();
+		long invalid = sink.getInvalid();
+		LatencyHistogram latency = sink.getLatency();
+
+		table.stop();
+		scheduler.stop();
+		sender.interrupt();
+		sender.join();
+		sink.close();
+
+		double target = key_count * rate + message_count * 1000.0;
+
+		System.out.println(String.format("%7d %6.0f %10.0f %10.0f %10.0f %8.0f %7.2f %7d %7d %8.0f %8.0f %8.0f %8.0f",
+				key_count, rate, target, published / elapsed, ingested / elapsed, frames / elapsed, bytes / elapsed / 1.0e6,
+				missing, invalid, latency.getP50Micros(), latency.getP99Micros(), latency.getP999Micros(), latency.getMaxMicros()));
+
+		if (published / elapsed < 0.95 * target)
+		{
+			System.out.println("        the stand-in table could not keep up, the publish rate is the limit");
+		}
+
+		results.add(String.format("%d,%.0f,%s,%.0f,%.0f,%.0f,%.0f,%.3f,%d,%d,%d,%.0f,%.0f,%.0f,%.0f",
+				key_count, rate, tcp ? "tcp" : "udp", target, published / elapsed, ingested / elapsed, frames / elapsed,
+				bytes / elapsed / 1.0e6, missing, invalid, behind, latency.getP50Micros(), latency.getP99Micros(),
+				latency.getP999Micros(), latency.getMaxMicros()));
+	}
+
+	/**************************************************************************
+	 *
+	 * Write the configuration file of the relay, one message for each
+	 * layout, sent to the sink.
+	 *
+	 *************************************************************************/
+	private File writeConfig(int port, MessageLayout[] layouts) throws IOException
+	{
+		File file = File.createTempFile("load_test", ".xml");
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+
+		out.println("<config>");
+		out.println("\t<log_level value=\"warn\" />");
+		out.println("\t<comm_mode value=\"" + (tcp ? "TCP" : "UDP") + "\" />");
+		out.println("\t<dest_host value=\"127.0.0.1\" />");
+		out.println("\t<dest_port value=\"" + port + "\" />");
+		out.println("\t<protocol value=\"2\" />");
+		out.println("\t<timestamps value=\"true\" />");
+		out.println("\t<send_mode value=\"change\" />");
+		out.println("\t<min_interval value=\"" + min_interval + "\" />");
+		out.println("\t<max_interval value=\"1.0\" />");
+
+		for (int m = 1; m < layouts.length; m++)
+		{
+			out.println("\t<message name=\"load " + m + "\" id=\"" + m + "\">");
+			for (int i = 0; i < layouts[m].getSize(); i++)
+			{
+				out.println("\t\t<value name=\"" + layouts[m].getKey(i) + "\" type=\"double\" default=\"0\" />");
+			}
+			out.println("\t</message>");
+		}
+
+		out.println("</config>");
+		out.close();
+
+		return file;
+	}
+
+	private void writeResults() throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(out_file));
+		out.println("keys,rate,transport,target_per_sec,published_per_sec,ingested_per_sec,frames_per_sec,mbytes_per_sec," +
+				"missing,invalid,behind,p50_us,p99_us,p999_us,max_us");
+		for (String line : results)
+		{
+			out.println(line);
+		}
+		out.close();
+
+		System.out.println("results written to " + out_file);
+	}
+}
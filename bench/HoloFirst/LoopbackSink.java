@@ -0,0 +1,273 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/******************************************************************************
+ *
+ * This class receives the messages of the relay in the load test, on a
+ * loopback UDP or TCP port, and checks and measures every message.
+ *
+ * Each message is checked for a valid header, a size that matches what was
+ * received and the next sequence number of its message id (the relay must
+ * send protocol 2 with timestamps). Missing sequence numbers are messages
+ * lost (UDP) or conflated (TCP). Each message is then decoded, the first
+ * value of every message is a stamp key (see StandInTable), so the time
+ * from the update of the stamp to the first message with it arriving here
+ * is the latency through the relay.
+ *
+ *****************************************************************************/
+public class LoopbackSink implements Runnable
+{
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private final boolean tcp;
+	private final MessageDecoder[] decoders;
+	private final long[] next_sequence;
+	private final long[] last_stamp;
+
+	private DatagramChannel udp_channel = null;
+	private ServerSocketChannel server = null;
+	private SocketChannel tcp_channel = null;
+	private Thread thread = null;
+
+	private volatile boolean done = false;
+
+	private final AtomicLong frames = new AtomicLong(0);
+	private final AtomicLong bytes = new AtomicLong(0);
+	private final AtomicLong missing = new AtomicLong(0);
+	private final AtomicLong invalid = new AtomicLong(0);
+	private volatile LatencyHistogram latency = new LatencyHistogram();
+
+	/**************************************************************************
+	 *
+	 * @param tcp		true to accept a TCP connection, false to receive UDP
+	 * @param layouts	the layout of each message id, null for unused ids
+	 *
+	 *************************************************************************/
+	public LoopbackSink(boolean tcp, MessageLayout[] layouts)
+	{
+		this.tcp = tcp;
+		this.decoders = new MessageDecoder[layouts.length];
+		for (int i = 0; i < layouts.length; i++)
+		{
+			if (layouts[i] != null)
+			{
+				decoders[i] = new MessageDecoder(layouts[i]);
+			}
+		}
+		this.next_sequence = new long[layouts.length];
+		this.last_stamp = new long[layouts.length];
+	}
+
+	/**************************************************************************
+	 *
+	 * Open the loopback port and start receiving.
+	 *
+	 * @return the port the relay should send to
+	 *
+	 *************************************************************************/
+	public int open() throws IOException
+	{
+		int port;
+		if (tcp)
+		{
+			server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+			port = ((InetSocketAddress)server.getLocalAddress()).getPort();
+		}
+		else
+		{
+			udp_channel = DatagramChannel.open();
+			udp_channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+			udp_channel.bind(new InetSocketAddress("127.0.0.1", 0));
+			port = ((InetSocketAddress)udp_channel.getLocalAddress()).getPort();
+		}
+
+		thread = new Thread(this, "Sink");
+		thread.setDaemon(true);
+		thread.start();
+
+		return port;
+	}
+
+	public void close() throws InterruptedException
+	{
+		done = true;
+		try { if (udp_channel != null) udp_channel.close(); } catch (Exception e) { }
+		try { if (tcp_channel != null) tcp_channel.close(); } catch (Exception e) { }
+		try { if (server != null) server.close(); } catch (Exception e) { }
+		if (thread != null)
+		{
+			thread.join();
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Start counting again, for example after the warmup.
+	 *
+	 *************************************************************************/
+	public void reset()
+	{
+		frames.set(0);
+		bytes.set(0);
+		missing.set(0);
+		invalid.set(0);
+		latency = new LatencyHistogram();
+	}
+
+	public long getFrames()
+	{
+		return frames.get();
+	}
+
+	public long getBytes()
+	{
+		return bytes.get();
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of sequence numbers that were never received
+	 *
+	 *************************************************************************/
+	public long getMissing()
+	{
+		return missing.get();
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of messages with a bad header or size, or that did
+	 *         not decode
+	 *
+	 *************************************************************************/
+	public long getInvalid()
+	{
+		return invalid.get();
+	}
+
+	public LatencyHistogram getLatency()
+	{
+		return latency;
+	}
+
+	@Override
+	public void run()
+	{
+		ByteBuffer rx = ByteBuffer.allocateDirect(2 * MessageEncoder.MAX_MESSAGE_SIZE);
+
+		try
+		{
+			if (tcp)
+			{
+				tcp_channel = server.accept();
+			}
+
+			while (! done)
+			{
+				if (! tcp)
+				{
+					rx.clear();
+					udp_channel.receive(rx);
+					rx.flip();
+
+					int size = (rx.remaining() >= MessageEncoder.HEADER_SIZE) ? (rx.getShort(4) & 0xFFFF) : -1;
+					if (size != rx.remaining())
+					{
+						invalid.incrementAndGet();
+						continue;
+					}
+
+					frame(rx);
+					continue;
+				}
+
+				if (tcp_channel.read(rx) < 0)
+				{
+					return;
+				}
+				rx.flip();
+
+				// every whole message in the stream
+				while (rx.remaining() >= MessageEncoder.HEADER_SIZE)
+				{
+					int start = rx.position();
+					int size = rx.getShort(start + 4) & 0xFFFF;
+					if (size < MessageEncoder.HEADER_SIZE)
+					{
+						// lost the framing, nothing after this can be trusted
+						invalid.incrementAndGet();
+						return;
+					}
+					if (size > rx.remaining())
+					{
+						break;
+					}
+
+					int limit = rx.limit();
+					rx.limit(start + size);
+					frame(rx);
+					rx.limit(limit);
+					rx.position(start + size);
+				}
+				rx.compact();
+			}
+		}
+		catch (IOException e)
+		{
+			// closed at the end of the test
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Check and measure one message.
+	 *
+	 *************************************************************************/
+	private void frame(ByteBuffer bb)
+	{
+		long now_us = RelayClock.nowMicros();
+		int start = bb.position();
+		int size = bb.remaining();
+
+		int id = MessageDecoder.peekMessageId(bb);
+		if ((bb.getShort(start) != MessageEncoder.SYNC_EXTENDED) || ((bb.get(start + 7) & MessageEncoder.FLAG_TIMESTAMP) == 0) ||
+				(id < 0) || (id >= decoders.length) || (decoders[id] == null))
+		{
+			invalid.incrementAndGet();
+			return;
+		}
+
+		long sequence = bb.getInt(start + MessageEncoder.EXTENDED_HEADER_SIZE + MessageEncoder.MESSAGE_ID_SIZE + 8) & 0xFFFFFFFFL;
+		if ((next_sequence[id] != 0) && (sequence > next_sequence[id]))
+		{
+			missing.addAndGet(sequence - next_sequence[id]);
+		}
+		next_sequence[id] = sequence + 1;
+
+		MessageDecoder decoder = decoders[id];
+		if (! decoder.decode(bb))
+		{
+			invalid.incrementAndGet();
+			return;
+		}
+
+		frames.incrementAndGet();
+		bytes.addAndGet(size);
+
+		// only a new stamp is measured, an old one was already sent
+		long stamp_us = (long)Double.longBitsToDouble(decoder.getValues()[0]);
+		if ((stamp_us > 0) && (stamp_us != last_stamp[id]))
+		{
+			latency.record((now_us - stamp_us) * 1000L);
+			last_stamp[id] = stamp_us;
+		}
+	}
+}
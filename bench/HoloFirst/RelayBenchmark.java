@@ -0,0 +1,720 @@
+package HoloFirst;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import HoloFirst.NetTableToSocket.ValueType;
+
+/******************************************************************************
+ *
+ * This class measures the encode, ingest and send paths of the relay.
+ *
+ * Each benchmark is run in a JVM of its own, so the JIT only ever sees one
+ * operation and the profile of one benchmark cannot slow down the next. It
+ * is run for a number of warmup iterations, then for a number of measured
+ * iterations of a fixed time. The average and standard deviation
+ * of the throughput of the measured iterations is printed, and written as
+ * CSV so the results of different releases can be compared:
+ *
+ *    benchmark,param,ops_per_sec,stddev,ns_per_op
+ *
+ * Run it with the Benchmark target of Build.xml, or:
+ *
+ *    java -cp <classes>:lib/WPINetTable.jar HoloFirst.RelayBenchmark [results.csv] [filter]
+ *
+ *****************************************************************************/
+public class RelayBenchmark
+{
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASURE_ITERATIONS = 5;
+	private static final long ITERATION_NS = 1000000000L;
+
+	private static final int[] WIDTHS = { 6, 50, 200, 500 };
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final ValueType[] FIXED_TYPES = { ValueType.DOUBLE, ValueType.FLOAT, ValueType.INT, ValueType.SHORT, ValueType.BOOLEAN, ValueType.LONG };
+
+	/**************************************************************************
+	 *
+	 * A single operation that is measured, run() is called repeatedly and
+	 * should return something computed from its work so it cannot be
+	 * optimized away.
+	 *
+	 *************************************************************************/
+	interface Operation
+	{
+		long run();
+	}
+
+	/**************************************************************************
+	 *
+	 * The number of operations done so far, for an operation whose work is
+	 * not finished when run() returns. The rate is then of the operations
+	 * done, not of the calls to run().
+	 *
+	 *************************************************************************/
+	interface Progress
+	{
+		long done();
+	}
+
+	// the argument that runs one benchmark in a forked JVM
+	private static final String RUN_ARG = "--run";
+
+	// the start of a result line printed by a forked JVM
+	private static final String RESULT_PREFIX = "result,";
+
+	private final String filter;
+	private final boolean listing;
+	private final ArrayList<String> listed = new ArrayList<String>();
+	private final ArrayList<String> results = new ArrayList<String>();
+
+	private volatile long sink = 0;
+
+	/**************************************************************************
+	 *
+	 * @param filter	the benchmarks to list, or the one to run
+	 * @param listing	true to list the names of the benchmarks that contain
+	 *                  the filter, false to run the benchmark named by it
+	 *
+	 *************************************************************************/
+	public RelayBenchmark(String filter, boolean listing)
+	{
+		this.filter = filter;
+		this.listing = listing;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if ((args.length == 2) && args[0].equals(RUN_ARG))
+		{
+			RelayBenchmark bench = new RelayBenchmark(args[1], false);
+			bench.runAll();
+
+			for (String line : bench.results)
+			{
+				System.out.println(RESULT_PREFIX + line);
+			}
+			return;
+		}
+
+		String out_file = (args.length >= 1) ? args[0] : null;
+		String filter = (args.length >= 2) ? args[1] : "";
+
+		RelayBenchmark bench = new RelayBenchmark(filter, true);
+		bench.runAll();
+
+		for (String name : bench.listed)
+		{
+			bench.fork(name);
+		}
+
+		if (out_file != null)
+		{
+			bench.writeResults(out_file);
+		}
+	}
+
+	private void runAll() throws Exception
+	{
+		runEncode();
+		runIngest();
+		runGenerate();
+		runSend();
+	}
+
+	/**************************************************************************
+	 *
+	 * Run one benchmark in a new JVM, with the class path and options of this
+	 * one, and take its results.
+	 *
+	 *************************************************************************/
+	private void fork(String name) throws IOException, InterruptedException
+	{
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(RelayBenchmark.class.getName());
+		command.add(RUN_ARG);
+		command.add(name);
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			if (line.startsWith(RESULT_PREFIX))
+			{
+				results.add(line.substring(RESULT_PREFIX.length()));
+			}
+			else
+			{
+				System.out.println(line);
+			}
+		}
+		in.close();
+
+		if (process.waitFor() != 0)
+		{
+			System.out.println(name + " failed, exit code " + process.exitValue());
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * @return true if a benchmark is to be run, after listing it if this is
+	 *         only listing
+	 *
+	 *************************************************************************/
+	private boolean selected(String name, String param)
+	{
+		String full = name + " " + param;
+
+		if (listing)
+		{
+			if (full.contains(filter))
+			{
+				listed.add(full);
+			}
+			return false;
+		}
+
+		return full.equals(filter);
+	}
+
+	/**************************************************************************
+	 *
+	 * Encoding across schema widths and type mixes, for each protocol.
+	 *
+	 *************************************************************************/
+	private void runEncode()
+	{
+		String[] mixes = { "float", "mixed", "packed", "arrays" };
+
+		for (String mix : mixes)
+		{
+			for (int width : WIDTHS)
+			{
+				final MessageLayout layout = createLayout(width, mix);
+				final ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				final long[] values = layout.createValues();
+
+				final MessageEncoder full = new MessageEncoder(layout);
+				measure("encode_full", mix + "/" + width, new Operation()
+				{
+					public long run()
+					{
+						return full.encode(values, bb);
+					}
+				});
+
+				final MessageEncoder delta = new MessageEncoder(layout);
+				delta.setProtocol(2, 50);
+				measure("encode_delta", mix + "/" + width, new Operation()
+				{
+					int n = 0;
+
+					public long run()
+					{
+						// one changed value per message, the last long of
+						// a string or array is in its data
+						values[layout.getPosition(n) + layout.getLength(n) - 1] ^= 1;
+						n = (n + 1) % layout.getSize();
+						return delta.encode(values, bb);
+					}
+				});
+			}
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Table listener ingestion, from one thread and with several threads
+	 * writing at the same time.
+	 *
+	 *************************************************************************/
+	private void runIngest() throws InterruptedException
+	{
+		for (int width : WIDTHS)
+		{
+			final NetTableToSocket app = createApp(width);
+			final String[] keys = createKeys(width);
+			final KeyListener[] listeners = new KeyListener[width];
+			for (int i = 0; i < width; i++)
+			{
+				listeners[i] = new KeyListener(app, i);
+			}
+			final Double[] boxed = new Double[64];
+			for (int i = 0; i < boxed.length; i++)
+			{
+				boxed[i] = Double.valueOf(i * 0.5);
+			}
+
+			Operation op = new Operation()
+			{
+				int n = 0;
+
+				public long run()
+				{
+					n++;
+					listeners[n % keys.length].valueChanged(null, keys[n % keys.length], boxed[n & 63], false);
+					return n;
+				}
+			};
+
+			measure("ingest", "1 thread/" + width, op);
+
+			for (int threads : new int[] { 2, 4 })
+			{
+				measureContended("ingest", threads + " threads/" + width, threads, listeners, keys, boxed);
+			}
+
+			// updates for keys that are not in the message, the table
+			// listeners filter these out, this is the lookup by name
+			final String[] unknown = createKeys(width);
+			for (int i = 0; i < unknown.length; i++)
+			{
+				unknown[i] = "unknown " + unknown[i];
+			}
+
+			measure("ingest_unknown", "1 thread/" + width, new Operation()
+			{
+				int n = 0;
+
+				public long run()
+				{
+					n++;
+					app.setValue(unknown[n % unknown.length], boxed[n & 63]);
+					return n;
+				}
+			});
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * The random test data generator.
+	 *
+	 *************************************************************************/
+	private void runGenerate()
+	{
+		for (int width : WIDTHS)
+		{
+			final NetTableToSocket app = createApp(width);
+
+			measure("generate_data", "" + width, new Operation()
+			{
+				public long run()
+				{
+					app.generateRandomData();
+					return 1;
+				}
+			});
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Encode and send through the UDP and TCP transports to a loopback sink.
+	 *
+	 *************************************************************************/
+	private void runSend() throws IOException, InterruptedException
+	{
+		for (int width : WIDTHS)
+		{
+			final MessageLayout layout = createLayout(width, "mixed");
+			final ValueStore store = new ValueStore(layout);
+			final MessageEncoder encoder = new MessageEncoder(layout);
+			final ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			final long[] values = layout.createValues();
+
+			// UDP
+			final DatagramChannel udp_sink = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+			final AtomicBoolean udp_done = new AtomicBoolean(false);
+			Thread udp_drain = drain(udp_sink, udp_done, new AtomicLong());
+
+			final Transport udp = new UdpTransport("127.0.0.1", ((InetSocketAddress)udp_sink.getLocalAddress()).getPort());
+			udp.open();
+
+			measure("send_udp", "" + width, new Operation()
+			{
+				public long run()
+				{
+					store.snapshot(values);
+					encoder.encode(values, bb);
+					bb.flip();
+					return udp.send(bb) ? 1 : 0;
+				}
+			});
+
+			udp.close();
+			udp_done.set(true);
+			udp_sink.close();
+			udp_drain.join();
+
+			// TCP
+			final ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+			final Transport tcp = new TcpTransport("127.0.0.1", ((InetSocketAddress)server.getLocalAddress()).getPort(), 1.0f, BUFFER_SIZE);
+			tcp.open();
+
+			SocketChannel tcp_sink = server.accept();
+			final AtomicBoolean tcp_done = new AtomicBoolean(false);
+			final AtomicLong tcp_received = new AtomicLong();
+			Thread tcp_drain = drain(tcp_sink, tcp_done, tcp_received);
+
+			// a message that is held or conflated by the outbox is not
+			// written, so the rate is of the messages the sink received,
+			// which all have the same size
+			store.snapshot(values);
+			final long frame_size = encoder.encode(values, bb);
+
+			measure("send_tcp", "" + width, new Operation()
+			{
+				public long run()
+				{
+					store.snapshot(values);
+					encoder.encode(values, bb);
+					bb.flip();
+					return tcp.send(bb) ? 1 : 0;
+				}
+			},
+			new Progress()
+			{
+				public long done()
+				{
+					return tcp_received.get() / frame_size;
+				}
+			});
+
+			tcp.close();
+			tcp_done.set(true);
+			tcp_sink.close();
+			server.close();
+			tcp_drain.join();
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Run an operation for the warmup and measured iterations and record
+	 * the results.
+	 *
+	 *************************************************************************/
+	private void measure(String name, String param, Operation op)
+	{
+		measure(name, param, op, null);
+	}
+
+	/**************************************************************************
+	 *
+	 * Run an operation for the warmup and measured iterations and record
+	 * the rate of its progress.
+	 *
+	 *************************************************************************/
+	private void measure(String name, String param, Operation op, Progress progress)
+	{
+		if (! selected(name, param))
+		{
+			return;
+		}
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+		{
+			iteration(op, progress);
+		}
+
+		double[] rates = new double[MEASURE_ITERATIONS];
+		for (int i = 0; i < MEASURE_ITERATIONS; i++)
+		{
+			rates[i] = iteration(op, progress);
+		}
+
+		record(name, param, rates);
+	}
+
+	/**************************************************************************
+	 *
+	 * @param op			the operation
+	 * @param progress	the operations done, null to count the calls to run()
+	 *
+	 * @return the number of operations per second in one iteration
+	 *
+	 *************************************************************************/
+	private double iteration(Operation op, Progress progress)
+	{
+		long ops = 0;
+		long total = 0;
+		long done = (progress == null) ? 0 : progress.done();
+		long start = System.nanoTime();
+		long elapsed;
+
+		do
+		{
+			// check the time every 256 operations to keep the overhead low
+			for (int i = 0; i < 256; i++)
+			{
+				total += op.run();
+			}
+			ops += 256;
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < ITERATION_NS);
+
+		sink += total;
+
+		if (progress != null)
+		{
+			ops = progress.done() - done;
+		}
+
+		return ops * 1.0e9 / elapsed;
+	}
+
+	/**************************************************************************
+	 *
+	 * Run the listener from several threads at once, the result is the total
+	 * rate of all threads.
+	 *
+	 *************************************************************************/
+	private void measureContended(String name, String param, int threads,
+			final KeyListener[] listeners, final String[] keys, final Double[] boxed) throws InterruptedException
+	{
+		if (! selected(name, param))
+		{
+			return;
+		}
+
+		double[] rates = new double[MEASURE_ITERATIONS];
+
+		for (int iter = -WARMUP_ITERATIONS; iter < MEASURE_ITERATIONS; iter++)
+		{
+			final long[] counts = new long[threads];
+			final AtomicBoolean stop = new AtomicBoolean(false);
+			Thread[] workers = new Thread[threads];
+
+			for (int t = 0; t < threads; t++)
+			{
+				final int id = t;
+				workers[t] = new Thread()
+				{
+					public void run()
+					{
+						long n = 0;
+						int k = id * 7919;
+						while (! stop.get())
+						{
+							for (int i = 0; i < 256; i++)
+							{
+								k++;
+								int idx = (k & 0x7fffffff) % keys.length;
+								listeners[idx].valueChanged(null, keys[idx], boxed[k & 63], false);
+							}
+							n += 256;
+						}
+						counts[id] = n;
+					}
+				};
+			}
+
+			long start = System.nanoTime();
+			for (Thread w : workers)
+			{
+				w.start();
+			}
+
+			Thread.sleep(ITERATION_NS / 1000000);
+			stop.set(true);
+
+			for (Thread w : workers)
+			{
+				w.join();
+			}
+			long elapsed = System.nanoTime() - start;
+
+			long total = 0;
+			for (long c : counts)
+			{
+				total += c;
+			}
+
+			if (iter >= 0)
+			{
+				rates[iter] = total * 1.0e9 / elapsed;
+			}
+		}
+
+		record(name, param, rates);
+	}
+
+	private void record(String name, String param, double[] rates)
+	{
+		double mean = 0;
+		for (double r : rates)
+		{
+			mean += r;
+		}
+		mean /= rates.length;
+
+		double var = 0;
+		for (double r : rates)
+		{
+			var += (r - mean) * (r - mean);
+		}
+		double stddev = Math.sqrt(var / rates.length);
+
+		System.out.println(String.format("%-16s %-20s %14.0f ops/s  +- %5.1f%%  %10.1f ns/op",
+				name, param, mean, 100.0 * stddev / mean, 1.0e9 / mean));
+
+		results.add(String.format("%s,%s,%.0f,%.0f,%.1f", name, param, mean, stddev, 1.0e9 / mean));
+	}
+
+	private void writeResults(String filename) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(filename));
+		out.println("benchmark,param,ops_per_sec,stddev,ns_per_op");
+		for (String line : results)
+		{
+			out.println(line);
+		}
+		out.close();
+
+		System.out.println("results written to " + filename);
+	}
+
+	/**************************************************************************
+	 *
+	 * Drain everything sent to a loopback sink on a background thread.
+	 *
+	 * @param received counts the bytes read from a stream
+	 *
+	 *************************************************************************/
+	private static Thread drain(final ByteChannel channel, final AtomicBoolean done, final AtomicLong received)
+	{
+		Thread t = new Thread("drain")
+		{
+			public void run()
+			{
+				ByteBuffer rx = ByteBuffer.allocateDirect(65536);
+				try
+				{
+					while (! done.get())
+					{
+						rx.clear();
+						if (channel instanceof DatagramChannel)
+						{
+							((DatagramChannel)channel).receive(rx);
+						}
+						else
+						{
+							int n = channel.read(rx);
+							if (n < 0)
+							{
+								break;
+							}
+							received.addAndGet(n);
+						}
+					}
+				}
+				catch (IOException e)
+				{
+					// closed at the end of the benchmark
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**************************************************************************
+	 *
+	 * Schemas used by the benchmarks.
+	 *
+	 *    float  - every value is a float
+	 *    mixed  - booleans, floats, doubles, ints, shorts and longs
+	 *    packed - mixed, with packed booleans and 16 bit fixed-point floats
+	 *    arrays - mixed, with a double[8] and a 24 byte string in every 10
+	 *
+	 *************************************************************************/
+	private static MessageLayout createLayout(int width, String mix)
+	{
+		MessageLayout layout = new MessageLayout();
+		String[] keys = createKeys(width);
+
+		for (int i = 0; i < width; i++)
+		{
+			ValueType type = mix.equals("float") ? ValueType.FLOAT : FIXED_TYPES[i % FIXED_TYPES.length];
+
+			if (mix.equals("arrays") && ((i % 10) == 0))
+			{
+				layout.addValue(keys[i], ValueType.DOUBLE_ARRAY, new double[] { 1, 2, 3, 4, 5, 6, 7, i }, 8);
+				continue;
+			}
+			else if (mix.equals("arrays") && ((i % 10) == 5))
+			{
+				layout.addValue(keys[i], ValueType.STRING, "target " + (1000000000 + i) + " ok", 24);
+				continue;
+			}
+
+			int idx = layout.addValue(keys[i], type, Integer.valueOf(i));
+
+			if (mix.equals("packed"))
+			{
+				if (type == ValueType.BOOLEAN)
+				{
+					layout.setEncoding(idx, 1, 1.0, 0.0);
+				}
+				else if (type == ValueType.FLOAT)
+				{
+					layout.setEncoding(idx, 16, 0.01, -327.68);
+				}
+			}
+		}
+
+		return layout;
+	}
+
+	private static NetTableToSocket createApp(int width)
+	{
+		NetTableToSocket app = new NetTableToSocket();
+		String[] keys = createKeys(width);
+
+		for (int i = 0; i < width; i++)
+		{
+			app.addValue(keys[i], FIXED_TYPES[i % FIXED_TYPES.length], Integer.valueOf(i));
+		}
+
+		app.createStore();
+
+		return app;
+	}
+
+	private static String[] createKeys(int width)
+	{
+		String[] keys = new String[width];
+		for (int i = 0; i < width; i++)
+		{
+			keys[i] = "value " + i;
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,181 @@
+package HoloFirst;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/******************************************************************************
+ *
+ * This class stands in for a network table server in the load test, it
+ * publishes updates of thousands of keys at a fixed rate to the table
+ * listeners of the relay.
+ *
+ * The network tables library calls a KeyListener from its own thread for
+ * each update it receives, this class does the same from one or more
+ * publisher threads, with a new boxed Double for each update as the
+ * library would pass, so everything after the network connection is the
+ * real path of the relay. The library needs its native ntcore, which is
+ * only shipped for Windows, so a real server cannot be used on the Linux
+ * machines the load test runs on.
+ *
+ * Each key is published rate times a second, spread evenly over time. The
+ * stamp keys are published once per tick (every TICK_NS) with the current
+ * time, so the sink can measure how long an update takes to go through
+ * the relay.
+ *
+ *****************************************************************************/
+public class StandInTable
+{
+	private static final long TICK_NS = 1000000L;
+
+	private final KeyListener[] listeners;
+	private final String[] keys;
+	private final KeyListener[] stamp_listeners;
+	private final String[] stamp_keys;
+	private final double rate;
+	private final int threads;
+
+	private final AtomicLong published = new AtomicLong(0);
+	private final AtomicLong behind = new AtomicLong(0);
+
+	private volatile boolean done = false;
+	private Thread[] workers = new Thread[0];
+
+	/**************************************************************************
+	 *
+	 * @param app			the relay to publish to
+	 * @param keys			the keys to publish at the rate
+	 * @param stamp_keys	the keys to publish the time to every tick
+	 * @param rate			updates of each key per second
+	 * @param threads		the number of publisher threads, the network tables
+	 *                      library uses 1
+	 *
+	 *************************************************************************/
+	public StandInTable(NetTableToSocket app, String[] keys, String[] stamp_keys, double rate, int threads)
+	{
+		this.keys = keys;
+		this.stamp_keys = stamp_keys;
+		this.rate = rate;
+		this.threads = Math.max(threads, 1);
+
+		this.listeners = new KeyListener[keys.length];
+		for (int i = 0; i < keys.length; i++)
+		{
+			listeners[i] = new KeyListener(app, app.getSlot(keys[i]));
+		}
+
+		this.stamp_listeners = new KeyListener[stamp_keys.length];
+		for (int i = 0; i < stamp_keys.length; i++)
+		{
+			stamp_listeners[i] = new KeyListener(app, app.getSlot(stamp_keys[i]));
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of updates published
+	 *
+	 *************************************************************************/
+	public long getPublished()
+	{
+		return published.get();
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of ticks a publisher thread started late, it then
+	 *         catches up with the rate if it can
+	 *
+	 *************************************************************************/
+	public long getBehind()
+	{
+		return behind.get();
+	}
+
+	public void start()
+	{
+		workers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			final int id = t;
+			workers[t] = new Thread("Publisher " + t)
+			{
+				public void run()
+				{
+					publish(id);
+				}
+			};
+			workers[t].start();
+		}
+	}
+
+	public void stop() throws InterruptedException
+	{
+		done = true;
+		for (Thread w : workers)
+		{
+			w.join();
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Publish the keys of one thread, every threads'th key starting at id,
+	 * until stopped.
+	 *
+	 *************************************************************************/
+	private void publish(int id)
+	{
+		int n = 0;
+		for (int i = id; i < keys.length; i += threads)
+		{
+			n++;
+		}
+
+		int[] mine = new int[n];
+		double[] values = new double[n];
+		for (int i = id, j = 0; i < keys.length; i += threads, j++)
+		{
+			mine[j] = i;
+			values[j] = i;
+		}
+
+		long start_ns = System.nanoTime();
+		long next_ns = start_ns;
+		long count = 0;
+		int k = 0;
+
+		while (! done)
+		{
+			long now = System.nanoTime();
+			long due = (long)((now - start_ns) * rate * n / 1.0e9);
+			long first = count;
+
+			for (; (count < due) && (n > 0); count++)
+			{
+				int idx = mine[k];
+				values[k] += (Math.random() - 0.5);
+				listeners[idx].valueChanged(null, keys[idx], Double.valueOf(values[k]), false);
+				k = (k + 1) % n;
+			}
+			published.addAndGet(count - first);
+
+			for (int i = id; i < stamp_keys.length; i += threads)
+			{
+				stamp_listeners[i].valueChanged(null, stamp_keys[i], Double.valueOf(RelayClock.nowMicros()), false);
+				published.incrementAndGet();
+			}
+
+			next_ns += TICK_NS;
+			long wait_ns = next_ns - System.nanoTime();
+			if (wait_ns > 0)
+			{
+				LockSupport.parkNanos(wait_ns);
+			}
+			else
+			{
+				behind.incrementAndGet();
+				next_ns = System.nanoTime();
+			}
+		}
+	}
+}
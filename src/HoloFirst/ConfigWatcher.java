@@ -0,0 +1,155 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/******************************************************************************
+ *
+ * This class watches the configuration file and calls a reload callback on
+ * its own thread when the contents of the file change.
+ *
+ * Editors often save a file in several steps (truncate and write, or write
+ * a new file and rename it), so the file is only read once it has not
+ * changed for SETTLE_MS, and the callback is only called if what was read
+ * differs from the last contents seen. Saving the file without changing it
+ * does nothing.
+ *
+ *****************************************************************************/
+public class ConfigWatcher implements Runnable
+{
+	private static final long SETTLE_MS = 250;
+
+	private final Path file;
+	private final Runnable reload;
+
+	private byte[] contents;
+
+	/**************************************************************************
+	 *
+	 * @param filename	the configuration file
+	 * @param reload	called when the contents of the file change
+	 *
+	 *************************************************************************/
+	public ConfigWatcher(String filename, Runnable reload)
+	{
+		this.file = Paths.get(filename).toAbsolutePath();
+		this.reload = reload;
+		this.contents = read();
+	}
+
+	/**************************************************************************
+	 *
+	 * Start watching on a new thread.
+	 *
+	 *************************************************************************/
+	public void start()
+	{
+		Thread thread = new Thread(this, "Config watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			WatchService watcher = FileSystems.getDefault().newWatchService();
+			file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+
+			RelayLog.info("Watching " + file + " for changes");
+
+			while (true)
+			{
+				WatchKey key = watcher.take();
+				boolean changed = pollChanged(key);
+
+				// wait until the file has settled
+				while (true)
+				{
+					key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+					if (key == null)
+					{
+						break;
+					}
+					changed |= pollChanged(key);
+				}
+
+				if (! changed)
+				{
+					continue;
+				}
+
+				byte[] now = read();
+				if ((now == null) || Arrays.equals(now, contents))
+				{
+					continue;
+				}
+				contents = now;
+
+				RelayLog.info("Configuration file " + file + " changed, reloading");
+				try
+				{
+					reload.run();
+				}
+				catch (RuntimeException e)
+				{
+					RelayLog.error("ERROR reloading " + file, e);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			RelayLog.error("ERROR watching " + file + ", the configuration will not be reloaded", e);
+		}
+		catch (InterruptedException e)
+		{
+			// stopped
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Take the events of a key and reset it.
+	 *
+	 * @return true if any event was for the configuration file
+	 *
+	 *************************************************************************/
+	private boolean pollChanged(WatchKey key)
+	{
+		boolean changed = false;
+
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if ((event.kind() == StandardWatchEventKinds.OVERFLOW) || file.getFileName().equals(event.context()))
+			{
+				changed = true;
+			}
+		}
+		key.reset();
+
+		return changed;
+	}
+
+	private byte[] read()
+	{
+		try
+		{
+			return Files.readAllBytes(file);
+		}
+		catch (IOException e)
+		{
+			// being replaced, the next event reads it
+			return null;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/******************************************************************************
+ *
+ * A ConflatingOutbox holds the messages for a stream connection that could
+ * not be written right away because the peer is slow.
+ *
+ * A message that was partly written is always finished first, so the
+ * stream never contains a partial message. Behind it, at most one message
+ * of each message id waits: a newer message replaces the waiting one (it is
+ * conflated), so a slow peer gets the latest values as soon as it catches
+ * up instead of an ever longer queue of old ones, and the memory used is
+ * bounded by the number of message ids. Waiting messages are written in the
+ * order they were first queued, so a high rate message cannot starve
+ * another one.
+ *
+ * A protocol 2 delta message only makes sense after the message before it.
+ * When a delta would replace a waiting message, the peer never gets that
+ * message, so the new delta is dropped as well, along with a waiting delta.
+ * Every later delta of the id is then dropped too (see admit()) until a
+ * keyframe comes, so the peer never gets a delta it cannot use. The owner
+ * should request a keyframe whenever offer() or admit() reports that a
+ * message was conflated. A new connection also waits for a keyframe of
+ * each id.
+ *
+ * The buffers are allocated the first time each message id waits, so the
+ * outbox does not allocate once it is running.
+ *
+ *****************************************************************************/
+public class ConflatingOutbox
+{
+	// the waiting message index used for messages without an id
+	private static final int NO_ID = MessageEncoder.MAX_MESSAGE_ID + 1;
+
+	private final int buffer_size;
+
+	private ByteBuffer in_flight;
+	private final ByteBuffer[] waiting = new ByteBuffer[NO_ID + 1];
+	private final boolean[] queued = new boolean[NO_ID + 1];
+
+	// the ids whose deltas are dropped until the next keyframe
+	private final boolean[] keyframe_pending = new boolean[NO_ID + 1];
+
+	// the ids of the waiting messages, oldest first
+	private final int[] order = new int[NO_ID + 1];
+	private int head = 0;
+	private int count = 0;
+
+	/**************************************************************************
+	 *
+	 * @param buffer_size the largest message that will be sent
+	 *
+	 *************************************************************************/
+	public ConflatingOutbox(int buffer_size)
+	{
+		this.buffer_size = buffer_size;
+		this.in_flight = ByteBuffer.allocateDirect(buffer_size);
+		this.in_flight.limit(0);
+
+		Arrays.fill(keyframe_pending, true);
+	}
+
+	/**************************************************************************
+	 *
+	 * @return true if nothing is waiting to be written
+	 *
+	 *************************************************************************/
+	public boolean isEmpty()
+	{
+		return ! in_flight.hasRemaining() && (count == 0);
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of whole messages waiting behind the one being
+	 *         written
+	 *
+	 *************************************************************************/
+	public int getWaiting()
+	{
+		return count;
+	}
+
+	/**************************************************************************
+	 *
+	 * Hold the rest of a message that was partly written, the outbox must be
+	 * empty.
+	 *
+	 * @param frame the rest of the message, from position to limit
+	 *
+	 *************************************************************************/
+	public void hold(ByteBuffer frame)
+	{
+		in_flight.clear();
+		in_flight.put(frame);
+		in_flight.flip();
+	}
+
+	/**************************************************************************
+	 *
+	 * Check a message before it is written or queued. A keyframe (or a
+	 * protocol 1 message) is always taken, a delta is not while its id is
+	 * waiting for a keyframe.
+	 *
+	 * @param frame the message, from position to limit
+	 *
+	 * @return false if the message is dropped
+	 *
+	 *************************************************************************/
+	public boolean admit(ByteBuffer frame)
+	{
+		int idx = index(frame);
+
+		if (! MessageDecoder.peekDelta(frame))
+		{
+			keyframe_pending[idx] = false;
+			return true;
+		}
+
+		return ! keyframe_pending[idx];
+	}
+
+	/**************************************************************************
+	 *
+	 * Queue a whole message behind the ones already held, the message must
+	 * have been admitted.
+	 *
+	 * @param frame the message, from position to limit
+	 *
+	 * @return true if a waiting message with the same id was replaced, or a
+	 *         delta was dropped
+	 *
+	 *************************************************************************/
+	public boolean offer(ByteBuffer frame)
+	{
+		int idx = index(frame);
+
+		if (queued[idx] && MessageDecoder.peekDelta(frame))
+		{
+			// the delta is against the waiting message, which the peer
+			// now never gets, a waiting keyframe is still of use
+			if (MessageDecoder.peekDelta(waiting[idx]))
+			{
+				waiting[idx].limit(0);
+			}
+			keyframe_pending[idx] = true;
+			return true;
+		}
+
+		if (waiting[idx] == null)
+		{
+			waiting[idx] = ByteBuffer.allocateDirect(buffer_size);
+		}
+
+		ByteBuffer bb = waiting[idx];
+		bb.clear();
+		bb.put(frame);
+		bb.flip();
+
+		if (queued[idx])
+		{
+			return true;
+		}
+
+		queued[idx] = true;
+		order[(head + count) % order.length] = idx;
+		count++;
+
+		return false;
+	}
+
+	/**************************************************************************
+	 *
+	 * Write as much as the channel will take without blocking.
+	 *
+	 * @param channel a non-blocking channel
+	 *
+	 * @return true if everything was written
+	 *
+	 *************************************************************************/
+	public boolean flush(WritableByteChannel channel) throws IOException
+	{
+		while (true)
+		{
+			if (in_flight.hasRemaining())
+			{
+				channel.write(in_flight);
+				if (in_flight.hasRemaining())
+				{
+					return false;
+				}
+			}
+
+			if (count == 0)
+			{
+				return true;
+			}
+
+			// the oldest waiting message is next, its buffer is swapped
+			// with the empty one
+			int idx = order[head];
+			head = (head + 1) % order.length;
+			count--;
+
+			ByteBuffer bb = waiting[idx];
+			waiting[idx] = in_flight;
+			in_flight = bb;
+			queued[idx] = false;
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Discard everything, for example when the connection is closed.
+	 *
+	 *************************************************************************/
+	public void clear()
+	{
+		in_flight.clear().limit(0);
+		Arrays.fill(keyframe_pending, true);
+
+		while (count > 0)
+		{
+			queued[order[head]] = false;
+			head = (head + 1) % order.length;
+			count--;
+		}
+	}
+
+	private static int index(ByteBuffer frame)
+	{
+		int id = MessageDecoder.peekMessageId(frame);
+		return (id < 0) ? NO_ID : id;
+	}
+}
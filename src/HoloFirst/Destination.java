@@ -0,0 +1,349 @@
+package HoloFirst;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+
+/******************************************************************************
+ *
+ * This class holds the configuration of one destination that messages are
+ * sent to.
+ *
+ * The top level comm_mode, dest_host, dest_port, send_mode, min_interval
+ * and max_interval tags of the configuration file set the defaults, each
+ * destination tag can override any of them with an attribute of the same
+ * name:
+ *
+ *    <destinations>
+ *        <destination comm_mode="UDP" dest_host="10.1.18.5" dest_port="1000" />
+ *        <destination comm_mode="TCP" dest_host="10.1.18.6" dest_port="1000"
+ *                     send_mode="periodic" period="0.5" />
+ *    </destinations>
+ *
+ * A destination can be given a name, so messages can choose which
+ * destinations they are sent to (see MessageDefinition).
+ *
+ * With a comm_mode of MULTICAST the dest_host is the multicast group, and
+ * the ttl and interface settings control where the datagrams go.
+ *
+ * With a comm_mode of SERVER the relay listens on dest_port (on every
+ * interface) and any number of consumers, up to max_clients, can connect.
+ *
+ * With a comm_mode of SHM messages are written to a shared memory ring in
+ * the file shm_file, holding the last shm_slots messages, for consumers on
+ * the same host (see SharedMemoryTransport and SharedMemoryReader).
+ *
+ * With a comm_mode of RECORD every message is recorded to files starting
+ * with record_file, in segments of record_segment_mb megabytes, so they can
+ * be played back later (see RecordingTransport and FrameReplay).
+ *
+ * A protocol of 2 sends delta messages (see MessageEncoder) with a keyframe
+ * every keyframe_interval messages. With timestamps="true" every protocol 2
+ * message also carries the time its values were read and a 32 bit sequence
+ * number.
+ *
+ * In PERIODIC mode messages are sent every period seconds, or rate times
+ * a second if the rate is given instead.
+ *
+ * A TCP or SERVER peer that falls behind gets only the newest message of
+ * each id, and is disconnected if it stays behind for max_lag seconds (0
+ * to never disconnect).
+ *
+ * A frame_dump of N writes one of every N messages sent to the log as hex,
+ * 0 (the default) writes none.
+ *
+ * A batch_size greater than 1 samples the values sample_rate times a second
+ * and sends each batch_size samples together in one protocol 2 batch
+ * message, the send_mode settings are not used.
+ *
+ *****************************************************************************/
+public class Destination implements Cloneable
+{
+	enum CommMode
+	{
+		UDP, TCP, MULTICAST, SERVER, SHM, RECORD
+	};
+
+	public String name = "";
+	public CommMode comm_mode = CommMode.UDP;
+	public String dst_host = "localhost";
+	public int dst_port = 4322;
+
+	public int ttl = 1;
+	public String interface_name = "";
+	public float max_lag = 5.0f; // seconds
+	public int max_clients = 256;
+	public String shm_file = "holofirst.shm";
+	public int shm_slots = 256; // messages
+	public String record_file = "recordings/match";
+	public int record_segment_mb = 16;
+
+	public int protocol = 1;
+	public int keyframe_interval = 50; // messages
+	public boolean timestamps = false;
+
+	public int frame_dump = 0; // messages
+
+	public int batch_size = 1; // samples per message
+	public float sample_rate = 100.0f; // samples per second
+
+	public SendTrigger.SendMode send_mode = SendTrigger.SendMode.PERIODIC;
+	public float period = 0.1f; // seconds
+	public float min_interval = 0.005f; // seconds
+	public float max_interval = 0.5f; // seconds
+
+	/**************************************************************************
+	 *
+	 * Set the value of a named setting, used for both the top level tags and
+	 * the destination attributes.
+	 *
+	 * @param name	the name of the setting
+	 * @param value the value of the setting
+	 *
+	 * @return true if the name is a destination setting
+	 *
+	 *************************************************************************/
+	public boolean setSetting(String name, String value)
+	{
+		switch(name)
+		{
+			case("name"):
+				this.name = value;
+				return true;
+			case("comm_mode"):
+				// anything not recognized means use UDP
+				switch(value.toLowerCase())
+				{
+					case("tcp"):		comm_mode = CommMode.TCP; 		break;
+					case("multicast"):	comm_mode = CommMode.MULTICAST; break;
+					case("server"):		comm_mode = CommMode.SERVER; 	break;
+					case("shm"):		comm_mode = CommMode.SHM; 		break;
+					case("record"):		comm_mode = CommMode.RECORD; 	break;
+					default:			comm_mode = CommMode.UDP; 		break;
+				}
+				return true;
+			case("dest_host"):
+				dst_host = value;
+				return true;
+			case("dest_port"):
+				dst_port = Integer.parseInt(value);
+				return true;
+			case("ttl"):
+				ttl = Integer.parseInt(value);
+				return true;
+			case("interface"):
+				interface_name = value;
+				return true;
+			case("max_lag"):
+				max_lag = Float.parseFloat(value);
+				return true;
+			case("max_clients"):
+				max_clients = Integer.parseInt(value);
+				return true;
+			case("shm_file"):
+				shm_file = value;
+				return true;
+			case("shm_slots"):
+				shm_slots = Integer.parseInt(value);
+				return true;
+			case("record_file"):
+				record_file = value;
+				return true;
+			case("record_segment_mb"):
+				record_segment_mb = Integer.parseInt(value);
+				return true;
+			case("protocol"):
+				protocol = Integer.parseInt(value);
+				if ((protocol < 1) || (protocol > MessageEncoder.PROTOCOL_VERSION))
+				{
+					RelayLog.error("ERROR parsing configuration file, unsupported protocol " + value);
+					protocol = 1;
+				}
+				return true;
+			case("keyframe_interval"):
+				keyframe_interval = Integer.parseInt(value);
+				return true;
+			case("timestamps"):
+				timestamps = Boolean.parseBoolean(value);
+				return true;
+			case("frame_dump"):
+				frame_dump = Integer.parseInt(value);
+				return true;
+			case("batch_size"):
+				batch_size = Math.max(1, Math.min(Integer.parseInt(value), MessageEncoder.MAX_BATCH_SAMPLES));
+				return true;
+			case("sample_rate"):
+				sample_rate = positive(name, Float.parseFloat(value), sample_rate);
+				return true;
+			case("send_mode"):
+				send_mode = value.toLowerCase().equals("change") ? SendTrigger.SendMode.CHANGE : SendTrigger.SendMode.PERIODIC;
+				return true;
+			case("period"):
+				period = positive(name, Float.parseFloat(value), period);
+				return true;
+			case("rate"):
+				period = 1.0f / positive(name, Float.parseFloat(value), 1.0f / period);
+				return true;
+			case("min_interval"):
+				min_interval = Float.parseFloat(value);
+				return true;
+			case("max_interval"):
+				max_interval = Float.parseFloat(value);
+				return true;
+		}
+
+		return false;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return true if the setting changes how each message is built and
+	 *         when it is sent, so a message can override it (see
+	 *         MessageDefinition), false for a setting of the transport
+	 *
+	 *************************************************************************/
+	public static boolean isMessageSetting(String name)
+	{
+		switch(name)
+		{
+			case("protocol"):
+			case("keyframe_interval"):
+			case("timestamps"):
+			case("batch_size"):
+			case("sample_rate"):
+			case("send_mode"):
+			case("period"):
+			case("rate"):
+			case("min_interval"):
+			case("max_interval"):
+				return true;
+		}
+
+		return false;
+	}
+
+	/**************************************************************************
+	 *
+	 * Check a setting that must be a positive number, a time or a rate.
+	 *
+	 * @param name		the name of the setting
+	 * @param value		the value it is set to
+	 * @param current	the value to keep if the new one is not positive
+	 *
+	 *************************************************************************/
+	private static float positive(String name, float value, float current)
+	{
+		if ((value > 0.0f) && ! Float.isInfinite(value))
+		{
+			return value;
+		}
+
+		RelayLog.error("ERROR parsing configuration file, " + name + " must be a positive number, not " + value);
+		return current;
+	}
+
+	/**************************************************************************
+	 *
+	 * Create a copy of this destination with the attributes of a destination
+	 * element applied.
+	 *
+	 * @param element the destination element
+	 *
+	 *************************************************************************/
+	public Destination derive(Element element)
+	{
+		HashMap<String, String> settings = new HashMap<String, String>();
+
+		NamedNodeMap attrs = element.getAttributes();
+		for (int i = 0; i < attrs.getLength(); i++)
+		{
+			settings.put(attrs.item(i).getNodeName(), attrs.item(i).getNodeValue());
+		}
+
+		return derive(settings);
+	}
+
+	/**************************************************************************
+	 *
+	 * Create a copy of this destination with some settings changed.
+	 *
+	 * @param settings the name and value of each setting to change
+	 *
+	 *************************************************************************/
+	public Destination derive(Map<String, String> settings)
+	{
+		Destination dest;
+		try
+		{
+			dest = (Destination)clone();
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new RuntimeException(e);
+		}
+
+		for (Map.Entry<String, String> setting : settings.entrySet())
+		{
+			if (! dest.setSetting(setting.getKey(), setting.getValue()))
+			{
+				RelayLog.error("ERROR parsing configuration file, unknown destination attribute " + setting.getKey());
+			}
+		}
+
+		return dest;
+	}
+
+	/**************************************************************************
+	 *
+	 * Create the transport for this destination.
+	 *
+	 * @param buffer_size		the largest message that will be sent
+	 * @param connect_period	the longest time between connection attempts (seconds)
+	 *
+	 *************************************************************************/
+	public Transport createTransport(int buffer_size, float connect_period)
+	{
+		switch(comm_mode)
+		{
+			case TCP:
+				return new TcpTransport(dst_host, dst_port, connect_period, buffer_size, max_lag);
+			case MULTICAST:
+				return new MulticastTransport(dst_host, dst_port, ttl, interface_name);
+			case SERVER:
+				return new TcpServerTransport(dst_port, buffer_size, max_lag, max_clients);
+			case SHM:
+				return new SharedMemoryTransport(shm_file, shm_slots, buffer_size);
+			case RECORD:
+				return new RecordingTransport(record_file, record_segment_mb * 1024 * 1024, buffer_size);
+			default:
+				return new UdpTransport(dst_host, dst_port);
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * @return true if the transport of another destination is the same as
+	 *         the transport of this one, so it can be kept when the
+	 *         configuration is reloaded
+	 *
+	 *************************************************************************/
+	public boolean sameTransport(Destination other)
+	{
+		return (comm_mode == other.comm_mode) && dst_host.equals(other.dst_host) && (dst_port == other.dst_port) &&
+				(ttl == other.ttl) && interface_name.equals(other.interface_name) && (max_lag == other.max_lag) &&
+				(max_clients == other.max_clients) && shm_file.equals(other.shm_file) && (shm_slots == other.shm_slots) &&
+				record_file.equals(other.record_file) && (record_segment_mb == other.record_segment_mb);
+	}
+
+	/**************************************************************************
+	 *
+	 * Create the send trigger for this destination.
+	 *
+	 *************************************************************************/
+	public SendTrigger createTrigger()
+	{
+		return new SendTrigger(send_mode, period, min_interval, max_interval);
+	}
+}
@@ -0,0 +1,227 @@
+package HoloFirst;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/******************************************************************************
+ *
+ * Counters for one destination.
+ *
+ * The counters are only updated by the sender and transport of the
+ * destination, and read by JMX and the metrics endpoint, so every update is
+ * a single uncontended atomic add. The per second rates are computed from
+ * the change in the counters since the rates were last read.
+ *
+ * The send jitter is how late each scheduled message (or batch sample) was
+ * built compared to its deadline.
+ *
+ * A conflated frame was held for a slow TCP peer and replaced by a newer
+ * frame before it could be written, it is also counted as sent.
+ *
+ *****************************************************************************/
+public class DestinationMetrics implements DestinationMetricsMBean
+{
+	private final String name;
+
+	private final AtomicLong frames_sent = new AtomicLong(0);
+	private final AtomicLong bytes_sent = new AtomicLong(0);
+	private final AtomicLong frames_dropped = new AtomicLong(0);
+	private final AtomicLong send_failures = new AtomicLong(0);
+	private final AtomicLong reconnects = new AtomicLong(0);
+	private final AtomicLong coalesced_updates = new AtomicLong(0);
+	private final AtomicLong missed_deadlines = new AtomicLong(0);
+	private final AtomicLong conflated_frames = new AtomicLong(0);
+	private final AtomicLong lag_disconnects = new AtomicLong(0);
+	private final AtomicLong clients = new AtomicLong(0);
+	private final LatencyHistogram send_jitter = new LatencyHistogram();
+
+	private long rate_time_ns = System.nanoTime();
+	private long rate_frames = 0;
+	private long rate_bytes = 0;
+	private double frames_per_second = 0.0;
+	private double bytes_per_second = 0.0;
+
+	public DestinationMetrics(String name)
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void frameSent(int size)
+	{
+		frames_sent.incrementAndGet();
+		bytes_sent.addAndGet(size);
+	}
+
+	public void frameDropped()
+	{
+		frames_dropped.incrementAndGet();
+	}
+
+	public void sendFailed()
+	{
+		send_failures.incrementAndGet();
+	}
+
+	public void reconnected()
+	{
+		reconnects.incrementAndGet();
+	}
+
+	public void updatesCoalesced(long count)
+	{
+		if (count > 0)
+		{
+			coalesced_updates.addAndGet(count);
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Record how late a message was built compared to its deadline.
+	 *
+	 *************************************************************************/
+	public void sendScheduled(long lateness_ns)
+	{
+		send_jitter.record(lateness_ns);
+	}
+
+	public void deadlinesMissed(long count)
+	{
+		missed_deadlines.addAndGet(count);
+	}
+
+	public void framesConflated(long count)
+	{
+		conflated_frames.addAndGet(count);
+	}
+
+	public void lagDisconnected()
+	{
+		lag_disconnects.incrementAndGet();
+	}
+
+	public void clientsConnected(int count)
+	{
+		clients.set(count);
+	}
+
+	public LatencyHistogram getSendJitter()
+	{
+		return send_jitter;
+	}
+
+	@Override
+	public long getFramesSent()
+	{
+		return frames_sent.get();
+	}
+
+	@Override
+	public long getBytesSent()
+	{
+		return bytes_sent.get();
+	}
+
+	@Override
+	public long getFramesDropped()
+	{
+		return frames_dropped.get();
+	}
+
+	@Override
+	public long getSendFailures()
+	{
+		return send_failures.get();
+	}
+
+	@Override
+	public long getReconnects()
+	{
+		return reconnects.get();
+	}
+
+	@Override
+	public long getCoalescedUpdates()
+	{
+		return coalesced_updates.get();
+	}
+
+	@Override
+	public long getMissedDeadlines()
+	{
+		return missed_deadlines.get();
+	}
+
+	@Override
+	public long getConflatedFrames()
+	{
+		return conflated_frames.get();
+	}
+
+	@Override
+	public long getLagDisconnects()
+	{
+		return lag_disconnects.get();
+	}
+
+	@Override
+	public long getClients()
+	{
+		return clients.get();
+	}
+
+	@Override
+	public double getJitterP99Micros()
+	{
+		return send_jitter.getP99Micros();
+	}
+
+	@Override
+	public double getJitterMaxMicros()
+	{
+		return send_jitter.getMaxMicros();
+	}
+
+	@Override
+	public synchronized double getFramesPerSecond()
+	{
+		updateRates();
+		return frames_per_second;
+	}
+
+	@Override
+	public synchronized double getBytesPerSecond()
+	{
+		updateRates();
+		return bytes_per_second;
+	}
+
+	/**************************************************************************
+	 *
+	 * Recompute the rates if at least a second has passed since they were
+	 * last computed.
+	 *
+	 *************************************************************************/
+	private void updateRates()
+	{
+		long now = System.nanoTime();
+		long elapsed = now - rate_time_ns;
+
+		if (elapsed >= 1000000000L)
+		{
+			long frames = frames_sent.get();
+			long bytes = bytes_sent.get();
+
+			frames_per_second = (frames - rate_frames) * 1.0e9 / elapsed;
+			bytes_per_second = (bytes - rate_bytes) * 1.0e9 / elapsed;
+
+			rate_frames = frames;
+			rate_bytes = bytes;
+			rate_time_ns = now;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package HoloFirst;
+
+/******************************************************************************
+ *
+ * JMX view of the DestinationMetrics of one destination.
+ *
+ *****************************************************************************/
+public interface DestinationMetricsMBean
+{
+	long getFramesSent();
+	long getBytesSent();
+	long getFramesDropped();
+	long getSendFailures();
+	long getReconnects();
+	long getCoalescedUpdates();
+	long getMissedDeadlines();
+	long getConflatedFrames();
+	long getLagDisconnects();
+	long getClients();
+	double getJitterP99Micros();
+	double getJitterMaxMicros();
+	double getFramesPerSecond();
+	double getBytesPerSecond();
+}
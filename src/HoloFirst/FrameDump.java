@@ -0,0 +1,117 @@
+package HoloFirst;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/******************************************************************************
+ *
+ * A single producer, single consumer ring of copies of sent frames that are
+ * written as hex by the RelayLog thread.
+ *
+ * The sender copies one of every N frames into a preallocated slot, so the
+ * sender never allocates, formats or waits. If the log thread falls behind
+ * and the ring is full, the frame is not dumped and is counted instead.
+ *
+ *****************************************************************************/
+public class FrameDump
+{
+	private static final int SLOTS = 16;
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final String name;
+	private final int every;
+	private final int max_size;
+
+	private final byte[] data;
+	private final int[] sizes = new int[SLOTS];
+
+	private final AtomicLong head = new AtomicLong(0);
+	private final AtomicLong tail = new AtomicLong(0);
+
+	private int count = 0;
+	private final AtomicLong skipped = new AtomicLong(0);
+
+	FrameDump(String name, int every, int max_size)
+	{
+		this.name = name;
+		this.every = every;
+		this.max_size = max_size;
+		this.data = new byte[SLOTS * max_size];
+	}
+
+	/**************************************************************************
+	 *
+	 * Called by the sender after a frame is sent, copies the frame if it is
+	 * one of the frames to dump.
+	 *
+	 * @param frame	the buffer holding the frame, starting at index 0
+	 * @param size	the size of the frame
+	 *
+	 *************************************************************************/
+	public void frameSent(ByteBuffer frame, int size)
+	{
+		if (++count < every)
+		{
+			return;
+		}
+		count = 0;
+
+		long t = tail.get();
+		if (t - head.get() >= SLOTS)
+		{
+			skipped.incrementAndGet();
+			return;
+		}
+
+		int slot = (int)(t % SLOTS);
+		int n = Math.min(size, max_size);
+
+		int pos = frame.position();
+		frame.position(0);
+		frame.get(data, slot * max_size, n);
+		frame.position(pos);
+
+		sizes[slot] = size;
+		tail.lazySet(t + 1);
+	}
+
+	/**************************************************************************
+	 *
+	 * Called by the log thread, formats the oldest frame in the ring.
+	 *
+	 * @param line	filled with the formatted frame
+	 *
+	 * @return true if a frame was formatted, false if the ring is empty
+	 *
+	 *************************************************************************/
+	boolean format(StringBuilder line)
+	{
+		long h = head.get();
+		if (h == tail.get())
+		{
+			return false;
+		}
+
+		int slot = (int)(h % SLOTS);
+		int size = sizes[slot];
+		int n = Math.min(size, max_size);
+		int base = slot * max_size;
+
+		line.setLength(0);
+		line.append("sent ").append(size).append(" bytes to ").append(name).append(' ');
+		for (int i = 0; i < n; i++)
+		{
+			int b = data[base + i] & 0xFF;
+			line.append(HEX[b >> 4]).append(HEX[b & 0xF]).append(' ');
+		}
+
+		long n_skipped = skipped.getAndSet(0);
+		if (n_skipped > 0)
+		{
+			line.append("(").append(n_skipped).append(" frames not dumped)");
+		}
+
+		head.lazySet(h + 1);
+		return true;
+	}
+}
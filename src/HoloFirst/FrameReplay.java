@@ -0,0 +1,125 @@
+package HoloFirst;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/******************************************************************************
+ *
+ * This class sends the messages of a recording (see RecordingTransport) to
+ * the transports of the configured destinations, with the timing they were
+ * recorded with, so a match can be played back to the headsets without a
+ * robot.
+ *
+ * A speed of 1 replays in real time, 2 at twice real time and so on, 0
+ * sends the messages as fast as the transports take them, which makes a
+ * replay a realistic load test. The messages are sent exactly as they were
+ * recorded, so consumers must use the same message configuration as the
+ * relay that recorded them.
+ *
+ * A replay that does not start at the beginning of the recording skips the
+ * protocol 2 delta messages of each message id until its first keyframe,
+ * so consumers are never sent changes to values they do not have.
+ *
+ *****************************************************************************/
+public class FrameReplay
+{
+	private final RecordingReader reader;
+	private final Transport[] transports;
+	private final float speed;
+	private final boolean loop;
+
+	private final boolean[] keyframe_seen = new boolean[MessageEncoder.MAX_MESSAGE_ID + 2];
+
+	private volatile boolean done = false;
+
+	/**************************************************************************
+	 *
+	 * @param reader		the recording, at the message to start with
+	 * @param transports	the transports to send the messages to, already
+	 *                      open
+	 * @param speed			the replay speed, 0 for as fast as possible
+	 * @param loop			true to start again at the end of the recording
+	 *
+	 *************************************************************************/
+	public FrameReplay(RecordingReader reader, Transport[] transports, float speed, boolean loop)
+	{
+		this.reader = reader;
+		this.transports = transports;
+		this.speed = speed;
+		this.loop = loop;
+	}
+
+	public void stop()
+	{
+		done = true;
+	}
+
+	/**************************************************************************
+	 *
+	 * Send the messages until the end of the recording, or forever if
+	 * looping.
+	 *
+	 * @return the number of messages sent
+	 *
+	 *************************************************************************/
+	public long run() throws Exception
+	{
+		ByteBuffer bb = ByteBuffer.allocateDirect(Math.max(reader.getMaxMessageSize(), MessageEncoder.HEADER_SIZE));
+
+		long first_time = -1;
+		long start_ns = 0;
+		long sent = 0;
+
+		while (! done)
+		{
+			bb.clear();
+			if (reader.next(bb) < 0)
+			{
+				if (! loop || (first_time < 0))
+				{
+					break;
+				}
+
+				reader.rewind();
+				first_time = -1;
+				continue;
+			}
+			bb.flip();
+
+			if (first_time < 0)
+			{
+				first_time = reader.getTime();
+				start_ns = System.nanoTime();
+				Arrays.fill(keyframe_seen, false);
+			}
+
+			int id = MessageDecoder.peekMessageId(bb) + 1;
+			if (MessageDecoder.peekDelta(bb))
+			{
+				if (! keyframe_seen[id])
+				{
+					continue;
+				}
+			}
+			else
+			{
+				keyframe_seen[id] = true;
+			}
+
+			if (speed > 0)
+			{
+				SendTrigger.waitUntil(start_ns + (long)((reader.getTime() - first_time) * 1000.0 / speed));
+			}
+
+			for (Transport transport : transports)
+			{
+				transport.flush();
+				bb.position(0);
+				transport.send(bb);
+			}
+			sent++;
+		}
+
+		return sent;
+	}
+}
@@ -0,0 +1,564 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import edu.wpi.first.wpilibj.networktables.NetworkTable;
+
+/******************************************************************************
+ *
+ * This class receives messages from consumers (for example the target an
+ * operator selected on a headset) and publishes their values to the network
+ * table, so values can go back to the robot as well as come from it.
+ *
+ * The messages are built like the messages the relay sends, either
+ * protocol, with the layout of a message tag with direction="in". Each
+ * value is published to the key of its name, in its table:
+ *
+ *    <ingest comm_mode="UDP" port="5801" flush_interval="0.05" />
+ *
+ *    <message name="operator" id="30" direction="in">
+ *        <value name="target" type="int" default="0" table="Operator" />
+ *        <value name="ack" type="boolean" default="false" table="Operator" />
+ *    </message>
+ *
+ * With a comm_mode of UDP each datagram is a message, with TCP any number
+ * of consumers can connect and send a stream of messages. Messages are
+ * told apart by their message id, a protocol 2 delta message is only used
+ * once a keyframe of its id has been received from the same consumer. Each
+ * TCP connection and each UDP source address has decoders of its own, so
+ * consumers sending the same message do not break each other's deltas. The
+ * decoders of a connection are dropped when it closes, those of a UDP
+ * address when nothing has been received from it for UDP_IDLE_NS.
+ *
+ * A burst of messages is coalesced, the values that changed are published
+ * at most once per flush_interval seconds, with only the latest value of
+ * each key, so a consumer cannot flood the network table server. An update
+ * after a quiet period is published straight away.
+ *
+ * Everything runs on one thread, which waits on a selector for messages or
+ * the next flush.
+ *
+ *****************************************************************************/
+public class IngestServer implements Runnable
+{
+	private static final int MAX_DATAGRAM_SIZE = 65536;
+	private static final long UDP_IDLE_NS = 10000000000L;
+
+	private final boolean tcp;
+	private final int port;
+	private final long flush_ns;
+	private final String host;
+
+	// by message id + 1, so no id is at 0
+	private final Inbound[] inbound = new Inbound[MessageEncoder.MAX_MESSAGE_ID + 2];
+	private int message_count = 0;
+
+	private Selector selector;
+	private DatagramChannel udp_channel = null;
+	private final HashMap<SocketAddress, Consumer> udp_consumers = new HashMap<SocketAddress, Consumer>();
+	private long last_expire_ns;
+	private ServerSocketChannel server = null;
+	private Thread thread = null;
+
+	private boolean pending = false;
+	private long last_flush_ns;
+
+	private volatile boolean done = false;
+
+	/**************************************************************************
+	 *
+	 * The layout and keys of a message that is received, and the latest
+	 * values from any consumer.
+	 *
+	 *************************************************************************/
+	private static class Inbound
+	{
+		final MessageDefinition message;
+		final String[] tables;
+		final String[] keys;
+		final long[] values;
+		final boolean[] changed;
+
+		Inbound(MessageDefinition message, String[] tables, String[] keys)
+		{
+			this.message = message;
+			this.tables = tables;
+			this.keys = keys;
+			this.values = message.getLayout().createValues();
+			this.changed = new boolean[keys.length];
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * The decoders of one consumer, a TCP connection or a UDP source address,
+	 * by message id + 1. A decoder is created the first time the consumer
+	 * sends its message.
+	 *
+	 *************************************************************************/
+	private static class Consumer
+	{
+		// the bytes received but not yet taken, null for UDP
+		final ByteBuffer rx;
+		final MessageDecoder[] decoders = new MessageDecoder[MessageEncoder.MAX_MESSAGE_ID + 2];
+		final boolean[] keyframe_seen = new boolean[MessageEncoder.MAX_MESSAGE_ID + 2];
+		long last_ns;
+
+		Consumer(ByteBuffer rx)
+		{
+			this.rx = rx;
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * @param tcp				true to accept TCP connections, false to
+	 *                          receive UDP
+	 * @param port				the port to receive messages on
+	 * @param flush_interval	the shortest time between publishing the values
+	 *                          (seconds)
+	 * @param host				the address of the network table server
+	 *
+	 *************************************************************************/
+	public IngestServer(boolean tcp, int port, float flush_interval, String host)
+	{
+		this.tcp = tcp;
+		this.port = port;
+		this.flush_ns = (long)(flush_interval * 1.0e9);
+		this.host = host;
+	}
+
+	/**************************************************************************
+	 *
+	 * Receive a message. This must be done before the server is started.
+	 *
+	 * @param message	the message, with direction="in"
+	 * @param tables	the table of each value in the layout of the message
+	 * @param keys		the key of each value in its table
+	 *
+	 * @return false if a message with the same id was already added
+	 *
+	 *************************************************************************/
+	public boolean addMessage(MessageDefinition message, String[] tables, String[] keys)
+	{
+		int id = message.getId() + 1;
+		if (inbound[id] != null)
+		{
+			return false;
+		}
+
+		inbound[id] = new Inbound(message, tables, keys);
+		message_count++;
+		return true;
+	}
+
+	public int getMessageCount()
+	{
+		return message_count;
+	}
+
+	/**************************************************************************
+	 *
+	 * Connect to the network table server, open the port and start receiving
+	 * on a new thread.
+	 *
+	 *************************************************************************/
+	public void start() throws IOException
+	{
+		if (! connect())
+		{
+			return;
+		}
+
+		selector = Selector.open();
+
+		if (tcp)
+		{
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		else
+		{
+			udp_channel = DatagramChannel.open();
+			udp_channel.bind(new InetSocketAddress(port));
+			udp_channel.configureBlocking(false);
+			udp_channel.register(selector, SelectionKey.OP_READ);
+		}
+
+		RelayLog.info("Publishing " + message_count + " messages received on " + (tcp ? "TCP" : "UDP") + " port " + port +
+				" to the network table");
+
+		thread = new Thread(this, "Ingest");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**************************************************************************
+	 *
+	 * Close the port and wait for the thread to finish, so the port can be
+	 * opened again by a new configuration. Values not yet published are
+	 * dropped.
+	 *
+	 *************************************************************************/
+	public void stop()
+	{
+		if (thread == null)
+		{
+			return;
+		}
+
+		done = true;
+		selector.wakeup();
+
+		try
+		{
+			thread.join(1000);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		ByteBuffer rx = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+		last_flush_ns = System.nanoTime() - flush_ns;
+		last_expire_ns = System.nanoTime();
+
+		try
+		{
+			while (! done)
+			{
+				long wait_ms = 0;
+				if (pending)
+				{
+					long wait_ns = last_flush_ns + flush_ns - System.nanoTime();
+					wait_ms = Math.max(1, (wait_ns + 999999) / 1000000);
+				}
+				selector.select(wait_ms);
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+
+					if (! key.isValid())
+					{
+						continue;
+					}
+
+					if (key.isAcceptable())
+					{
+						accept();
+					}
+					else if (key.channel() == udp_channel)
+					{
+						receive(rx);
+					}
+					else
+					{
+						read(key);
+					}
+				}
+
+				long now = System.nanoTime();
+				if (pending && (now - last_flush_ns >= flush_ns))
+				{
+					flush();
+					last_flush_ns = now;
+				}
+
+				if (now - last_expire_ns >= UDP_IDLE_NS)
+				{
+					expire(now);
+					last_expire_ns = now;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			RelayLog.error("Receive on port " + port + " failed, no more values will be published", e);
+		}
+
+		close();
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel client = server.accept();
+		if (client == null)
+		{
+			return;
+		}
+
+		client.configureBlocking(false);
+		client.register(selector, SelectionKey.OP_READ, new Consumer(ByteBuffer.allocate(2 * MessageEncoder.MAX_MESSAGE_SIZE)));
+
+		RelayLog.info("Ingest connection from " + client.getRemoteAddress());
+	}
+
+	/**************************************************************************
+	 *
+	 * Take every datagram waiting on the UDP port.
+	 *
+	 *************************************************************************/
+	private void receive(ByteBuffer rx) throws IOException
+	{
+		while (true)
+		{
+			rx.clear();
+			SocketAddress from = udp_channel.receive(rx);
+			if (from == null)
+			{
+				return;
+			}
+			rx.flip();
+
+			if ((rx.remaining() < MessageEncoder.HEADER_SIZE) || ((rx.getShort(4) & 0xFFFF) != rx.remaining()))
+			{
+				RelayLog.debug("Ignored a datagram on port " + port + " that is not a message");
+				continue;
+			}
+
+			Consumer consumer = udp_consumers.get(from);
+			if (consumer == null)
+			{
+				consumer = new Consumer(null);
+				udp_consumers.put(from, consumer);
+			}
+			consumer.last_ns = System.nanoTime();
+
+			message(rx, consumer);
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Drop the decoders of the UDP addresses nothing has been received from
+	 * for UDP_IDLE_NS.
+	 *
+	 *************************************************************************/
+	private void expire(long now)
+	{
+		Iterator<Consumer> it = udp_consumers.values().iterator();
+		while (it.hasNext())
+		{
+			if (now - it.next().last_ns >= UDP_IDLE_NS)
+			{
+				it.remove();
+			}
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Read from a TCP connection and take every whole message, a connection
+	 * that loses the framing is closed.
+	 *
+	 *************************************************************************/
+	private void read(SelectionKey key)
+	{
+		SocketChannel client = (SocketChannel)key.channel();
+		Consumer consumer = (Consumer)key.attachment();
+		ByteBuffer bb = consumer.rx;
+
+		try
+		{
+			if (client.read(bb) < 0)
+			{
+				client.close();
+				return;
+			}
+		}
+		catch (IOException e)
+		{
+			RelayLog.warn("Ingest connection closed: " + e.getMessage());
+			closeQuietly(client);
+			return;
+		}
+
+		bb.flip();
+		while (bb.remaining() >= MessageEncoder.HEADER_SIZE)
+		{
+			int start = bb.position();
+			int size = bb.getShort(start + 4) & 0xFFFF;
+			if (size < MessageEncoder.HEADER_SIZE)
+			{
+				RelayLog.warn("Closed an ingest connection that is not sending messages");
+				closeQuietly(client);
+				return;
+			}
+			if (size > bb.remaining())
+			{
+				break;
+			}
+
+			int limit = bb.limit();
+			bb.limit(start + size);
+			message(bb, consumer);
+			bb.limit(limit);
+			bb.position(start + size);
+		}
+		bb.compact();
+	}
+
+	/**************************************************************************
+	 *
+	 * Decode one message with the decoders of the consumer that sent it, and
+	 * mark the values it changed to be published.
+	 *
+	 *************************************************************************/
+	private void message(ByteBuffer bb, Consumer consumer)
+	{
+		int id = MessageDecoder.peekMessageId(bb) + 1;
+		Inbound in = inbound[id];
+		if (in == null)
+		{
+			RelayLog.debug("Ignored a message with unknown id " + (id - 1) + " on port " + port);
+			return;
+		}
+
+		// a delta only applies to the values of the keyframe before it
+		boolean delta = MessageDecoder.peekDelta(bb);
+		if (delta && ! consumer.keyframe_seen[id])
+		{
+			return;
+		}
+
+		MessageLayout layout = in.message.getLayout();
+		MessageDecoder decoder = consumer.decoders[id];
+		if (decoder == null)
+		{
+			decoder = new MessageDecoder(layout);
+			consumer.decoders[id] = decoder;
+		}
+
+		if (! decoder.decode(bb))
+		{
+			RelayLog.debug("Ignored a message for " + in.message.getName() + " that does not match its values");
+			if (! delta)
+			{
+				// the deltas after a bad keyframe would change stale values
+				consumer.keyframe_seen[id] = false;
+			}
+			return;
+		}
+		consumer.keyframe_seen[id] = true;
+
+		long[] values = decoder.getValues();
+		boolean[] changed = decoder.getChanged();
+		for (int i = 0; i < changed.length; i++)
+		{
+			if (changed[i])
+			{
+				int pos = layout.getPosition(i);
+				System.arraycopy(values, pos, in.values, pos, layout.getLength(i));
+				in.changed[i] = true;
+				pending = true;
+			}
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Publish the latest value of every key that changed since the last
+	 * flush.
+	 *
+	 *************************************************************************/
+	private void flush()
+	{
+		for (Inbound in : inbound)
+		{
+			if (in == null)
+			{
+				continue;
+			}
+
+			MessageLayout layout = in.message.getLayout();
+			long[] values = in.values;
+
+			for (int i = 0; i < in.changed.length; i++)
+			{
+				if (in.changed[i])
+				{
+					in.changed[i] = false;
+					publish(in.tables[i], in.keys[i], MessageLayout.toObject(layout.getType(i), values, layout.getPosition(i)));
+				}
+			}
+		}
+
+		pending = false;
+	}
+
+	/**************************************************************************
+	 *
+	 * Connect the network table client, see NetworkTableSource.
+	 *
+	 *************************************************************************/
+	protected boolean connect()
+	{
+		return NetworkTableSource.connect(host, "ingest on port " + port);
+	}
+
+	/**************************************************************************
+	 *
+	 * Publish one value to the network table.
+	 *
+	 *************************************************************************/
+	protected void publish(String table, String key, Object value)
+	{
+		try
+		{
+			NetworkTable.getTable(table).putValue(key, value);
+		}
+		catch (IllegalArgumentException e)
+		{
+			RelayLog.warn("Could not publish " + table + NetworkTable.PATH_SEPARATOR + key + ": " + e.getMessage());
+		}
+	}
+
+	private void close()
+	{
+		for (SelectionKey key : selector.keys())
+		{
+			closeQuietly(key.channel());
+		}
+
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			// closing anyway
+		}
+	}
+
+	private static void closeQuietly(Channel channel)
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// closing anyway
+		}
+	}
+}
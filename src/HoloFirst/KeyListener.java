@@ -0,0 +1,33 @@
+package HoloFirst;
+
+import edu.wpi.first.wpilibj.tables.ITable;
+import edu.wpi.first.wpilibj.tables.ITableListener;
+
+/******************************************************************************
+ * 
+ * This class listens for changes to one key of a network table ITable,
+ * each change is reported to the NetTableToSocket application via the 
+ * setValue method with the slot of the key, so no lookup is needed.
+ * 
+ * The listener is registered for just its key, network table updates for
+ * keys that are not in any message are filtered out before they reach the 
+ * application.
+ * 
+ *****************************************************************************/
+class KeyListener implements ITableListener 
+{
+	private final NetTableToSocket my_app;
+	private final int slot;
+	
+	public KeyListener(NetTableToSocket app, int slot)
+	{
+		my_app = app;
+		this.slot = slot;
+	}
+	
+    @Override
+    public void valueChanged(final ITable source, final String key, final Object value, final boolean isNew) 
+    {
+        my_app.setValue(slot, value);
+    }
+}
@@ -0,0 +1,165 @@
+package HoloFirst;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/******************************************************************************
+ *
+ * A histogram of latencies in nanoseconds, in the style of HdrHistogram.
+ *
+ * Values below 64 have their own bucket, above that every power of two is
+ * split into 32 buckets, so any value is recorded with a precision of about
+ * 3% using a fixed array of counters. Recording is a single atomic increment
+ * (plus an update of the maximum when it grows), so it can be used from
+ * several threads on the hot path without locks.
+ *
+ *****************************************************************************/
+public class LatencyHistogram implements LatencyHistogramMBean
+{
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+	private static final int BUCKETS = ((64 - SUB_BITS) * HALF_COUNT) + SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong(0);
+	private final AtomicLong sum = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**************************************************************************
+	 *
+	 * Record one latency.
+	 *
+	 * @param value_ns the latency in nanoseconds, negative values are recorded as 0
+	 *
+	 *************************************************************************/
+	public void record(long value_ns)
+	{
+		if (value_ns < 0)
+		{
+			value_ns = 0;
+		}
+
+		counts.incrementAndGet(bucketOf(value_ns));
+		total.incrementAndGet();
+		sum.addAndGet(value_ns);
+
+		long m = max.get();
+		while ((value_ns > m) && ! max.compareAndSet(m, value_ns))
+		{
+			m = max.get();
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * @param fraction the fraction of values (0.0 - 1.0) at or below the result
+	 *
+	 * @return the value at the fraction in nanoseconds, 0 if nothing has been
+	 *         recorded
+	 *
+	 *************************************************************************/
+	public long getValueAt(double fraction)
+	{
+		long n = total.get();
+		if (n == 0)
+		{
+			return 0;
+		}
+
+		long target = Math.max(1, (long)Math.ceil(fraction * n));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= target)
+			{
+				return Math.min(valueOf(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	@Override
+	public long getCount()
+	{
+		return total.get();
+	}
+
+	public long getSumNanos()
+	{
+		return sum.get();
+	}
+
+	@Override
+	public double getMeanMicros()
+	{
+		long n = total.get();
+		return (n == 0) ? 0.0 : (sum.get() / (double)n) / 1000.0;
+	}
+
+	@Override
+	public double getP50Micros()
+	{
+		return getValueAt(0.5) / 1000.0;
+	}
+
+	@Override
+	public double getP90Micros()
+	{
+		return getValueAt(0.9) / 1000.0;
+	}
+
+	@Override
+	public double getP99Micros()
+	{
+		return getValueAt(0.99) / 1000.0;
+	}
+
+	@Override
+	public double getP999Micros()
+	{
+		return getValueAt(0.999) / 1000.0;
+	}
+
+	@Override
+	public double getMaxMicros()
+	{
+		return max.get() / 1000.0;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the bucket a value is counted in
+	 *
+	 *************************************************************************/
+	static int bucketOf(long value)
+	{
+		if (value < SUB_COUNT)
+		{
+			return (int)value;
+		}
+
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift * HALF_COUNT) + (int)(value >>> shift);
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the middle of the range of values counted in a bucket
+	 *
+	 *************************************************************************/
+	static long valueOf(int bucket)
+	{
+		if (bucket < SUB_COUNT)
+		{
+			return bucket;
+		}
+
+		int shift = (bucket / HALF_COUNT) - 1;
+		long low = (long)(bucket - (shift * HALF_COUNT)) << shift;
+		return low + ((1L << shift) >>> 1);
+	}
+}
@@ -0,0 +1,17 @@
+package HoloFirst;
+
+/******************************************************************************
+ *
+ * JMX view of a LatencyHistogram, all times are in microseconds.
+ *
+ *****************************************************************************/
+public interface LatencyHistogramMBean
+{
+	long getCount();
+	double getMeanMicros();
+	double getP50Micros();
+	double getP90Micros();
+	double getP99Micros();
+	double getP999Micros();
+	double getMaxMicros();
+}
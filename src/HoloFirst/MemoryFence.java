@@ -0,0 +1,85 @@
+package HoloFirst;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/******************************************************************************
+ *
+ * Memory fences for files that are mapped by more than one process (see
+ * SharedMemoryTransport and SharedMemoryReader).
+ *
+ * A volatile field of this process only orders the accesses of this process
+ * to the Java heap; the reads and writes of a mapped file need a fence of
+ * the processor, so another process that maps the file sees them in order
+ * on any processor, not only on x86.
+ *
+ * The fences of sun.misc.Unsafe are used, through method handles so the
+ * class compiles against the Java 8 API. A static final method handle is
+ * inlined by the JIT, so a fence costs no more than a direct call to
+ * Unsafe.
+ *
+ *****************************************************************************/
+final class MemoryFence
+{
+	private static final MethodHandle STORE_FENCE;
+	private static final MethodHandle LOAD_FENCE;
+
+	static
+	{
+		try
+		{
+			Class<?> unsafe_class = Class.forName("sun.misc.Unsafe");
+			Field field = unsafe_class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+
+			MethodType type = MethodType.methodType(void.class);
+			STORE_FENCE = MethodHandles.lookup().findVirtual(unsafe_class, "storeFence", type).bindTo(unsafe);
+			LOAD_FENCE = MethodHandles.lookup().findVirtual(unsafe_class, "loadFence", type).bindTo(unsafe);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private MemoryFence()
+	{
+	}
+
+	/**************************************************************************
+	 *
+	 * Every write before the fence is seen before any write after it.
+	 *
+	 *************************************************************************/
+	static void storeFence()
+	{
+		try
+		{
+			STORE_FENCE.invokeExact();
+		}
+		catch (Throwable e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Every read before the fence is done before any read after it.
+	 *
+	 *************************************************************************/
+	static void loadFence()
+	{
+		try
+		{
+			LOAD_FENCE.invokeExact();
+		}
+		catch (Throwable e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,468 @@
+package HoloFirst;
+
+import java.nio.ByteBuffer;
+
+import HoloFirst.NetTableToSocket.ValueType;
+
+/******************************************************************************
+ *
+ * This class reads messages built by a MessageEncoder with the same layout
+ * back into slot values.
+ *
+ * Both protocols are supported (see MessageEncoder for the layouts). The
+ * decoder keeps the last value of every slot, a delta message only changes
+ * the values it contains, and a batch message leaves the values of its last
+ * sample. After each message the slots it contained are marked as changed.
+ *
+ * The values are slot values of the layout (see MessageLayout), a string or
+ * array longer than its capacity in the layout makes the message invalid.
+ *
+ *****************************************************************************/
+public class MessageDecoder
+{
+	private final ValueType[] types;
+	private final byte[] sizes;
+	private final int[] bit_widths;
+	private final double[] scales;
+	private final double[] offsets;
+	private final int[] positions;
+	private final int[] capacities;
+	private final int bitmap_size;
+
+	private final long[] values;
+	private final boolean[] changed;
+
+	// the message is decoded into these, so a bad message leaves the
+	// values as they were
+	private final long[] msg_values;
+	private final boolean[] present;
+
+	private int message_id = -1;
+	private long capture_time = 0;
+	private int schema_version = 0;
+
+	private int partial = 0;
+	private int partial_bits = 0;
+
+	/**************************************************************************
+	 *
+	 * @param layout the layout of the messages to decode
+	 *
+	 *************************************************************************/
+	public MessageDecoder(MessageLayout layout)
+	{
+		int n = layout.getSize();
+
+		types = new ValueType[n];
+		sizes = new byte[n];
+		bit_widths = new int[n];
+		scales = new double[n];
+		offsets = new double[n];
+		positions = new int[n];
+		capacities = new int[n];
+
+		for (int i = 0; i < n; i++)
+		{
+			types[i] = layout.getType(i);
+			sizes[i] = (byte)MessageLayout.sizeOf(types[i]);
+			bit_widths[i] = layout.getBitWidth(i);
+			scales[i] = layout.getScale(i);
+			offsets[i] = layout.getOffset(i);
+			positions[i] = layout.getPosition(i);
+			capacities[i] = layout.getCapacity(i);
+		}
+
+		bitmap_size = (n + 7) / 8;
+		values = layout.createValues();
+		changed = new boolean[n];
+		msg_values = new long[values.length];
+		present = new boolean[n];
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the current slot values, the value of slot i is at
+	 *         MessageLayout.getPosition(i)
+	 *
+	 *************************************************************************/
+	public long[] getValues()
+	{
+		return values;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return true for each slot that was in the last message decoded
+	 *
+	 *************************************************************************/
+	public boolean[] getChanged()
+	{
+		return changed;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the message id of the last message, -1 if it had none
+	 *
+	 *************************************************************************/
+	public int getMessageId()
+	{
+		return message_id;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the capture time of the last message, microseconds since 1970,
+	 *         0 if it had none
+	 *
+	 *************************************************************************/
+	public long getCaptureTime()
+	{
+		return capture_time;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the schema version of the last message, 0 if it had none
+	 *
+	 *************************************************************************/
+	public int getSchemaVersion()
+	{
+		return schema_version;
+	}
+
+	/**************************************************************************
+	 *
+	 * Read the message id of a message without decoding it, so messages for
+	 * other layouts can be skipped.
+	 *
+	 * @param bb the message, from the position to the limit of the buffer
+	 *
+	 * @return the message id, -1 if the message has none
+	 *
+	 *************************************************************************/
+	public static int peekMessageId(ByteBuffer bb)
+	{
+		int start = bb.position();
+
+		if ((bb.remaining() <= MessageEncoder.EXTENDED_HEADER_SIZE) || (bb.getShort(start) != MessageEncoder.SYNC_EXTENDED) ||
+				((bb.get(start + 7) & MessageEncoder.FLAG_MESSAGE_ID) == 0))
+		{
+			return -1;
+		}
+
+		return bb.get(start + MessageEncoder.EXTENDED_HEADER_SIZE) & 0xFF;
+	}
+
+	/**************************************************************************
+	 *
+	 * Check if a message is a delta message without decoding it, so a
+	 * consumer that starts part way through a stream can skip to the next
+	 * keyframe.
+	 *
+	 * @param bb the message, from the position to the limit of the buffer
+	 *
+	 * @return true if the message is a protocol 2 delta message
+	 *
+	 *************************************************************************/
+	public static boolean peekDelta(ByteBuffer bb)
+	{
+		int start = bb.position();
+
+		return (bb.remaining() >= MessageEncoder.EXTENDED_HEADER_SIZE) && (bb.getShort(start) == MessageEncoder.SYNC_EXTENDED) &&
+				((bb.get(start + 7) & MessageEncoder.FLAG_DELTA) != 0);
+	}
+
+	/**************************************************************************
+	 *
+	 * Decode one message.
+	 *
+	 * @param bb the message, from the position to the limit of the buffer
+	 *
+	 * @return false if the buffer does not hold a valid message for this
+	 *         layout, the values are then unchanged
+	 *
+	 *************************************************************************/
+	public boolean decode(ByteBuffer bb)
+	{
+		int start = bb.position();
+		int length = bb.remaining();
+
+		if (length < MessageEncoder.HEADER_SIZE)
+		{
+			return false;
+		}
+
+		short sync = bb.getShort(start);
+		int size = bb.getShort(start + 4) & 0xFFFF;
+		if ((size < MessageEncoder.HEADER_SIZE) || (size > length) || ((sync != MessageEncoder.SYNC) && (sync != MessageEncoder.SYNC_EXTENDED)))
+		{
+			return false;
+		}
+
+		int limit = bb.limit();
+		bb.limit(start + size);
+		bb.position(start + MessageEncoder.HEADER_SIZE);
+
+		System.arraycopy(values, 0, msg_values, 0, values.length);
+		alignBits();
+
+		try
+		{
+			if (sync == MessageEncoder.SYNC)
+			{
+				message_id = -1;
+				capture_time = 0;
+				schema_version = 0;
+
+				getValues(bb, msg_values);
+				commit(false);
+			}
+			else
+			{
+				decodeExtended(bb);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			// truncated message or a different layout
+			bb.limit(limit);
+			bb.position(start);
+			return false;
+		}
+
+		bb.limit(limit);
+		bb.position(start + size);
+		return true;
+	}
+
+	/**************************************************************************
+	 *
+	 * Decode the rest of a protocol 2 message after the basic header.
+	 *
+	 *************************************************************************/
+	private void decodeExtended(ByteBuffer msg)
+	{
+		int version = msg.get();
+		int flags = msg.get() & 0xFF;
+
+		if (version != MessageEncoder.PROTOCOL_VERSION)
+		{
+			throw new IllegalArgumentException("unsupported protocol version " + version);
+		}
+
+		int id = -1;
+		if ((flags & MessageEncoder.FLAG_MESSAGE_ID) != 0)
+		{
+			id = msg.get() & 0xFF;
+		}
+
+		long time = 0;
+		if ((flags & MessageEncoder.FLAG_TIMESTAMP) != 0)
+		{
+			time = msg.getLong();
+			msg.getInt(); // sequence
+		}
+
+		int schema = 0;
+		if ((flags & MessageEncoder.FLAG_SCHEMA) != 0)
+		{
+			schema = msg.getShort() & 0xFFFF;
+		}
+
+		boolean delta = false;
+
+		if ((flags & MessageEncoder.FLAG_BATCH) != 0)
+		{
+			int count = msg.get() & 0xFF;
+			time = msg.getLong();
+
+			for (int i = 0; i < count; i++)
+			{
+				int offset = msg.getInt();
+				getValues(msg, msg_values);
+
+				if (i == count - 1)
+				{
+					time += offset;
+				}
+			}
+		}
+		else if ((flags & MessageEncoder.FLAG_DELTA) != 0)
+		{
+			int bitmap_pos = msg.position();
+			msg.position(bitmap_pos + bitmap_size);
+
+			delta = true;
+			for (int i = 0; i < present.length; i++)
+			{
+				present[i] = (msg.get(bitmap_pos + (i >> 3)) & (1 << (i & 7))) != 0;
+				if (present[i])
+				{
+					getValue(i, msg, msg_values);
+				}
+			}
+			alignBits();
+		}
+		else
+		{
+			getValues(msg, msg_values);
+		}
+
+		message_id = id;
+		capture_time = time;
+		schema_version = schema;
+		commit(delta);
+	}
+
+	private void commit(boolean delta)
+	{
+		for (int i = 0; i < changed.length; i++)
+		{
+			changed[i] = ! delta || present[i];
+		}
+		System.arraycopy(msg_values, 0, values, 0, values.length);
+	}
+
+	/**************************************************************************
+	 *
+	 * Read every value, as in a keyframe.
+	 *
+	 *************************************************************************/
+	private void getValues(ByteBuffer msg, long[] dst)
+	{
+		for (int i = 0; i < types.length; i++)
+		{
+			getValue(i, msg, dst);
+		}
+		alignBits();
+	}
+
+	private void getValue(int idx, ByteBuffer msg, long[] dst)
+	{
+		int pos = positions[idx];
+
+		if (bit_widths[idx] > 0)
+		{
+			dst[pos] = dequantize(idx, getBits(bit_widths[idx], msg));
+			return;
+		}
+
+		alignBits();
+
+		if (capacities[idx] > 0)
+		{
+			getData(idx, msg, dst);
+			return;
+		}
+
+		switch(sizes[idx])
+		{
+			case 8:	dst[pos] = msg.getLong();	break;
+			case 4:	dst[pos] = msg.getInt();	break;
+			case 2:	dst[pos] = msg.getShort();	break;
+			case 1:	dst[pos] = msg.get();		break;
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Read the length and elements of a string or array into the longs of
+	 * its slot.
+	 *
+	 *************************************************************************/
+	private void getData(int idx, ByteBuffer msg, long[] dst)
+	{
+		int pos = positions[idx];
+		int length = msg.getShort() & 0xFFFF;
+
+		if (length > capacities[idx])
+		{
+			throw new IllegalArgumentException("length " + length + " greater than the capacity of value " + idx);
+		}
+
+		dst[pos] = length;
+
+		if (types[idx] == ValueType.DOUBLE_ARRAY)
+		{
+			for (int i = 0; i < length; i++)
+			{
+				dst[pos + 1 + i] = msg.getLong();
+			}
+			return;
+		}
+
+		int full = length >> 3;
+		for (int i = 0; i < full; i++)
+		{
+			dst[pos + 1 + i] = msg.getLong();
+		}
+
+		if ((length & 7) != 0)
+		{
+			long last = 0;
+			for (int i = 0; i < 8; i++)
+			{
+				last = (last << 8) | ((i < (length & 7)) ? (msg.get() & 0xFF) : 0);
+			}
+			dst[pos + 1 + full] = last;
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Convert a fixed-point encoding back to the bits of a slot.
+	 *
+	 *************************************************************************/
+	private long dequantize(int idx, long q)
+	{
+		double v = (q * scales[idx]) + offsets[idx];
+
+		if ((types[idx] == ValueType.DOUBLE) || (types[idx] == ValueType.FLOAT))
+		{
+			return MessageLayout.fromDouble(types[idx], v);
+		}
+
+		return MessageLayout.fromLong(types[idx], Math.round(v));
+	}
+
+	/**************************************************************************
+	 *
+	 * Read bits from the bit stream, most significant first.
+	 *
+	 *************************************************************************/
+	private long getBits(int width, ByteBuffer msg)
+	{
+		long value = 0;
+
+		while (width > 0)
+		{
+			if (partial_bits == 0)
+			{
+				partial = msg.get() & 0xFF;
+				partial_bits = 8;
+			}
+
+			int n = Math.min(partial_bits, width);
+			int chunk = (partial >>> (partial_bits - n)) & ((1 << n) - 1);
+
+			value = (value << n) | chunk;
+			partial_bits -= n;
+			width -= n;
+		}
+
+		return value;
+	}
+
+	/**************************************************************************
+	 *
+	 * Skip the unused bits of a partly read byte, so the next value starts
+	 * on a byte boundary.
+	 *
+	 *************************************************************************/
+	private void alignBits()
+	{
+		partial = 0;
+		partial_bits = 0;
+	}
+}
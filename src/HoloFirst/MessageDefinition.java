@@ -0,0 +1,153 @@
+package HoloFirst;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import HoloFirst.NetTableToSocket.ValueType;
+
+/******************************************************************************
+ *
+ * This class holds one message tag of the configuration file.
+ *
+ * Every value is kept once in the ValueStore, a message is a layout of some
+ * of those values (the same value may be in more than one message) along
+ * with the store slot of each of its values. Each message can have its own
+ * send settings (for example rate or send_mode), which override the
+ * settings of the destinations it is sent to:
+ *
+ *    <message name="vision" id="1" rate="50" destinations="hud">
+ *        <value ... />
+ *    </message>
+ *
+ * The id is put in the header of every message (see MessageEncoder) so
+ * a consumer can tell the messages apart, -1 means no id.
+ *
+ *****************************************************************************/
+public class MessageDefinition
+{
+	private final String name;
+	private final int id;
+
+	private final MessageLayout layout = new MessageLayout();
+	private int[] store_slots = new int[0];
+
+	private final HashMap<String, String> settings = new HashMap<String, String>();
+	private String[] destinations = null;
+
+	/**************************************************************************
+	 *
+	 * @param name	the name of the message, used in log messages
+	 * @param id	the id put in each message header, -1 for none
+	 *
+	 *************************************************************************/
+	public MessageDefinition(String name, int id)
+	{
+		this.name = name;
+		this.id = id;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public int getId()
+	{
+		return id;
+	}
+
+	public MessageLayout getLayout()
+	{
+		return layout;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the ValueStore slot of each value in the layout
+	 *
+	 *************************************************************************/
+	public int[] getStoreSlots()
+	{
+		return store_slots;
+	}
+
+	/**************************************************************************
+	 *
+	 * Add a value to the end of the message.
+	 *
+	 * @param key			the name of the value
+	 * @param type			the type of the value
+	 * @param default_value a default value
+	 * @param capacity		the capacity of a string or array
+	 * @param store_slot	the slot of the value in the ValueStore
+	 *
+	 * @return the index of the value in the message layout, or -1 if the key
+	 *         is already in the message
+	 *
+	 *************************************************************************/
+	public int addValue(String key, ValueType type, Object default_value, int capacity, int store_slot)
+	{
+		int idx = layout.addValue(key, type, default_value, capacity);
+		if (idx >= 0)
+		{
+			store_slots = Arrays.copyOf(store_slots, idx + 1);
+			store_slots[idx] = store_slot;
+		}
+
+		return idx;
+	}
+
+	/**************************************************************************
+	 *
+	 * Override a destination setting for this message.
+	 *
+	 *************************************************************************/
+	public void setSetting(String name, String value)
+	{
+		settings.put(name, value);
+	}
+
+	/**************************************************************************
+	 *
+	 * @return a copy of a destination with the settings of this message applied
+	 *
+	 *************************************************************************/
+	public Destination applySettings(Destination dest)
+	{
+		return dest.derive(settings);
+	}
+
+	/**************************************************************************
+	 *
+	 * @param destinations the names of the destinations to send this message
+	 *                     to, null for all of them
+	 *
+	 *************************************************************************/
+	public void setDestinations(String[] destinations)
+	{
+		this.destinations = destinations;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return true if this message is sent to the destination
+	 *
+	 *************************************************************************/
+	public boolean sendsTo(Destination dest)
+	{
+		if (destinations == null)
+		{
+			return true;
+		}
+
+		for (String dest_name : destinations)
+		{
+			if (dest_name.equals(dest.name))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
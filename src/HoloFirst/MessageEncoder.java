@@ -0,0 +1,591 @@
+package HoloFirst;
+
+import java.nio.ByteBuffer;
+
+import HoloFirst.NetTableToSocket.ValueType;
+
+/******************************************************************************
+ *
+ * This class builds messages from the slot values of a MessageLayout.
+ *
+ * The layout is compiled once into the size of each slot, so encoding
+ * a message is a single pass that copies the already converted bits of
+ * each slot into the buffer without any boxing, type checks or allocation.
+ *
+ * Protocol 1 (the default) sends every value in every message:
+ *
+ *    start   length value
+ *    0       2      FAF3
+ *    2       2      message count, increments with each message
+ *    4       2      message size, total number of bytes
+ *    6       xx     data
+ *
+ * Protocol 2 uses a different sync pattern and an extended header. The
+ * flags say which optional parts follow the header:
+ *
+ *    start   length value
+ *    0       2      FAF5
+ *    2       2      message count, increments with each message
+ *    4       2      message size, total number of bytes
+ *    6       1      protocol version (2)
+ *    7       1      flags
+ *    8       xx     data
+ *
+ *    flag 0x01 DELTA - the data starts with a presence bitmap of one bit
+ *              per value (value 0 is the low bit of the first byte), only
+ *              the values with a bit set follow, in order. Without this
+ *              flag the message is a keyframe and contains every value.
+ *
+ *    flag 0x08 MESSAGE_ID - the header is extended by one byte, before
+ *              any other optional part:
+ *
+ *              8   1   message id, which message definition this is
+ *
+ *              the offsets of the parts below then move up by 1.
+ *
+ *    flag 0x04 TIMESTAMP - the header is extended, after the message id
+ *              and before any other optional part:
+ *
+ *              8   8   capture time, microseconds since 1970, when the
+ *                      values were read (the first sample of a batch)
+ *              16  4   sequence number, increments with each message
+ *
+ *              the offsets of the parts below then move up by 12.
+ *
+ *    flag 0x10 SCHEMA - the header is extended, after the timestamp and
+ *              before any other optional part:
+ *
+ *              8   2   schema version, changes each time the relay
+ *                      reloads its configuration
+ *
+ *              the offsets of the parts below then move up by 2. The flag
+ *              is only set once the configuration has been reloaded, and
+ *              the first message after a reload is a keyframe.
+ *
+ * Each message definition has its own message count, sequence number and
+ * keyframes.
+ *
+ *    flag 0x02 BATCH - the message holds several samples of every value:
+ *
+ *              8   1   number of samples
+ *              9   8   time of the first sample, microseconds since 1970
+ *              17  xx  the samples, each is
+ *                        4   time of the sample, microseconds after the
+ *                            first sample
+ *                        xx  every value, as in a keyframe, the sample
+ *                            ends on a byte boundary
+ *
+ * A keyframe is sent as the first message, every keyframe_interval messages
+ * and whenever one is requested (for example when a consumer connects).
+ *
+ * Values with a compact encoding (see MessageLayout.setEncoding()) are
+ * written as unsigned bit fields, most significant bit first, packed
+ * together with the packed values before and after them. A value that is
+ * not packed starts on the next byte boundary, and the unused bits of the
+ * last partly filled byte are zero.
+ *
+ * A string or array starts on a byte boundary with its length, followed by
+ * the elements:
+ *
+ *    length  value
+ *    2       the length, bytes of a string or elements of an array
+ *    xx      STRING          the UTF-8 bytes
+ *            DOUBLE_ARRAY    8 bytes for each element
+ *            BOOLEAN_ARRAY   1 byte for each element, 1 or 0
+ *
+ * A message is never larger than the size of its layout with every string
+ * and array at its capacity, see MessageLayout.getDataSize(), which must be
+ * at most MAX_MESSAGE_SIZE.
+ *
+ *****************************************************************************/
+public class MessageEncoder
+{
+	public static final short SYNC = (short)0xFAF3;
+	public static final short SYNC_EXTENDED = (short)0xFAF5;
+	public static final int HEADER_SIZE = 6;
+	public static final int EXTENDED_HEADER_SIZE = 8;
+
+	public static final byte PROTOCOL_VERSION = 2;
+
+	public static final int FLAG_DELTA = 0x01;
+	public static final int FLAG_BATCH = 0x02;
+	public static final int FLAG_TIMESTAMP = 0x04;
+	public static final int FLAG_MESSAGE_ID = 0x08;
+	public static final int FLAG_SCHEMA = 0x10;
+
+	public static final int TIMESTAMP_HEADER_SIZE = 12;
+	public static final int MESSAGE_ID_SIZE = 1;
+	public static final int SCHEMA_VERSION_SIZE = 2;
+	public static final int MAX_MESSAGE_ID = 255;
+
+	// the largest UDP datagram, within the 16 bit message size
+	public static final int MAX_MESSAGE_SIZE = 65507;
+
+	public static final int BATCH_HEADER_SIZE = 9;
+	public static final int SAMPLE_HEADER_SIZE = 4;
+	public static final int MAX_BATCH_SAMPLES = 255;
+
+	private final byte[] sizes;
+	private final int[] positions;
+	private final byte[] element_sizes;
+	private final int bitmap_size;
+
+	private final ValueType[] types;
+	private final int[] bit_widths;
+	private final double[] inv_scales;
+	private final double[] offsets;
+
+	private int partial = 0;
+	private int partial_bits = 0;
+
+	private short msg_count = 0;
+	private int sequence = 0;
+	private boolean timestamps = false;
+	private int message_id = -1;
+	private int schema_version = 0;
+
+	private int protocol = 1;
+	private int keyframe_interval = 0;
+	private int frames_since_keyframe = 0;
+	private boolean keyframe_requested = true;
+	private final long[] last_values;
+
+	/**************************************************************************
+	 *
+	 * @param layout the layout of the messages to encode
+	 *
+	 *************************************************************************/
+	public MessageEncoder(MessageLayout layout)
+	{
+		sizes = new byte[layout.getSize()];
+		positions = new int[sizes.length];
+		element_sizes = new byte[sizes.length];
+		types = new ValueType[sizes.length];
+		bit_widths = new int[sizes.length];
+		inv_scales = new double[sizes.length];
+		offsets = new double[sizes.length];
+
+		for (int i = 0; i < sizes.length; i++)
+		{
+			sizes[i] = (byte)MessageLayout.sizeOf(layout.getType(i));
+			positions[i] = layout.getPosition(i);
+			element_sizes[i] = (byte)((layout.getCapacity(i) > 0) ? MessageLayout.elementSize(layout.getType(i)) : 0);
+			types[i] = layout.getType(i);
+			bit_widths[i] = layout.getBitWidth(i);
+			inv_scales[i] = 1.0 / layout.getScale(i);
+			offsets[i] = layout.getOffset(i);
+		}
+
+		bitmap_size = (sizes.length + 7) / 8;
+		last_values = new long[layout.getValueCount()];
+	}
+
+	/**************************************************************************
+	 *
+	 * Select the protocol of the messages.
+	 *
+	 * @param protocol			1 for full messages, 2 for delta messages
+	 * @param keyframe_interval	for protocol 2, the number of messages between
+	 *                          keyframes, 0 to only send requested keyframes
+	 *
+	 *************************************************************************/
+	public void setProtocol(int protocol, int keyframe_interval)
+	{
+		this.protocol = protocol;
+		this.keyframe_interval = keyframe_interval;
+		this.keyframe_requested = true;
+	}
+
+	/**************************************************************************
+	 *
+	 * Put a capture time and 32 bit sequence number in every protocol 2
+	 * message.
+	 *
+	 *************************************************************************/
+	public void setTimestamps(boolean timestamps)
+	{
+		this.timestamps = timestamps;
+	}
+
+	/**************************************************************************
+	 *
+	 * Put a message id in every protocol 2 message.
+	 *
+	 * @param message_id the id (0 to 255), -1 for none
+	 *
+	 *************************************************************************/
+	public void setMessageId(int message_id)
+	{
+		this.message_id = message_id;
+	}
+
+	/**************************************************************************
+	 *
+	 * Put a schema version in every protocol 2 message.
+	 *
+	 * @param schema_version the version (1 to 65535), 0 for none
+	 *
+	 *************************************************************************/
+	public void setSchemaVersion(int schema_version)
+	{
+		this.schema_version = schema_version;
+	}
+
+	/**************************************************************************
+	 *
+	 * Carry on the message count and sequence number of the encoder this one
+	 * replaces, so a consumer sees no gap when the configuration is
+	 * reloaded.
+	 *
+	 *************************************************************************/
+	public void continueFrom(MessageEncoder previous)
+	{
+		msg_count = previous.msg_count;
+		sequence = previous.sequence;
+	}
+
+	/**************************************************************************
+	 *
+	 * Make the next message a keyframe.
+	 *
+	 *************************************************************************/
+	public void requestKeyframe()
+	{
+		keyframe_requested = true;
+	}
+
+	/**************************************************************************
+	 *
+	 * Build a message at the start of the buffer.
+	 *
+	 * @param values	the slot values, as created by MessageLayout.createValues()
+	 * @param bb		the buffer to put the message in
+	 *
+	 * @return the total number of bytes in the message
+	 *
+	 *************************************************************************/
+	public int encode(long[] values, ByteBuffer bb)
+	{
+		return encode(values, RelayClock.nowMicros(), bb);
+	}
+
+	/**************************************************************************
+	 *
+	 * Build a message at the start of the buffer.
+	 *
+	 * @param values		the slot values, as created by MessageLayout.createValues()
+	 * @param capture_time	when the values were read, microseconds since 1970
+	 * @param bb			the buffer to put the message in
+	 *
+	 * @return the total number of bytes in the message
+	 *
+	 *************************************************************************/
+	public int encode(long[] values, long capture_time, ByteBuffer bb)
+	{
+		bb.clear();
+
+		// Put in at least a two byte sync pattern
+		bb.putShort((protocol == 1) ? SYNC : SYNC_EXTENDED);
+
+		// Put in a message counter
+		bb.putShort(msg_count++);
+
+		// Save space for message length
+		bb.putShort((short)0);
+
+		if (protocol == 1)
+		{
+			putValues(values, bb);
+		}
+		else
+		{
+			boolean keyframe = keyframe_requested ||
+					((keyframe_interval > 0) && (frames_since_keyframe >= keyframe_interval));
+
+			bb.put(PROTOCOL_VERSION);
+			bb.put((byte)((keyframe ? 0 : FLAG_DELTA) | headerFlags()));
+			putHeader(capture_time, bb);
+
+			if (keyframe)
+			{
+				putValues(values, bb);
+
+				keyframe_requested = false;
+				frames_since_keyframe = 1;
+			}
+			else
+			{
+				putChangedValues(values, bb);
+
+				frames_since_keyframe++;
+			}
+
+			System.arraycopy(values, 0, last_values, 0, values.length);
+		}
+
+		flushBits(bb);
+
+		// Put in the message length
+		int size = bb.position();
+		bb.putShort(4, (short)size);
+
+		return size;
+	}
+
+	/**************************************************************************
+	 *
+	 * Build a protocol 2 batch message at the start of the buffer.
+	 *
+	 * @param samples		the slot values of each sample
+	 * @param sample_times	the time of each sample, microseconds since 1970
+	 * @param count			the number of samples to put in the message
+	 * @param bb			the buffer to put the message in
+	 *
+	 * @return the total number of bytes in the message
+	 *
+	 *************************************************************************/
+	public int encodeBatch(long[][] samples, long[] sample_times, int count, ByteBuffer bb)
+	{
+		bb.clear();
+
+		bb.putShort(SYNC_EXTENDED);
+		bb.putShort(msg_count++);
+		bb.putShort((short)0);
+		bb.put(PROTOCOL_VERSION);
+		bb.put((byte)(FLAG_BATCH | headerFlags()));
+		putHeader(sample_times[0], bb);
+
+		bb.put((byte)count);
+		bb.putLong(sample_times[0]);
+
+		for (int i = 0; i < count; i++)
+		{
+			bb.putInt((int)(sample_times[i] - sample_times[0]));
+			putValues(samples[i], bb);
+			flushBits(bb);
+		}
+
+		int size = bb.position();
+		bb.putShort(4, (short)size);
+
+		return size;
+	}
+
+	private int headerFlags()
+	{
+		return (timestamps ? FLAG_TIMESTAMP : 0) | ((message_id >= 0) ? FLAG_MESSAGE_ID : 0) | ((schema_version > 0) ? FLAG_SCHEMA : 0);
+	}
+
+	/**************************************************************************
+	 *
+	 * Put the message id, capture time and sequence number in the buffer if
+	 * they are enabled.
+	 *
+	 *************************************************************************/
+	private void putHeader(long capture_time, ByteBuffer bb)
+	{
+		if (message_id >= 0)
+		{
+			bb.put((byte)message_id);
+		}
+
+		if (timestamps)
+		{
+			bb.putLong(capture_time);
+			bb.putInt(sequence++);
+		}
+
+		if (schema_version > 0)
+		{
+			bb.putShort((short)schema_version);
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Put every value in the buffer.
+	 *
+	 *************************************************************************/
+	private void putValues(long[] values, ByteBuffer bb)
+	{
+		for (int i = 0; i < sizes.length; i++)
+		{
+			putValue(i, values, bb);
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Put the presence bitmap and the values that changed since the last
+	 * message in the buffer.
+	 *
+	 *************************************************************************/
+	private void putChangedValues(long[] values, ByteBuffer bb)
+	{
+		int bitmap_pos = bb.position();
+		for (int i = 0; i < bitmap_size; i++)
+		{
+			bb.put((byte)0);
+		}
+
+		for (int i = 0; i < sizes.length; i++)
+		{
+			if (changed(i, values))
+			{
+				int pos = bitmap_pos + (i >> 3);
+				bb.put(pos, (byte)(bb.get(pos) | (1 << (i & 7))));
+
+				putValue(i, values, bb);
+			}
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * @return true if a value is different from the last message, for a
+	 *         string or array the length or any element
+	 *
+	 *************************************************************************/
+	private boolean changed(int idx, long[] values)
+	{
+		int pos = positions[idx];
+		if (values[pos] != last_values[pos])
+		{
+			return true;
+		}
+
+		if (element_sizes[idx] > 0)
+		{
+			int end = pos + 1 + MessageLayout.dataLongs(types[idx], (int)values[pos]);
+			for (int i = pos + 1; i < end; i++)
+			{
+				if (values[i] != last_values[i])
+				{
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private void putValue(int idx, long[] values, ByteBuffer bb)
+	{
+		if (element_sizes[idx] > 0)
+		{
+			putData(idx, values, bb);
+			return;
+		}
+
+		long value = values[positions[idx]];
+
+		if (bit_widths[idx] > 0)
+		{
+			putBits(quantize(idx, value), bit_widths[idx], bb);
+			return;
+		}
+
+		flushBits(bb);
+
+		switch(sizes[idx])
+		{
+			case 8:	bb.putLong(value); 				break;
+			case 4:	bb.putInt((int)value); 			break;
+			case 2:	bb.putShort((short)value); 		break;
+			case 1:	bb.put((byte)value); 			break;
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Put the length and elements of a string or array in the buffer, the
+	 * elements are copied straight from the longs of the slot.
+	 *
+	 *************************************************************************/
+	private void putData(int idx, long[] values, ByteBuffer bb)
+	{
+		flushBits(bb);
+
+		int pos = positions[idx] + 1;
+		int length = (int)values[pos - 1];
+
+		bb.putShort((short)length);
+
+		if (element_sizes[idx] == 8)
+		{
+			for (int i = 0; i < length; i++)
+			{
+				bb.putLong(values[pos + i]);
+			}
+			return;
+		}
+
+		int full = length >> 3;
+		for (int i = 0; i < full; i++)
+		{
+			bb.putLong(values[pos + i]);
+		}
+
+		for (int i = 0; i < (length & 7); i++)
+		{
+			bb.put((byte)(values[pos + full] >>> (56 - (i * 8))));
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Convert the bits of a slot to its fixed-point encoding.
+	 *
+	 *************************************************************************/
+	private long quantize(int idx, long value)
+	{
+		double v = ((types[idx] == ValueType.DOUBLE) || (types[idx] == ValueType.FLOAT)) ?
+				MessageLayout.toDouble(types[idx], value) : (double)value;
+
+		long q = Math.round((v - offsets[idx]) * inv_scales[idx]);
+		long max = (1L << bit_widths[idx]) - 1;
+
+		return (q < 0) ? 0 : ((q > max) ? max : q);
+	}
+
+	/**************************************************************************
+	 *
+	 * Add the low bits of a value to the bit stream, most significant first.
+	 *
+	 *************************************************************************/
+	private void putBits(long value, int width, ByteBuffer bb)
+	{
+		while (width > 0)
+		{
+			int n = Math.min(8 - partial_bits, width);
+			int chunk = (int)((value >>> (width - n)) & ((1 << n) - 1));
+
+			partial = (partial << n) | chunk;
+			partial_bits += n;
+			width -= n;
+
+			if (partial_bits == 8)
+			{
+				bb.put((byte)partial);
+				partial = 0;
+				partial_bits = 0;
+			}
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Write any partly filled byte of the bit stream, so the next value
+	 * starts on a byte boundary.
+	 *
+	 *************************************************************************/
+	private void flushBits(ByteBuffer bb)
+	{
+		if (partial_bits > 0)
+		{
+			bb.put((byte)(partial << (8 - partial_bits)));
+			partial = 0;
+			partial_bits = 0;
+		}
+	}
+}
@@ -0,0 +1,679 @@
+package HoloFirst;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import HoloFirst.NetTableToSocket.ValueType;
+
+/******************************************************************************
+ *
+ * This class holds the layout of a message as defined by the message tag in
+ * the configuration file.
+ *
+ * Each value in the message is given a slot index when it is added. Values
+ * are stored as primitive bits (a long per slot) that already have the
+ * conversion to the slot type applied, so building a message only needs to
+ * copy the bits into the buffer.
+ *
+ *    type      bits
+ *    DOUBLE    Double.doubleToRawLongBits
+ *    FLOAT     Float.floatToRawIntBits
+ *    LONG      the value
+ *    INT       the value
+ *    SHORT     the value
+ *    BOOLEAN   1 or 0
+ *
+ * A value can also be given a compact encoding, see setEncoding().
+ *
+ * Strings and arrays are variable length values with a capacity (the most
+ * bytes of a string or elements of an array) fixed when they are added.
+ * They take a range of longs in the slot values, sized for the capacity, so
+ * the values of a layout are still one preallocated long array:
+ *
+ *    long      value
+ *    0         the length, bytes of a string or elements of an array
+ *    1..n      STRING          the UTF-8 bytes, 8 to a long, first byte in
+ *                              the high bits
+ *              DOUBLE_ARRAY    Double.doubleToRawLongBits of each element
+ *              BOOLEAN_ARRAY   1 or 0 bytes, 8 to a long as for a string
+ *
+ * getPosition() gives the index of the first long of a slot. Data longer
+ * than the capacity is truncated, an array to its first elements and a
+ * string to its longest start that fits without splitting a character.
+ *
+ *****************************************************************************/
+public class MessageLayout
+{
+	// the length of a string or array in a message, and the largest capacity
+	public static final int LENGTH_SIZE = 2;
+	public static final int MAX_CAPACITY = 0xFFFF;
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private HashMap<String, Integer> slot_map = new HashMap<String, Integer>();
+
+	private ValueType[] types = new ValueType[0];
+	private String[] keys = new String[0];
+	private long[] defaults = new long[0];
+	private int[] bit_widths = new int[0];
+	private double[] scales = new double[0];
+	private double[] offsets = new double[0];
+	private int[] capacities = new int[0];
+	private int[] positions = new int[0];
+	private int value_count = 0;
+
+	/**************************************************************************
+	 *
+	 * Add a value to the end of the layout, a string or array has the
+	 * DEFAULT_CAPACITY.
+	 *
+	 * @param key			the name of the value as it will be in the network table
+	 * @param type			the type of the value
+	 * @param default_value a default value
+	 *
+	 * @return the slot index of the value, or -1 if the key is a duplicate
+	 *         or the default value cannot be converted
+	 *
+	 *************************************************************************/
+	public int addValue(String key, ValueType type, Object default_value)
+	{
+		return addValue(key, type, default_value, DEFAULT_CAPACITY);
+	}
+
+	/**************************************************************************
+	 *
+	 * Add a value to the end of the layout.
+	 *
+	 * @param key			the name of the value as it will be in the network table
+	 * @param type			the type of the value
+	 * @param default_value a default value
+	 * @param capacity		for a string the most bytes, for an array the most
+	 *                      elements (1 to MAX_CAPACITY), not used for other types
+	 *
+	 * @return the slot index of the value, or -1 if the key is a duplicate
+	 *         or the default value cannot be converted
+	 *
+	 *************************************************************************/
+	public int addValue(String key, ValueType type, Object default_value, int capacity)
+	{
+		if (slot_map.containsKey(key))
+		{
+			return -1;
+		}
+
+		if (! isVariable(type))
+		{
+			capacity = 0;
+		}
+		else if ((capacity < 1) || (capacity > MAX_CAPACITY))
+		{
+			return -1;
+		}
+
+		int length = 1 + dataLongs(type, capacity);
+		long[] default_values = Arrays.copyOf(defaults, value_count + length);
+		try
+		{
+			if (capacity > 0)
+			{
+				toData(type, default_value, capacity, default_values, value_count);
+			}
+			else
+			{
+				default_values[value_count] = toBits(type, default_value);
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			return -1;
+		}
+
+		int idx = types.length;
+
+		types = Arrays.copyOf(types, idx + 1);
+		keys = Arrays.copyOf(keys, idx + 1);
+		bit_widths = Arrays.copyOf(bit_widths, idx + 1);
+		scales = Arrays.copyOf(scales, idx + 1);
+		offsets = Arrays.copyOf(offsets, idx + 1);
+		capacities = Arrays.copyOf(capacities, idx + 1);
+		positions = Arrays.copyOf(positions, idx + 1);
+
+		types[idx] = type;
+		keys[idx] = key;
+		scales[idx] = 1.0;
+		capacities[idx] = capacity;
+		positions[idx] = value_count;
+
+		defaults = default_values;
+		value_count += length;
+
+		slot_map.put(key, idx);
+
+		return idx;
+	}
+
+	/**************************************************************************
+	 *
+	 * Give a value a compact, bit packed encoding. Instead of the full size
+	 * of its type, the value is sent as an unsigned fixed-point number of
+	 * the given number of bits:
+	 *
+	 *    encoded = round((value - offset) / scale), limited to 0 .. 2^bits-1
+	 *    value   = encoded * scale + offset
+	 *
+	 * A boolean with 1 bit (and the default scale and offset) is a single
+	 * bit flag.
+	 *
+	 * @param idx		the slot index
+	 * @param bits		the number of bits (1 to 32), 0 for the full size of the type
+	 * @param scale		the resolution of the encoded value
+	 * @param offset	the value sent as 0
+	 *
+	 * @throws IllegalArgumentException if the bits or scale are not valid
+	 *
+	 *************************************************************************/
+	public void setEncoding(int idx, int bits, double scale, double offset)
+	{
+		if (isVariable(types[idx]) && (bits != 0))
+		{
+			throw new IllegalArgumentException("a " + types[idx] + " cannot be packed");
+		}
+
+		if ((bits < 0) || (bits > 32))
+		{
+			throw new IllegalArgumentException("bits must be 0 to 32");
+		}
+
+		if ((scale == 0.0) || Double.isNaN(scale) || Double.isInfinite(scale))
+		{
+			throw new IllegalArgumentException("invalid scale " + scale);
+		}
+
+		bit_widths[idx] = bits;
+		scales[idx] = scale;
+		offsets[idx] = offset;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the slot index for the key, or -1 if the key is not in the layout
+	 *
+	 *************************************************************************/
+	public int getSlot(String key)
+	{
+		Integer idx = slot_map.get(key);
+		return (idx == null) ? -1 : idx.intValue();
+	}
+
+	public int getSize()
+	{
+		return types.length;
+	}
+
+	public ValueType getType(int idx)
+	{
+		return types[idx];
+	}
+
+	public String getKey(int idx)
+	{
+		return keys[idx];
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the default bits of a value that is not a string or array
+	 *
+	 *************************************************************************/
+	public long getDefault(int idx)
+	{
+		return defaults[positions[idx]];
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the capacity of a string or array, 0 for other types
+	 *
+	 *************************************************************************/
+	public int getCapacity(int idx)
+	{
+		return capacities[idx];
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the index of the first long of a slot in the slot values
+	 *
+	 *************************************************************************/
+	public int getPosition(int idx)
+	{
+		return positions[idx];
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of longs a slot takes in the slot values
+	 *
+	 *************************************************************************/
+	public int getLength(int idx)
+	{
+		return (capacities[idx] > 0) ? (1 + dataLongs(types[idx], capacities[idx])) : 1;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of longs in the slot values of the layout
+	 *
+	 *************************************************************************/
+	public int getValueCount()
+	{
+		return value_count;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of bits for a packed value, 0 if the value is not packed
+	 *
+	 *************************************************************************/
+	public int getBitWidth(int idx)
+	{
+		return bit_widths[idx];
+	}
+
+	public double getScale(int idx)
+	{
+		return scales[idx];
+	}
+
+	public double getOffset(int idx)
+	{
+		return offsets[idx];
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of data bytes (not including the header) in a message,
+	 *         the most when the layout has strings or arrays
+	 *
+	 *************************************************************************/
+	public int getDataSize()
+	{
+		// packed values share bytes, a value that is not packed starts
+		// on a byte boundary
+		int bits = 0;
+		for (int i = 0; i < types.length; i++)
+		{
+			if (bit_widths[i] > 0)
+			{
+				bits += bit_widths[i];
+			}
+			else if (capacities[i] > 0)
+			{
+				bits = ((bits + 7) & ~7) + ((LENGTH_SIZE + (capacities[i] * elementSize(types[i]))) * 8);
+			}
+			else
+			{
+				bits = ((bits + 7) & ~7) + (sizeOf(types[i]) * 8);
+			}
+		}
+
+		return (bits + 7) / 8;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return a new array of slot values set to the defaults, getValueCount()
+	 *         longs
+	 *
+	 *************************************************************************/
+	public long[] createValues()
+	{
+		return defaults.clone();
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of bytes used by a value of the given type, 0 for a
+	 *         string or array
+	 *
+	 *************************************************************************/
+	public static int sizeOf(ValueType type)
+	{
+		switch(type)
+		{
+			case DOUBLE:	return 8;
+			case LONG:		return 8;
+			case FLOAT:		return 4;
+			case INT:		return 4;
+			case SHORT:		return 2;
+			case BOOLEAN:	return 1;
+		}
+
+		return 0;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return true for the types with a variable length, strings and arrays
+	 *
+	 *************************************************************************/
+	public static boolean isVariable(ValueType type)
+	{
+		return (type == ValueType.STRING) || (type == ValueType.DOUBLE_ARRAY) || (type == ValueType.BOOLEAN_ARRAY);
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of bytes used by each byte of a string or element of
+	 *         an array
+	 *
+	 *************************************************************************/
+	public static int elementSize(ValueType type)
+	{
+		return (type == ValueType.DOUBLE_ARRAY) ? 8 : 1;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of longs holding the data of a string or array of
+	 *         the given length, not including the length
+	 *
+	 *************************************************************************/
+	public static int dataLongs(ValueType type, int length)
+	{
+		return (type == ValueType.DOUBLE_ARRAY) ? length : ((length + 7) >> 3);
+	}
+
+	/**************************************************************************
+	 *
+	 * Convert a string or array received from the network table to the longs
+	 * stored in a slot (see above). Nothing is allocated, the elements of an
+	 * array are copied straight from it.
+	 *
+	 * @param type		the type of the slot
+	 * @param value		a String, double[] or boolean[] (or an array of boxed
+	 *                  values)
+	 * @param capacity	the capacity of the slot
+	 * @param dst		the longs to fill, from the length up to the end of the
+	 *                  data, the rest of the slot is not changed
+	 * @param pos		the position of the slot
+	 *
+	 * @return true if the value was truncated to the capacity
+	 *
+	 * @throws IllegalArgumentException if the value cannot be converted
+	 *
+	 *************************************************************************/
+	public static boolean toData(ValueType type, Object value, int capacity, long[] dst, int pos)
+	{
+		if ((type == ValueType.STRING) && (value instanceof String))
+		{
+			return putString((String)value, capacity, dst, pos);
+		}
+
+		if ((type == ValueType.DOUBLE_ARRAY) && (value instanceof double[]))
+		{
+			double[] a = (double[])value;
+			int n = Math.min(a.length, capacity);
+
+			dst[pos] = n;
+			for (int i = 0; i < n; i++)
+			{
+				dst[pos + 1 + i] = Double.doubleToRawLongBits(a[i]);
+			}
+			return n < a.length;
+		}
+
+		if ((type == ValueType.BOOLEAN_ARRAY) && (value instanceof boolean[]))
+		{
+			boolean[] a = (boolean[])value;
+			int n = Math.min(a.length, capacity);
+
+			dst[pos] = n;
+			for (int i = 0; i < n; i += 8)
+			{
+				long bytes = 0;
+				for (int j = 0; j < 8; j++)
+				{
+					bytes = (bytes << 8) | (((i + j < n) && a[i + j]) ? 1 : 0);
+				}
+				dst[pos + 1 + (i >> 3)] = bytes;
+			}
+			return n < a.length;
+		}
+
+		if ((type != ValueType.STRING) && (value instanceof Object[]))
+		{
+			// the older network table calls box the elements
+			Object[] a = (Object[])value;
+			int n = Math.min(a.length, capacity);
+
+			dst[pos] = n;
+			for (int i = 0; i < dataLongs(type, n); i++)
+			{
+				dst[pos + 1 + i] = 0;
+			}
+			for (int i = 0; i < n; i++)
+			{
+				if (type == ValueType.DOUBLE_ARRAY)
+				{
+					dst[pos + 1 + i] = toBits(ValueType.DOUBLE, a[i]);
+				}
+				else
+				{
+					dst[pos + 1 + (i >> 3)] |= toBits(ValueType.BOOLEAN, a[i]) << (56 - ((i & 7) * 8));
+				}
+			}
+			return n < a.length;
+		}
+
+		throw new IllegalArgumentException("unsupported data conversion from " +
+				((value == null) ? "null" : value.getClass().getSimpleName()) + " to " + type);
+	}
+
+	/**************************************************************************
+	 *
+	 * Put the UTF-8 bytes of a string in the longs of a slot. A character
+	 * that does not fit in the capacity is left out along with the rest of
+	 * the string, so a truncated string is always the same valid UTF-8. A
+	 * surrogate without its pair has no UTF-8 encoding, it is sent as '?'
+	 * as String.getBytes() does.
+	 *
+	 *************************************************************************/
+	private static boolean putString(String s, int capacity, long[] dst, int pos)
+	{
+		int n = 0;
+		long bytes = 0;
+		boolean truncated = false;
+
+		for (int i = 0; i < s.length(); i++)
+		{
+			int c = s.codePointAt(i);
+			if ((c < 0x10000) && Character.isSurrogate((char)c))
+			{
+				c = '?';
+			}
+
+			int size = (c < 0x80) ? 1 : ((c < 0x800) ? 2 : ((c < 0x10000) ? 3 : 4));
+			if (n + size > capacity)
+			{
+				truncated = true;
+				break;
+			}
+
+			if (size == 1)
+			{
+				bytes = putByte(bytes, c, n++, dst, pos);
+			}
+			else
+			{
+				int lead = (size == 2) ? 0xC0 : ((size == 3) ? 0xE0 : 0xF0);
+				bytes = putByte(bytes, lead | (c >> (6 * (size - 1))), n++, dst, pos);
+				for (int j = size - 2; j >= 0; j--)
+				{
+					bytes = putByte(bytes, 0x80 | ((c >> (6 * j)) & 0x3F), n++, dst, pos);
+				}
+			}
+
+			if (c >= 0x10000)
+			{
+				i++; // the low surrogate
+			}
+		}
+
+		if ((n & 7) != 0)
+		{
+			dst[pos + 1 + (n >> 3)] = bytes << (8 * (8 - (n & 7)));
+		}
+		dst[pos] = n;
+
+		return truncated;
+	}
+
+	private static long putByte(long bytes, int b, int n, long[] dst, int pos)
+	{
+		bytes = (bytes << 8) | (b & 0xFF);
+		if ((n & 7) == 7)
+		{
+			dst[pos + 1 + (n >> 3)] = bytes;
+			return 0;
+		}
+		return bytes;
+	}
+
+	/**************************************************************************
+	 *
+	 * Convert a value received from the network table to the bits stored in
+	 * a slot of the given type.
+	 *
+	 * @param type	the type of the slot
+	 * @param value the value, a Number or a Boolean
+	 *
+	 * @throws IllegalArgumentException if the value cannot be converted
+	 *
+	 *************************************************************************/
+	public static long toBits(ValueType type, Object value)
+	{
+		if (value instanceof Boolean)
+		{
+			return fromLong(type, ((Boolean)value).booleanValue() ? 1 : 0);
+		}
+
+		if ((value instanceof Double) || (value instanceof Float))
+		{
+			return fromDouble(type, ((Number)value).doubleValue());
+		}
+
+		if (value instanceof Number)
+		{
+			return fromLong(type, ((Number)value).longValue());
+		}
+
+		throw new IllegalArgumentException("unsupported data conversion from " +
+				((value == null) ? "null" : value.getClass().getSimpleName()) + " to " + type);
+	}
+
+	/**************************************************************************
+	 *
+	 * Convert a floating point value to the bits stored in a slot of the
+	 * given type.
+	 *
+	 *************************************************************************/
+	public static long fromDouble(ValueType type, double v)
+	{
+		switch(type)
+		{
+			case DOUBLE:	return Double.doubleToRawLongBits(v);
+			case FLOAT:		return Float.floatToRawIntBits((float)v);
+			case LONG:		return (long)v;
+			case INT:		return (int)v;
+			case SHORT:		return (short)v;
+			case BOOLEAN:	return (v > 0) ? 1 : 0;
+		}
+
+		return 0;
+	}
+
+	/**************************************************************************
+	 *
+	 * Convert an integer value to the bits stored in a slot of the given type.
+	 *
+	 *************************************************************************/
+	public static long fromLong(ValueType type, long v)
+	{
+		switch(type)
+		{
+			case DOUBLE:	return Double.doubleToRawLongBits((double)v);
+			case FLOAT:		return Float.floatToRawIntBits((float)v);
+			case LONG:		return v;
+			case INT:		return (int)v;
+			case SHORT:		return (short)v;
+			case BOOLEAN:	return (v > 0) ? 1 : 0;
+		}
+
+		return 0;
+	}
+
+	/**************************************************************************
+	 *
+	 * Convert the bits stored in a slot of the given type to a double.
+	 *
+	 *************************************************************************/
+	public static double toDouble(ValueType type, long bits)
+	{
+		switch(type)
+		{
+			case DOUBLE:	return Double.longBitsToDouble(bits);
+			case FLOAT:		return Float.intBitsToFloat((int)bits);
+			default:		return (double)bits;
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Convert the slot values of a value back to the object the network
+	 * table library takes: a Double for any number, a Boolean, a String, a
+	 * double[] or a boolean[].
+	 *
+	 * @param type		the type of the slot
+	 * @param values	the slot values
+	 * @param pos		the position of the slot in the values
+	 *
+	 *************************************************************************/
+	public static Object toObject(ValueType type, long[] values, int pos)
+	{
+		switch(type)
+		{
+			case BOOLEAN:
+				return Boolean.valueOf(values[pos] != 0);
+			case STRING:
+			{
+				byte[] bytes = new byte[(int)values[pos]];
+				for (int i = 0; i < bytes.length; i++)
+				{
+					bytes[i] = (byte)(values[pos + 1 + (i >> 3)] >>> (56 - ((i & 7) * 8)));
+				}
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+			case DOUBLE_ARRAY:
+			{
+				double[] a = new double[(int)values[pos]];
+				for (int i = 0; i < a.length; i++)
+				{
+					a[i] = Double.longBitsToDouble(values[pos + 1 + i]);
+				}
+				return a;
+			}
+			case BOOLEAN_ARRAY:
+			{
+				boolean[] a = new boolean[(int)values[pos]];
+				for (int i = 0; i < a.length; i++)
+				{
+					a[i] = ((values[pos + 1 + (i >> 3)] >>> (56 - ((i & 7) * 8))) & 0xFF) != 0;
+				}
+				return a;
+			}
+			default:
+				return Double.valueOf(toDouble(type, values[pos]));
+		}
+	}
+}
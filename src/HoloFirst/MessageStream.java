@@ -0,0 +1,285 @@
+package HoloFirst;
+
+import java.nio.ByteBuffer;
+
+/******************************************************************************
+ *
+ * A MessageStream builds the messages of one message definition for one
+ * destination.
+ *
+ * Each stream has its own encoder, send trigger and copy of the values, so
+ * every message definition keeps its own rate, message count and keyframes,
+ * and a narrow high rate message never waits for the values of a wide one.
+ * The SenderPipeline of the destination owns the buffer and the transport.
+ *
+ * In batch mode the values are sampled into a preallocated ring of samples
+ * at the sample rate, and each time the ring is full the samples are sent in
+ * a single batch message.
+ *
+ *****************************************************************************/
+public class MessageStream
+{
+	private final MessageDefinition message;
+	private final ValueStore store;
+	private final int[] store_slots;
+	private final MessageEncoder encoder;
+	private final SendTrigger send_trigger;
+
+	private final RelayMetrics metrics;
+	private final DestinationMetrics dest_metrics;
+
+	private final long[] values;
+	private final long[] update_counts;
+	private final long[] last_update_counts;
+
+	private final long[][] samples;
+	private final long[] sample_times;
+	private final long sample_period_ns;
+	private int sample_count = 0;
+	private long next_sample_ns;
+
+	/**************************************************************************
+	 *
+	 * @param store			the values to send
+	 * @param message		the message to build
+	 * @param dest			the destination settings, with the settings of the
+	 *                      message already applied
+	 * @param metrics		the metrics to update
+	 * @param dest_metrics	the metrics of the destination
+	 * @param buffer_size	the largest message that will be sent
+	 *
+	 *************************************************************************/
+	public MessageStream(ValueStore store, MessageDefinition message, Destination dest,
+			RelayMetrics metrics, DestinationMetrics dest_metrics, int buffer_size)
+	{
+		this.message = message;
+		this.store = store;
+		this.store_slots = message.getStoreSlots();
+		this.metrics = metrics;
+		this.dest_metrics = dest_metrics;
+
+		MessageLayout layout = message.getLayout();
+
+		this.encoder = new MessageEncoder(layout);
+		this.encoder.setProtocol(dest.protocol, dest.keyframe_interval);
+		this.encoder.setTimestamps(dest.timestamps);
+		if (dest.protocol > 1)
+		{
+			this.encoder.setMessageId(message.getId());
+		}
+
+		this.send_trigger = dest.createTrigger();
+		this.send_trigger.setMetrics(dest_metrics);
+
+		this.values = layout.createValues();
+		this.update_counts = new long[values.length];
+		this.last_update_counts = new long[values.length];
+
+		int batch_size = dest.batch_size;
+		if (batch_size > 1)
+		{
+			int sample_size = MessageEncoder.SAMPLE_HEADER_SIZE + layout.getDataSize();
+			int max_batch = (buffer_size - MessageEncoder.EXTENDED_HEADER_SIZE - MessageEncoder.MESSAGE_ID_SIZE -
+					MessageEncoder.TIMESTAMP_HEADER_SIZE - MessageEncoder.SCHEMA_VERSION_SIZE - MessageEncoder.BATCH_HEADER_SIZE) / sample_size;
+			if (batch_size > max_batch)
+			{
+				RelayLog.error("ERROR batch size " + batch_size + " too large for " + message.getName() + ", using " + max_batch);
+				batch_size = Math.max(max_batch, 1);
+			}
+		}
+
+		this.samples = new long[batch_size][];
+		for (int i = 0; i < batch_size; i++)
+		{
+			this.samples[i] = layout.createValues();
+		}
+		this.sample_times = new long[batch_size];
+		this.sample_period_ns = Math.max((long)(1.0e9 / dest.sample_rate), 1L);
+	}
+
+	public MessageDefinition getMessage()
+	{
+		return message;
+	}
+
+	public SendTrigger getSendTrigger()
+	{
+		return send_trigger;
+	}
+
+	/**************************************************************************
+	 *
+	 * Start sending, the first message is due right away.
+	 *
+	 * @param sender	the thread that sends the messages
+	 * @param now		the current System.nanoTime()
+	 *
+	 *************************************************************************/
+	public void start(Thread sender, long now)
+	{
+		send_trigger.start(sender, now);
+		next_sample_ns = now;
+	}
+
+	public void requestKeyframe()
+	{
+		encoder.requestKeyframe();
+	}
+
+	/**************************************************************************
+	 *
+	 * Put a schema version in every protocol 2 message, see MessageEncoder.
+	 *
+	 *************************************************************************/
+	public void setSchemaVersion(int schema_version)
+	{
+		encoder.setSchemaVersion(schema_version);
+	}
+
+	/**************************************************************************
+	 *
+	 * Carry on the message count and sequence number of the stream this one
+	 * replaces after a reload, this must be called from the sender thread.
+	 *
+	 *************************************************************************/
+	public void continueFrom(MessageStream previous)
+	{
+		encoder.continueFrom(previous.encoder);
+	}
+
+	/**************************************************************************
+	 *
+	 * Build and send a message if one is due.
+	 *
+	 * @param now		the current System.nanoTime()
+	 * @param pipeline	the pipeline to send the message with
+	 *
+	 * @return the System.nanoTime() the next message is due
+	 *
+	 *************************************************************************/
+	public long poll(long now, SenderPipeline pipeline)
+	{
+		if (samples.length > 1)
+		{
+			return pollBatch(now, pipeline);
+		}
+
+		if (now - send_trigger.nextSendTime() < 0)
+		{
+			return send_trigger.nextSendTime();
+		}
+
+		send_trigger.beginSend(now);
+
+		long snapshot_ns = System.nanoTime();
+		readValues(values);
+
+		ByteBuffer msg_bb = pipeline.getBuffer();
+		int msg_size = encoder.encode(values, RelayClock.toMicros(snapshot_ns), msg_bb);
+		msg_bb.flip();
+
+		if (pipeline.send(msg_size))
+		{
+			recordLatency(snapshot_ns);
+		}
+
+		return send_trigger.nextSendTime();
+	}
+
+	/**************************************************************************
+	 *
+	 * Take a sample if one is due and send a batch message each time the
+	 * ring of samples is full. Sample times are deadlines from the start, so
+	 * the sample rate does not drift with the encode and send time.
+	 *
+	 *************************************************************************/
+	private long pollBatch(long now, SenderPipeline pipeline)
+	{
+		if (now - next_sample_ns < 0)
+		{
+			return next_sample_ns;
+		}
+
+		dest_metrics.sendScheduled(now - next_sample_ns);
+
+		readValues(samples[sample_count]);
+		sample_times[sample_count] = RelayClock.toMicros(now);
+		sample_count++;
+
+		if (sample_count == samples.length)
+		{
+			ByteBuffer msg_bb = pipeline.getBuffer();
+			int msg_size = encoder.encodeBatch(samples, sample_times, sample_count, msg_bb);
+			msg_bb.flip();
+
+			if (pipeline.send(msg_size))
+			{
+				recordLatency(now);
+			}
+
+			sample_count = 0;
+		}
+
+		next_sample_ns += sample_period_ns;
+		if (now - next_sample_ns > sample_period_ns)
+		{
+			// fell more than a sample behind, skip the missed samples
+			long missed = (now - next_sample_ns) / sample_period_ns;
+			next_sample_ns += missed * sample_period_ns;
+			dest_metrics.deadlinesMissed(missed);
+		}
+
+		return next_sample_ns;
+	}
+
+	/**************************************************************************
+	 *
+	 * Copy the values of the message from the store. The update count of
+	 * each value is read first, so an update that arrives while copying is
+	 * counted again with the next message rather than not at all.
+	 *
+	 *************************************************************************/
+	private void readValues(long[] dst)
+	{
+		for (int i = 0; i < store_slots.length; i++)
+		{
+			update_counts[i] = store.getUpdateCount(store_slots[i]);
+		}
+
+		store.snapshot(store_slots, dst);
+	}
+
+	/**************************************************************************
+	 *
+	 * Update the metrics after a message was sent. For every value updated
+	 * since the last message that was sent, the time from the update to now
+	 * is recorded, and any updates that were replaced by a later update of
+	 * the same value before being sent are counted as coalesced.
+	 *
+	 * @param snapshot_ns the System.nanoTime() the values were read
+	 *
+	 *************************************************************************/
+	private void recordLatency(long snapshot_ns)
+	{
+		long sent_ns = System.nanoTime();
+		long coalesced = 0;
+
+		for (int i = 0; i < store_slots.length; i++)
+		{
+			long updates = update_counts[i] - last_update_counts[i];
+			if (updates > 0)
+			{
+				long t = store.getUpdateTime(store_slots[i]);
+				if (snapshot_ns - t >= 0)
+				{
+					metrics.recordLatency(store_slots[i], sent_ns - t);
+				}
+
+				coalesced += updates - 1;
+				last_update_counts[i] = update_counts[i];
+			}
+		}
+
+		dest_metrics.updatesCoalesced(coalesced);
+	}
+}
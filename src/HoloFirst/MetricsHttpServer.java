@@ -0,0 +1,88 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/******************************************************************************
+ *
+ * A small HTTP server that serves the RelayMetrics in the Prometheus text
+ * format at /metrics. The server runs on its own thread and only reads the
+ * metrics, so it never slows the senders.
+ *
+ * The server only listens on the loopback interface unless it is given an
+ * address, for example 0.0.0.0 for every interface, as the metrics tell
+ * anyone who can reach them what the relay sends and where.
+ *
+ *****************************************************************************/
+public class MetricsHttpServer implements HttpHandler
+{
+	private volatile RelayMetrics metrics;
+	private HttpServer server = null;
+
+	public MetricsHttpServer(RelayMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**************************************************************************
+	 *
+	 * Serve the metrics of a reloaded configuration.
+	 *
+	 *************************************************************************/
+	public void setMetrics(RelayMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**************************************************************************
+	 *
+	 * Start serving metrics.
+	 *
+	 * @param address	the address to listen on, empty for the loopback
+	 *                  interface
+	 * @param port		the TCP port to listen on
+	 *
+	 *************************************************************************/
+	public void start(String address, int port) throws IOException
+	{
+		InetAddress bind = address.isEmpty() ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address);
+
+		server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+		server.createContext("/metrics", this);
+		server.start();
+
+		RelayLog.info("Serving metrics at http://" + (address.isEmpty() ? "localhost" : address) + ":" + port + "/metrics");
+	}
+
+	public void stop()
+	{
+		if (server != null)
+		{
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		StringBuilder text = new StringBuilder(4096);
+		metrics.writePrometheus(text);
+
+		byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+}
@@ -0,0 +1,98 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/******************************************************************************
+ *
+ * This transport sends each message as a single datagram to a multicast
+ * group, so any number of consumers that join the group receive the same
+ * datagram.
+ *
+ * Multicast loopback is enabled, so consumers on the same host (including
+ * the loopback interface) receive the messages.
+ *
+ *****************************************************************************/
+public class MulticastTransport extends UdpTransport
+{
+	private final int ttl;
+	private final String interface_name;
+
+	/**************************************************************************
+	 *
+	 * @param group				the multicast group address
+	 * @param dst_port			the port consumers listen on
+	 * @param ttl				the multicast time to live (number of router hops)
+	 * @param interface_name	the name or address of the network interface to
+	 *                          send on, or null/empty for the system default
+	 *
+	 *************************************************************************/
+	public MulticastTransport(String group, int dst_port, int ttl, String interface_name)
+	{
+		super(group, dst_port);
+		this.ttl = ttl;
+		this.interface_name = interface_name;
+	}
+
+	@Override
+	protected DatagramChannel openChannel() throws IOException
+	{
+		InetAddress group = InetAddress.getByName(dst_host);
+		if (! group.isMulticastAddress())
+		{
+			throw new IOException(dst_host + " is not a multicast address");
+		}
+
+		DatagramChannel ch = DatagramChannel.open((group.getAddress().length == 4) ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+		ch.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+		ch.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+		NetworkInterface nif = findInterface(interface_name);
+		if (nif != null)
+		{
+			ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+		}
+
+		return ch;
+	}
+
+	@Override
+	public String getName()
+	{
+		return dst_host + ":" + dst_port + ":MULTICAST";
+	}
+
+	/**************************************************************************
+	 *
+	 * Find a network interface by name (eth0, lo) or by one of its addresses.
+	 *
+	 * @return the interface, or null if no name is given
+	 *
+	 * @throws IOException if the interface cannot be found
+	 *
+	 *************************************************************************/
+	public static NetworkInterface findInterface(String name) throws IOException
+	{
+		if ((name == null) || name.isEmpty())
+		{
+			return null;
+		}
+
+		NetworkInterface nif = NetworkInterface.getByName(name);
+		if (nif == null)
+		{
+			nif = NetworkInterface.getByInetAddress(InetAddress.getByName(name));
+		}
+
+		if (nif == null)
+		{
+			throw new IOException("network interface not found: " + name);
+		}
+
+		return nif;
+	}
+}
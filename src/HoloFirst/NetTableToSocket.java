@@ -1,20 +1,13 @@
 package HoloFirst;
 
-import java.net.*;
-import java.nio.ByteBuffer;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Vector;
-
-import javax.swing.*;
-
-import edu.wpi.first.wpilibj.tables.*;
-import edu.wpi.first.wpilibj.networktables.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 
 import javax.xml.parsers.*;
 import org.w3c.dom.*;
 
-import java.io.DataOutputStream;
 import java.io.File;
 
 /******************************************************************************
@@ -23,43 +16,77 @@ import java.io.File;
  * to collect some data and send it to [a Hololens via] a UDP socket.
  * 
  * A configuration file is used to define what table is used, where the
- * messages get sent, and what values are in the message.
+ * messages get sent, and what values are in each message.
+ *
+ * Every value is kept once in a ValueStore, each message tag defines a
+ * message of some of those values (see MessageDefinition) that is sent to
+ * each of its destinations at its own rate. All messages are sent by one
+ * SendScheduler thread.
+ *
+ * Values can come from any table, and from more than one source (see
+ * ValueSource), the updates of every source are merged in the ValueStore.
+ * 
+ * Messages with direction="in" go the other way, they are received from
+ * consumers and their values published to the network table (see 
+ * IngestServer).
+ * 
+ * With a snapshot_file, the values are saved every snapshot_interval
+ * seconds and restored when the relay starts (see SnapshotFile), so
+ * consumers get the last known values rather than the defaults.
+ * 
+ * The configuration file is watched (see ConfigWatcher), when it changes
+ * a new instance of this class loads it and builds its store, sources and
+ * senders while the old one keeps sending, then the scheduler switches to
+ * the new senders between two passes (see reload()).
  * 
  *****************************************************************************/
 public class NetTableToSocket 
 {
 	enum  ValueType
 	{
-		DOUBLE, FLOAT, INT, SHORT, BOOLEAN, LONG
+		DOUBLE, FLOAT, INT, SHORT, BOOLEAN, LONG, STRING, DOUBLE_ARRAY, BOOLEAN_ARRAY
 	};
 	
-	class ValueItem
-	{
-		public ValueType type;
-		public Object value;
-	}
-	
-	private static final String TABLE_NAME = "SmartDashboard";
-	private static final float MSG_PERIOD = 0.1f; // seconds
+	private static final float MSG_PERIOD = 0.1f; // seconds, for generated data
 	private static final float CONNECT_PERIOD = 2.0f; // seconds
-	private static final int MESSAGE_BUFFER_SIZE = 4096;
-	private static final int MESSAGE_HEADER_SIZE = 6;
+	private static final int MESSAGE_BUFFER_SIZE = 4096; // at least, for batches
 	
 	private boolean done = false;
-	private short msg_count = 0;
 
-	private boolean use_tcp = false;
 	private boolean generate_random_data = false;
 	
-	private HashMap<String, Integer> value_map = new HashMap<String, Integer>();
-	private Vector<ValueItem> value_list = new Vector<ValueItem>();
+	private MessageLayout layout = new MessageLayout();
+	private int buffer_size = MESSAGE_BUFFER_SIZE;
+	private ArrayList<MessageDefinition> messages = new ArrayList<MessageDefinition>();
+	private HashSet<Integer> message_ids = new HashSet<Integer>();
+	private ValueStore store;
+	private RelayMetrics metrics;
+	private int metrics_port = 0;
+	private String metrics_address = "";
 	
-	private MyTableListener table_listener;
-
-	private String dst_host = "localhost";
-	private int dst_port = 4322;
+	private String snapshot_file = "";
+	private float snapshot_interval = 1.0f; // seconds
+	private float snapshot_max_age = 600.0f; // seconds, 0 for any age
+	private SnapshotFile snapshot = null;
+	
+	private Destination default_destination = new Destination();
+	private ArrayList<Destination> destinations = new ArrayList<Destination>();
+	private volatile SendTrigger[] send_triggers = new SendTrigger[0];
+	private volatile SendTrigger[][] slot_triggers = new SendTrigger[0][];
 	
 	private String table_host = "";
+	private LinkedHashMap<String, ValueSource> sources = new LinkedHashMap<String, ValueSource>();
+	private IngestServer ingest = null;
+	
+	private String config_file = null;
+	private boolean watch_config = true;
+	private int schema_version = 0;
+	private SenderPipeline[] senders = new SenderPipeline[0];
+	
+	// the running relay, this instance until the configuration is reloaded
+	private volatile NetTableToSocket active = this;
+	private SendScheduler scheduler = null;
+	private MetricsHttpServer metrics_server = null;
 	
 	/**************************************************************************
 	 * 
@@ -67,6 +94,11 @@ public class NetTableToSocket
 	 * class.
 	 * 
 	 * @param args[0] - the name of the configuration file
+	 * @param args[1..] - to play back a recording instead of relaying the 
+	 *                    network table: --replay <recording>, and optionally
+	 *                    --speed <times real time, 0 for as fast as 
+	 *                    possible>, --start <seconds into the recording>
+	 *                    and --loop
 	 * 
 	 *************************************************************************/
 	public static void main(String[] args)
@@ -77,9 +109,40 @@ public class NetTableToSocket
 			app.loadConfig(args[0]);
 			app.run();
 		}
+		else if ((args.length >= 3) && args[1].equals("--replay"))
+		{
+			float speed = 1.0f;
+			float start = 0.0f;
+			boolean loop = false;
+			
+			for (int i = 3; i < args.length; i++)
+			{
+				if (args[i].equals("--loop"))
+				{
+					loop = true;
+				}
+				else if (args[i].equals("--speed") && (i + 1 < args.length))
+				{
+					speed = Float.parseFloat(args[++i]);
+				}
+				else if (args[i].equals("--start") && (i + 1 < args.length))
+				{
+					start = Float.parseFloat(args[++i]);
+				}
+				else
+				{
+					System.out.println("Unknown replay option " + args[i]);
+					return;
+				}
+			}
+			
+			NetTableToSocket app = new NetTableToSocket();
+			app.loadConfig(args[0]);
+			app.replay(args[2], speed, start, loop);
+		}
 		else
 		{
-			System.out.println("USAGE: NetTableToSocket <config file>");
+			System.out.println("USAGE: NetTableToSocket <config file> [--replay <recording> [--speed <n>] [--start <seconds>] [--loop]]");
 			return;
 		}
 	}
@@ -92,190 +155,413 @@ public class NetTableToSocket
 	 *************************************************************************/
 	public NetTableToSocket()
 	{
-		table_listener = new MyTableListener(this);
 	}
 	
 	/**************************************************************************
 	 * 
-	 * This run method will do some initial configuration, then call the
-	 * prototype specific run method to process messages.
+	 * This run method will do some initial configuration, then start the
+	 * scheduler that sends the messages to each destination.
 	 * 
 	 *************************************************************************/
 	private void run()
 	{
-		System.out.println("Getting data from " + table_host + ":" + NetworkTable.DEFAULT_PORT);
+		createSenders();
+		startSnapshot(null);
 		
-		NetworkTable.setClientMode();
-		NetworkTable.setIPAddress(table_host);
-		NetworkTable.setPort(NetworkTable.DEFAULT_PORT);
-		NetworkTable.setNetworkIdentity(TABLE_NAME);
-		NetworkTable.initialize();
-
-		ITable table = NetworkTable.getTable(TABLE_NAME);
+		metrics.registerMBeans();
+		if (metrics_port > 0)
+		{
+			try 
+			{
+				metrics_server = new MetricsHttpServer(metrics);
+				metrics_server.start(metrics_address, metrics_port);
+			}
+			catch (Exception e) 
+			{
+				RelayLog.error("ERROR starting metrics server on port " + metrics_port + ": " + e.getMessage());
+			}
+		}
 		
-        table.addTableListenerEx(table_listener, ITable.NOTIFY_IMMEDIATE | ITable.NOTIFY_LOCAL | ITable.NOTIFY_NEW | ITable.NOTIFY_UPDATE);
-        table.addSubTableListener(table_listener, true);
+		for (ValueSource source : sources.values())
+		{
+			startSource(source);
+		}
+		startIngest();
+        
+        scheduler.start();
         
-        if (use_tcp == true)
+        if (watch_config && (config_file != null))
         {
-        	runTcp();
+        	new ConfigWatcher(config_file, new Runnable()
+        	{
+        		public void run()
+        		{
+        			reload();
+        		}
+        	}).start();
         }
-        else
+        
+        // the scheduler runs on its own thread, this thread only generates
+        // test data when requested
+        long next_ns = System.nanoTime();
+        while (! done && active.generate_random_data)
         {
-        	runUdp();
+        	NetTableToSocket app = active;
+        	app.generateRandomData();
+        	app.valuesChanged();
+        	
+			try 
+			{
+				next_ns += (long)(MSG_PERIOD * 1.0e9);
+				SendTrigger.waitUntil(next_ns);
+			} 
+			catch (InterruptedException e) 
+			{
+				e.printStackTrace();
+			}
         }
 	}
 	
 	/**************************************************************************
 	 * 
-	 * The runUdp method does most of the work, it establishes the needed 
-	 * connections, then loops until a problem is detected.
+	 * Create the store and a sender pipeline for each destination, for the
+	 * configuration loaded so far. This must be done before any table
+	 * listener threads are started.
+	 * 
+	 * @return the scheduler that sends the messages, not yet started
 	 * 
 	 *************************************************************************/
-	private void runUdp()
+	SendScheduler createSenders()
 	{
-		System.out.println("Sending messages to " + dst_host + ":" + dst_port + ":UDP");
+		createSenders(null);
 		
-		byte[] msg_buffer = new byte[MESSAGE_BUFFER_SIZE];
-		int msg_size;
-
-		DatagramSocket send_socket = null;
-		InetAddress dst_addr = null;
-
-		try 
-		{
-			send_socket = new DatagramSocket();
-			dst_addr = InetAddress.getByName(dst_host);
-		}
-		catch (Exception e) 
+		scheduler = new SendScheduler(senders);
+		return scheduler;
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Create the store and a sender pipeline for each destination, each 
+	 * replacing the pipeline of the same destination of the configuration
+	 * that is running, if any.
+	 * 
+	 * @param previous the running configuration, or null
+	 * 
+	 *************************************************************************/
+	private void createSenders(NetTableToSocket previous)
+	{
+		createStore();
+		
+		ArrayList<SenderPipeline> replaced = new ArrayList<SenderPipeline>();
+		if (previous != null)
 		{
-			e.printStackTrace();
-			done = true;
+			replaced.addAll(Arrays.asList(previous.senders));
 		}
-				
-		while (! done)
+		
+		ArrayList<SenderPipeline> list = new ArrayList<SenderPipeline>();
+		for (Destination dest : destinations)
 		{
-			if (generate_random_data)
+			SenderPipeline old = null;
+			for (SenderPipeline p : replaced)
 			{
-				generateRandomData();
+				if (p.getDestination().sameTransport(dest))
+				{
+					old = p;
+					break;
+				}
 			}
+			replaced.remove(old);
 			
-			msg_size = buildMessage(msg_buffer);
-
-			if (msg_size > 0)
+			SenderPipeline sender = new SenderPipeline(metrics, dest, buffer_size, CONNECT_PERIOD, old);
+			
+			for (MessageDefinition message : messages)
 			{
-				try 
-				{
-					DatagramPacket pkt = new DatagramPacket(msg_buffer, msg_size, dst_addr, dst_port);
-					send_socket.send(pkt);
-					System.out.print("sent " + msg_size + " bytes ");
-					for(int i = 0; i < msg_size; i++)
-					{
-						System.out.print(String.format("%02X ", msg_buffer[i]));
-					}
-					System.out.println("");
-				} 
-				catch (Exception e) 
+				if (message.sendsTo(dest))
 				{
-					e.printStackTrace();
-					done = true;
+					sender.addMessage(store, message).setSchemaVersion(schema_version);
 				}
 			}
 			
-			try 
+			if (sender.getStreams().length > 0)
 			{
-				Thread.sleep((int)(MSG_PERIOD * 1000));
-			} 
-			catch (InterruptedException e) 
+				list.add(sender);
+			}
+			else
 			{
-				e.printStackTrace();
+				RelayLog.warn("No messages are sent to " + sender.getName());
 			}
-		}		
+		}
+		setTriggers(list);
+		
+		senders = list.toArray(new SenderPipeline[list.size()]);
 	}
 	
 	/**************************************************************************
 	 * 
-	 * The runTcp method does most of the network related work, it establishes
-	 * the needed connections, then loops until a problem is detected.
+	 * Load the configuration file again and switch to it without stopping.
+	 * 
+	 * The new configuration is loaded and its store and senders are built
+	 * while the running one keeps sending. Then the values of the keys in
+	 * both are copied to the new store, the new sources are started before
+	 * the old ones are stopped, so no update is missed (a source that needs
+	 * the port of an old one starts right after it), and the scheduler
+	 * switches to the new senders between two passes. The senders of a destination in both keep its
+	 * transport, and each message carries on its sequence numbers with a
+	 * keyframe and the next schema version, so consumers see no gap.
+	 * 
+	 * A configuration that cannot be loaded is logged and the running one 
+	 * is kept.
 	 * 
 	 *************************************************************************/
-	private void runTcp()
+	synchronized void reload()
 	{
-		byte[] msg_buffer = new byte[MESSAGE_BUFFER_SIZE];
-		int msg_size;
-
-		Socket send_socket = null;
-		DataOutputStream out_stream = null;
+		NetTableToSocket current = active;
+		
+		NetTableToSocket next = new NetTableToSocket();
+		if (! next.loadConfig(current.config_file))
+		{
+			RelayLog.error("Keeping the running configuration, " + current.config_file + " could not be loaded");
+			return;
+		}
 		
-		while (! done)
+		// 0 means no schema version, so it wraps to 1
+		next.schema_version = (current.schema_version % 0xFFFF) + 1;
+		next.createSenders(current);
+		
+		if (current.snapshot != null)
+		{
+			current.snapshot.stop();
+		}
+		
+		// the values are copied before any new source starts, so they never
+		// replace a newer value
+		next.startSnapshot(current);
+		
+		ArrayList<ValueSource> waiting = new ArrayList<ValueSource>();
+		for (ValueSource source : next.sources.values())
 		{
-			if (send_socket == null)
+			if (next.conflictsWith(source, current))
 			{
-				System.out.println("Trying to connection to " + dst_host + ":" + dst_port + ":TCP");
-
-				try 
-				{
-					send_socket = new Socket(dst_host, dst_port);
-					
-					out_stream = new DataOutputStream(send_socket.getOutputStream());
-				}
-				catch (Exception e) 
-				{
-				}
-
-				if (send_socket == null)
-				{
-					try 
-					{
-						Thread.sleep((int)(CONNECT_PERIOD * 1000));
-					} 
-					catch (InterruptedException e) 
-					{
-						e.printStackTrace();
-					}
-					
-					continue;
-				}
+				waiting.add(source);
 			}
-			
-			if (generate_random_data)
+			else
+			{
+				next.startSource(source);
+			}
+		}
+		
+		for (ValueSource source : current.sources.values())
+		{
+			source.stop();
+		}
+		if (current.ingest != null)
+		{
+			current.ingest.stop();
+		}
+		
+		for (ValueSource source : waiting)
+		{
+			next.startSource(source);
+		}
+		next.startIngest();
+		
+		try
+		{
+			scheduler.swap(next.senders);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		current.metrics.unregisterMBeans();
+		next.metrics.registerMBeans();
+		if (metrics_server != null)
+		{
+			metrics_server.setMetrics(next.metrics);
+		}
+		
+		active = next;
+		
+		RelayLog.info("Reloaded " + current.config_file + ", schema version " + next.schema_version);
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Restore the values saved by the last run, if there is a snapshot file,
+	 * then the values of the configuration this one replaces, which are
+	 * newer, and start saving them. This must be done after the store is
+	 * created and before the sources are started.
+	 * 
+	 * @param previous the configuration this one replaces, or null
+	 * 
+	 *************************************************************************/
+	private void startSnapshot(NetTableToSocket previous)
+	{
+		if (! snapshot_file.isEmpty())
+		{
+			snapshot = new SnapshotFile(snapshot_file, store, snapshot_interval);
+			snapshot.restore(snapshot_max_age);
+		}
+		
+		if (previous != null)
+		{
+			copyValues(previous);
+		}
+		
+		if (snapshot == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			snapshot.open();
+			snapshot.start();
+		}
+		catch (Exception e)
+		{
+			RelayLog.error("ERROR creating snapshot file " + snapshot_file, e);
+		}
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Start a source of this configuration, a source that cannot be started
+	 * is logged and the others keep running.
+	 * 
+ 	 *************************************************************************/
+	private void startSource(ValueSource source)
+	{
+		try
+		{
+			source.start();
+		}
+		catch (Exception e)
+		{
+			RelayLog.error("ERROR starting source " + source.getName(), e);
+		}
+	}
+	
+	/**************************************************************************
+	 * 
+	 * @return true if a source of this configuration cannot start until the
+	 *         sources of the configuration it replaces are stopped
+	 * 
+ 	 *************************************************************************/
+	private boolean conflictsWith(ValueSource source, NetTableToSocket previous)
+	{
+		for (ValueSource old : previous.sources.values())
+		{
+			if (source.conflictsWith(old))
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Start receiving the messages with direction="in", if any.
+	 * 
+	 *************************************************************************/
+	private void startIngest()
+	{
+		if (ingest == null)
+		{
+			return;
+		}
+		
+		if (ingest.getMessageCount() == 0)
+		{
+			RelayLog.warn("No messages have direction=\"in\", nothing to ingest");
+			return;
+		}
+		
+		try
+		{
+			ingest.start();
+		}
+		catch (Exception e)
+		{
+			RelayLog.error("ERROR starting ingest", e);
+		}
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Copy the value of every key in this store that is in the store of
+	 * another configuration, with the same type and capacity. Each value
+	 * keeps the time of its update and is not counted as an update, like a
+	 * value restored from the snapshot file.
+	 * 
+	 *************************************************************************/
+	private void copyValues(NetTableToSocket other)
+	{
+		long[] values = other.layout.createValues();
+		other.store.snapshot(values);
+		
+		for (int i = 0; i < layout.getSize(); i++)
+		{
+			int j = other.layout.getSlot(layout.getKey(i));
+			if ((j >= 0) && (other.layout.getType(j) == layout.getType(i)) && (other.layout.getCapacity(j) == layout.getCapacity(i)))
 			{
-				generateRandomData();
+				store.restore(i, values, other.layout.getPosition(j), other.store.getUpdateTime(j));
 			}
+		}
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Play back a recording to every destination, instead of relaying the
+	 * network table. Destinations that record are skipped.
+	 * 
+	 * @param path	the recording
+	 * @param speed	times real time, 0 for as fast as possible
+	 * @param start	seconds into the recording to start at
+	 * @param loop	true to start again at the end of the recording
+	 * 
+	 *************************************************************************/
+	private void replay(String path, float speed, float start, boolean loop)
+	{
+		ArrayList<Transport> transports = new ArrayList<Transport>();
+		
+		try
+		{
+			RecordingReader reader = new RecordingReader(path);
+			reader.seek(reader.getStartTime() + (long)(start * 1.0e6));
 			
-			msg_size = buildMessage(msg_buffer);
-
-			if (msg_size > 0)
+			for (Destination dest : destinations)
 			{
-				try 
-				{
-					out_stream.write(msg_buffer, 0, msg_size);
-					System.out.print("sent " + msg_size + " bytes ");
-					for(int i = 0; i < msg_size; i++)
-					{
-						System.out.print(String.format("%02X ", msg_buffer[i]));
-					}
-					System.out.println("");
-				} 
-				catch (Exception e) 
+				if (dest.comm_mode == Destination.CommMode.RECORD)
 				{
-					try { out_stream.close(); } catch (Exception e1) { }
-					out_stream = null;
-
-					try { send_socket.close(); } catch (Exception e1) { }
-					send_socket = null;
+					RelayLog.warn("Not replaying to recording destination " + dest.record_file);
+					continue;
 				}
+				
+				Transport transport = dest.createTransport(reader.getMaxMessageSize(), CONNECT_PERIOD);
+				transport.open();
+				transports.add(transport);
 			}
 			
-			try 
-			{
-				Thread.sleep((int)(MSG_PERIOD * 1000));
-			} 
-			catch (InterruptedException e) 
-			{
-				e.printStackTrace();
-			}
-		}		
+			RelayLog.info("Replaying " + reader.getName() + " from " + start + "s at " + ((speed > 0) ? (speed + "x") : "full speed"));
+			
+			long start_ns = System.nanoTime();
+			long sent = new FrameReplay(reader, transports.toArray(new Transport[transports.size()]), speed, loop).run();
+			
+			RelayLog.info("Replayed " + sent + " messages in " + ((System.nanoTime() - start_ns) / 1.0e9) + "s");
+		}
+		catch (Exception e)
+		{
+			RelayLog.error("ERROR replaying " + path, e);
+		}
+		
+		for (Transport transport : transports)
+		{
+			transport.close();
+		}
 	}
 	
 	/**************************************************************************
@@ -284,17 +570,21 @@ public class NetTableToSocket
 	 * 
 	 * @param filename the name of the file to read
 	 * 
+	 * @return false if the file could not be read or has no valid messages
+	 * 
  	 *************************************************************************/
-	private void loadConfig(String filename)
+	boolean loadConfig(String filename)
 	{
+		config_file = filename;
+		
 		try
 		{
 			File xml_file = new File(filename);
 			
 			if (! xml_file.exists())
 			{
-				System.out.println("Could not open configuration file: " + filename);
-				return;
+				RelayLog.error("Could not open configuration file: " + filename);
+				return false;
 			}
 			
 			DocumentBuilder xml_builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
@@ -303,25 +593,26 @@ public class NetTableToSocket
 			Element xml = xml_doc.getDocumentElement();
 			NodeList nodes;
 			
-			nodes = xml.getElementsByTagName("comm_mode");
-			if (nodes.getLength() >= 1)
+			String[] destination_tags = { "comm_mode", "dest_host", "dest_port", "ttl", "interface", "max_lag", "max_clients", "shm_file", "shm_slots", "record_file", "record_segment_mb", "protocol", "keyframe_interval", "timestamps", "frame_dump", "batch_size", "sample_rate", "send_mode", "period", "rate", "min_interval", "max_interval" };
+			for (String tag : destination_tags)
 			{
-				Element element = (Element)(nodes.item(0));
-				use_tcp = element.getAttribute("value").toLowerCase().equals("tcp");
+				nodes = xml.getElementsByTagName(tag);
+				if ((nodes.getLength() >= 1) && (nodes.item(0).getParentNode() == xml))
+				{
+					Element element = (Element)(nodes.item(0));
+					default_destination.setSetting(tag, element.getAttribute("value"));
+				}
 			}
 			
-			nodes = xml.getElementsByTagName("dest_host");
-			if (nodes.getLength() >= 1)
+			nodes = xml.getElementsByTagName("destination");
+			for (int i = 0; i < nodes.getLength(); i++)
 			{
-				Element element = (Element)(nodes.item(0));
-				this.dst_host = element.getAttribute("value");
+				destinations.add(default_destination.derive((Element)(nodes.item(i))));
 			}
 			
-			nodes = xml.getElementsByTagName("dest_port");
-			if (nodes.getLength() >= 1)
+			if (destinations.isEmpty())
 			{
-				Element element = (Element)(nodes.item(0));
-				this.dst_port = Integer.parseInt(element.getAttribute("value"));
+				destinations.add(default_destination);
 			}
 			
 			nodes = xml.getElementsByTagName("table_host");
@@ -331,190 +622,484 @@ public class NetTableToSocket
 				this.table_host = element.getAttribute("value");
 			}
 			
-			nodes = xml.getElementsByTagName("generate_data");
+			nodes = xml.getElementsByTagName("source");
+			for (int i = 0; i < nodes.getLength(); i++)
+			{
+				loadSource((Element)(nodes.item(i)));
+			}
+			
+			nodes = xml.getElementsByTagName("ingest");
+			if (nodes.getLength() >= 1)
+			{
+				loadIngest((Element)(nodes.item(0)));
+			}
+			
+			nodes = xml.getElementsByTagName("log_level");
+			if (nodes.getLength() >= 1)
+			{
+				Element element = (Element)(nodes.item(0));
+				RelayLog.setLevel(element.getAttribute("value"));
+			}
+			
+			nodes = xml.getElementsByTagName("metrics_port");
+			if (nodes.getLength() >= 1)
+			{
+				Element element = (Element)(nodes.item(0));
+				this.metrics_port = Integer.parseInt(element.getAttribute("value"));
+				this.metrics_address = element.getAttribute("address");
+			}
+			
+			nodes = xml.getElementsByTagName("generate_data");
 			if (nodes.getLength() >= 1)
 			{
 				Element element = (Element)(nodes.item(0));
 				this.generate_random_data = element.getAttribute("value").toLowerCase().startsWith("t");
 			}
-						
-			nodes = xml.getElementsByTagName("message");
-			if (nodes.getLength() != 1)
+			
+			nodes = xml.getElementsByTagName("snapshot_file");
+			if (nodes.getLength() >= 1)
 			{
-				System.out.println("Invalid configuration file, file must contain exactly on message tag");
-				return;
+				Element element = (Element)(nodes.item(0));
+				this.snapshot_file = element.getAttribute("value");
 			}
 			
-			int message_size = MESSAGE_HEADER_SIZE;
+			nodes = xml.getElementsByTagName("snapshot_interval");
+			if (nodes.getLength() >= 1)
+			{
+				Element element = (Element)(nodes.item(0));
+				this.snapshot_interval = Float.parseFloat(element.getAttribute("value"));
+			}
 			
-			nodes = ((Element)(nodes.item(0))).getElementsByTagName("value");
-			for (int i = 0; i < nodes.getLength(); i++)
+			nodes = xml.getElementsByTagName("snapshot_max_age");
+			if (nodes.getLength() >= 1)
 			{
-				Element element = (Element)(nodes.item(i));
-				
-				if (element.hasAttribute("name") && element.hasAttribute("type") && element.hasAttribute("default"))
-				{
-					String key = element.getAttribute("name");
-					
-					String type_str = element.getAttribute("type").toLowerCase();
-					String default_value = element.getAttribute("default");
-					
-					switch(type_str) {
-						case("long"):
-						case("int64"):
-							addValue(key, ValueType.LONG, new Long(default_value));
-							message_size += 8;
-							break;
-						case("int"):
-						case("int32"):
-							addValue(key, ValueType.INT, new Integer(default_value));
-							message_size += 4;
-							break;
-						case("short"):
-						case("int16"):
-							addValue(key, ValueType.SHORT, new Short(default_value));
-							message_size += 2;
-							break;
-						case("single"):
-						case("float"):
-							addValue(key, ValueType.FLOAT, new Float(default_value));
-							message_size += 4;
-							break;
-						case("double"):
-							addValue(key, ValueType.DOUBLE, new Double(default_value));
-							message_size += 8;
-							break;
-						case("bool"):
-						case("boolean"):
-							addValue(key, ValueType.BOOLEAN, new Boolean(default_value));
-							message_size += 1;
-							break;
-						default:
-							System.out.println("ERROR parsing configuration file, unsupported value type of " + type_str);
-					}				     
-				}
-				else
-				{
-					System.out.println("ERROR parsing configuration file, invalid value element, missing required attribute name|type|default");
-				}	
+				Element element = (Element)(nodes.item(0));
+				this.snapshot_max_age = Float.parseFloat(element.getAttribute("value"));
 			}
-
-			if (message_size > MESSAGE_BUFFER_SIZE)
+			
+			nodes = xml.getElementsByTagName("watch_config");
+			if (nodes.getLength() >= 1)
 			{
-				System.out.println("ERROR message size (" + message_size +") greater than allowed (" + MESSAGE_BUFFER_SIZE + ")");
+				Element element = (Element)(nodes.item(0));
+				this.watch_config = element.getAttribute("value").toLowerCase().startsWith("t");
+			}
+						
+			nodes = xml.getElementsByTagName("message");
+			if (nodes.getLength() < 1)
+			{
+				RelayLog.error("Invalid configuration file, file must contain at least one message tag");
+				return false;
+			}
+			
+			for (int i = 0; i < nodes.getLength(); i++)
+			{
+				loadMessage((Element)(nodes.item(i)), i, nodes.getLength());
 			}
 		}
 		catch (Exception e)
 		{
-			e.printStackTrace();
+			RelayLog.error("ERROR reading configuration file " + filename, e);
+			return false;
 		}
+		
+		return ! messages.isEmpty() || ((ingest != null) && (ingest.getMessageCount() > 0));
 	}
 	
 	/**************************************************************************
-	 *
-	 * Build a Message
-	 * 
-	 *    start   length value
-	 *    0       2      FAF3
-	 *    2       2      message count, increments with each message
-	 *    4       2      message size, total number of bytes
-	 *    6       xx     data
-	 *    
-	 *************************************************************************/
-	private int buildMessage(byte[] msg_buffer)
+	 * 
+	 * Read a source tag of the configuration file.
+	 * 
+	 *    <source name="coproc" type="relay" port="5800" message_id="1" />
+	 *    <source name="robot" type="nt" host="10.1.18.2" />
+	 * 
+	 * @param xml the source element
+	 * 
+ 	 *************************************************************************/
+	private void loadSource(Element xml)
 	{
-		ByteBuffer bb = ByteBuffer.wrap(msg_buffer);
+		String name = xml.getAttribute("name");
+		if (name.isEmpty() || sources.containsKey(name))
+		{
+			RelayLog.error("ERROR parsing configuration file, missing or duplicate source name " + name);
+			return;
+		}
 		
-		// Put in at least a two byte sync pattern
-		bb.putShort((short)0xFAF3);
-
-		// Put in a message counter
-		bb.putShort(msg_count++);
-
-		// Save space for message length
-		bb.putShort((short)0); 
-		Enumeration<ValueItem> vals = value_list.elements();
-
-		int idx = 0;
-		while(vals.hasMoreElements())
+		String type = xml.hasAttribute("type") ? xml.getAttribute("type").toLowerCase() : "nt";
+		switch(type)
+		{
+			case("relay"):
+				int port = Integer.parseInt(xml.getAttribute("port"));
+				int message_id = xml.hasAttribute("message_id") ? Integer.parseInt(xml.getAttribute("message_id")) : -1;
+				sources.put(name, new RelaySource(name, this, port, message_id));
+				break;
+			case("nt"):
+				String host = xml.hasAttribute("host") ? xml.getAttribute("host") : table_host;
+				sources.put(name, new NetworkTableSource(name, this, host));
+				break;
+			default:
+				RelayLog.error("ERROR parsing configuration file, unsupported source type " + type);
+		}
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Read the ingest tag of the configuration file, where the messages with
+	 * direction="in" are received.
+	 * 
+	 *    <ingest comm_mode="UDP" port="5801" flush_interval="0.05" />
+	 * 
+	 * @param xml the ingest element
+	 * 
+ 	 *************************************************************************/
+	private void loadIngest(Element xml)
+	{
+		String comm_mode = xml.hasAttribute("comm_mode") ? xml.getAttribute("comm_mode").toUpperCase() : "UDP";
+		if (! comm_mode.equals("UDP") && ! comm_mode.equals("TCP"))
+		{
+			RelayLog.error("ERROR parsing configuration file, ingest comm_mode must be UDP or TCP");
+			return;
+		}
+		
+		int port = Integer.parseInt(xml.getAttribute("port"));
+		float flush_interval = xml.hasAttribute("flush_interval") ? Float.parseFloat(xml.getAttribute("flush_interval")) : 0.05f;
+		String host = xml.hasAttribute("host") ? xml.getAttribute("host") : table_host;
+		
+		ingest = new IngestServer(comm_mode.equals("TCP"), port, flush_interval, host);
+	}
+	
+	/**************************************************************************
+	 * 
+	 * @return the named source, the default source (the network table at 
+	 *         table_host) for an empty name, or null if there is no such
+	 *         source
+	 * 
+ 	 *************************************************************************/
+	private ValueSource getSource(String name)
+	{
+		ValueSource source = sources.get(name);
+		if ((source == null) && name.isEmpty())
+		{
+			source = new NetworkTableSource(name, this, table_host);
+			sources.put(name, source);
+		}
+		
+		return source;
+	}
+	
+	/**************************************************************************
+	 * 
+	 * @return true if one of the destinations has the name
+	 * 
+ 	 *************************************************************************/
+	private boolean hasDestination(String name)
+	{
+		for (Destination dest : destinations)
+		{
+			if (dest.name.equals(name))
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Read a message tag of the configuration file.
+	 * 
+	 * @param xml			the message element
+	 * @param position		the position of the message in the file
+	 * @param num_messages	the number of message tags in the file
+	 * 
+ 	 *************************************************************************/
+	private void loadMessage(Element xml, int position, int num_messages)
+	{
+		String name = xml.hasAttribute("name") ? xml.getAttribute("name") : ("message " + (position + 1));
+		
+		// a message id is only needed to tell several messages apart
+		int id = -1;
+		if (xml.hasAttribute("id"))
+		{
+			id = Integer.parseInt(xml.getAttribute("id"));
+		}
+		else if (num_messages > 1)
 		{
-			ValueItem itm = vals.nextElement();
+			id = position + 1;
+		}
+		
+		// masking the id would send the message as another one
+		if ((id < -1) || (id > MessageEncoder.MAX_MESSAGE_ID))
+		{
+			RelayLog.error("ERROR parsing configuration file, message id of " + name + " must be 0 to " + MessageEncoder.MAX_MESSAGE_ID +
+					", the message is not used");
+			return;
+		}
+		
+		// an inbound message is published to the network table, its values
+		// are not in the store
+		boolean inbound = xml.getAttribute("direction").toLowerCase().equals("in");
+		
+		// a consumer, the outbox of a slow peer and a reload all tell the
+		// messages apart by id (inbound ids are checked by the IngestServer)
+		if (! inbound && message_ids.contains(id))
+		{
+			RelayLog.error("ERROR parsing configuration file, duplicate message id " + id + " of " + name + ", the message is not used");
+			return;
+		}
+		
+		MessageDefinition message = new MessageDefinition(name, id);
+		
+		ArrayList<String> in_tables = new ArrayList<String>();
+		ArrayList<String> in_keys = new ArrayList<String>();
+		
+		NamedNodeMap attrs = xml.getAttributes();
+		for (int i = 0; i < attrs.getLength(); i++)
+		{
+			String attr_name = attrs.item(i).getNodeName();
+			String attr_value = attrs.item(i).getNodeValue();
 			
-			switch(itm.type)
+			if (attr_name.equals("name") || attr_name.equals("id") || attr_name.equals("direction"))
 			{
-				case DOUBLE:
-				{
-					     if ( itm.value instanceof Double ) 	bb.putDouble((double)(((Double)(itm.value)).doubleValue()));
-					else if ( itm.value instanceof Float ) 		bb.putDouble((double)(((Float)(itm.value)).floatValue()));							
-					else if ( itm.value instanceof Integer ) 	bb.putDouble((double)(((Integer)(itm.value)).intValue()));
-					else if ( itm.value instanceof Long ) 		bb.putDouble((double)(((Long)(itm.value)).longValue()));							
-					else if ( itm.value instanceof Short ) 		bb.putDouble((double)(((Short)(itm.value)).shortValue()));							
-					else if ( itm.value instanceof Boolean ) 	bb.putDouble((double)(((Boolean)(itm.value)).booleanValue()?1.0:0.0));
-					else System.out.println("unsupported data conversion for index " + idx);
-				} break;
-				
-				case FLOAT:
-				{
-						 if ( itm.value instanceof Float ) 		bb.putFloat((float)(((Float)(itm.value)).floatValue()));
-				    else if ( itm.value instanceof Double ) 	bb.putFloat((float)(((Double)(itm.value)).doubleValue()));							
-					else if ( itm.value instanceof Integer ) 	bb.putFloat((float)(((Integer)(itm.value)).intValue()));							
-					else if ( itm.value instanceof Short ) 		bb.putFloat((float)(((Short)(itm.value)).shortValue()));
-					else if ( itm.value instanceof Long ) 		bb.putFloat((float)(((Long)(itm.value)).longValue()));							
-					else if ( itm.value instanceof Boolean ) 	bb.putFloat((float)(((Boolean)(itm.value)).booleanValue()?1.0f:0.0f));
-					else System.out.println("unsupported data conversion for index " + idx);
-				} break;
+				continue;
+			}
 			
-				case INT:
+			if (attr_name.equals("destinations"))
+			{
+				String[] dest_names = attr_value.split(",");
+				for (int j = 0; j < dest_names.length; j++)
 				{
-						 if ( itm.value instanceof Integer ) 	bb.putInt((int)(((Integer)(itm.value)).intValue()));							
-					else if ( itm.value instanceof Short ) 		bb.putInt((int)(((Short)(itm.value)).shortValue()));	
-					else if ( itm.value instanceof Long ) 		bb.putInt((int)(((Long)(itm.value)).longValue()));						
-					else if ( itm.value instanceof Boolean ) 	bb.putInt((int)(((Boolean)(itm.value)).booleanValue()?1:0));
-					else if ( itm.value instanceof Float ) 		bb.putInt((int)(((Float)(itm.value)).floatValue()));
-				    else if ( itm.value instanceof Double ) 	bb.putInt((int)(((Double)(itm.value)).doubleValue()));							
-					else System.out.println("unsupported data conversion for index " + idx);
-				} break;
+					dest_names[j] = dest_names[j].trim();
+					if (! hasDestination(dest_names[j]))
+					{
+						RelayLog.error("ERROR parsing configuration file, unknown destination " + dest_names[j] + " for " + name);
+					}
+				}
+				message.setDestinations(dest_names);
+			}
+			else if (Destination.isMessageSetting(attr_name))
+			{
+				message.setSetting(attr_name, attr_value);
+			}
+			else if (new Destination().setSetting(attr_name, attr_value))
+			{
+				RelayLog.error("ERROR parsing configuration file, " + attr_name + " of " + name + " is a destination attribute, " + 
+						"it is not used for a message");
+			}
+			else
+			{
+				RelayLog.error("ERROR parsing configuration file, unknown message attribute " + attr_name);
+			}
+		}
+		
+		NodeList nodes = xml.getElementsByTagName("value");
+		for (int i = 0; i < nodes.getLength(); i++)
+		{
+			Element element = (Element)(nodes.item(i));
+			
+			if (element.hasAttribute("name") && element.hasAttribute("type") && element.hasAttribute("default"))
+			{
+				String key = element.getAttribute("name");
 				
-				case SHORT:
+				String type_str = element.getAttribute("type").toLowerCase();
+				String default_value = element.getAttribute("default");
+				
+				ValueType type;
+				Object default_obj;
+				
+				switch(type_str) {
+					case("long"):
+					case("int64"):
+						type = ValueType.LONG;
+						default_obj = new Long(default_value);
+						break;
+					case("int"):
+					case("int32"):
+						type = ValueType.INT;
+						default_obj = new Integer(default_value);
+						break;
+					case("short"):
+					case("int16"):
+						type = ValueType.SHORT;
+						default_obj = new Short(default_value);
+						break;
+					case("single"):
+					case("float"):
+						type = ValueType.FLOAT;
+						default_obj = new Float(default_value);
+						break;
+					case("double"):
+						type = ValueType.DOUBLE;
+						default_obj = new Double(default_value);
+						break;
+					case("bool"):
+					case("boolean"):
+						type = ValueType.BOOLEAN;
+						default_obj = new Boolean(default_value);
+						break;
+					case("string"):
+						type = ValueType.STRING;
+						default_obj = default_value;
+						break;
+					case("double[]"):
+					case("double_array"):
+						type = ValueType.DOUBLE_ARRAY;
+						default_obj = parseArray(type, default_value);
+						break;
+					case("bool[]"):
+					case("boolean[]"):
+					case("boolean_array"):
+						type = ValueType.BOOLEAN_ARRAY;
+						default_obj = parseArray(type, default_value);
+						break;
+					default:
+						RelayLog.error("ERROR parsing configuration file, unsupported value type of " + type_str);
+						continue;
+				}
+				
+				int capacity = MessageLayout.DEFAULT_CAPACITY;
+				if (element.hasAttribute("max_length"))
 				{
-						 if ( itm.value instanceof Short ) 		bb.putShort((short)(((Short)(itm.value)).shortValue()));							
-					else if ( itm.value instanceof Integer ) 	bb.putShort((short)(((Integer)(itm.value)).intValue()));							
-					else if ( itm.value instanceof Boolean ) 	bb.putShort((short)(((Boolean)(itm.value)).booleanValue()?1:0));
-					else if ( itm.value instanceof Float ) 		bb.putShort((short)(((Float)(itm.value)).floatValue()));
-					else if ( itm.value instanceof Long ) 		bb.putShort((short)(((Long)(itm.value)).longValue()));
-				    else if ( itm.value instanceof Double ) 	bb.putShort((short)(((Double)(itm.value)).doubleValue()));							
-					else System.out.println("unsupported data conversion for index " + idx);
-				} break;
+					capacity = Integer.parseInt(element.getAttribute("max_length"));
+					if ((capacity < 1) || (capacity > MessageLayout.MAX_CAPACITY))
+					{
+						RelayLog.error("ERROR parsing configuration file, max_length of " + key + " must be 1 to " + MessageLayout.MAX_CAPACITY);
+						continue;
+					}
+				}
 				
-				case LONG:
+				String table = element.hasAttribute("table") ? element.getAttribute("table") : ValueSource.DEFAULT_TABLE;
+				String source_name = element.getAttribute("source");
+				
+				ValueSource source = null;
+				int idx;
+				int source_idx = -1;
+				
+				if (inbound)
 				{
-					 	 if ( itm.value instanceof Long ) 		bb.putLong((long)(((Long)(itm.value)).longValue()));							
-					else if ( itm.value instanceof Integer ) 	bb.putLong((long)(((Integer)(itm.value)).intValue()));							
-					else if ( itm.value instanceof Boolean ) 	bb.putLong((long)(((Boolean)(itm.value)).booleanValue()?1:0));
-					else if ( itm.value instanceof Float ) 		bb.putLong((long)(((Float)(itm.value)).floatValue()));
-					else if ( itm.value instanceof Short ) 		bb.putLong((long)(((Short)(itm.value)).shortValue()));
-				    else if ( itm.value instanceof Double ) 	bb.putLong((long)(((Double)(itm.value)).doubleValue()));							
-					else System.out.println("unsupported data conversion for index " + idx);
-				} break;
+					idx = message.addValue(ValueSource.storeKey("", table, key), type, default_obj, capacity, -1);
+					if (idx < 0)
+					{
+						RelayLog.error("Error: duplicate key in " + name + " - " + key);
+						continue;
+					}
+					
+					in_tables.add(table);
+					in_keys.add(key);
+				}
+				else
+				{
+					source = getSource(source_name);
+					if (source == null)
+					{
+						RelayLog.error("ERROR parsing configuration file, unknown source " + source_name + " for " + key);
+						continue;
+					}
+					
+					String store_key = ValueSource.storeKey(source_name, table, key);
+					boolean is_new = (layout.getSlot(store_key) < 0);
+					
+					int slot = addValue(store_key, type, default_obj, capacity);
+					if (slot < 0)
+					{
+						continue;
+					}
+					
+					idx = message.addValue(store_key, type, default_obj, capacity, slot);
+					if (idx < 0)
+					{
+						RelayLog.error("Error: duplicate key in " + name + " - " + store_key);
+						continue;
+					}
+					
+					source_idx = is_new ? source.addValue(table, key, type, default_obj, capacity, slot) : -1;
+				}
 				
-				case BOOLEAN: 
+				if (element.hasAttribute("bits") || element.getAttribute("packed").toLowerCase().startsWith("t"))
 				{
-						 if ( itm.value instanceof Boolean ) 	bb.put((byte)(((Boolean)(itm.value)).booleanValue()?1:0));
-					else if ( itm.value instanceof Short ) 		bb.put((byte)(((Short)(itm.value)).shortValue() > 0?1:0));							
-					else if ( itm.value instanceof Integer ) 	bb.put((byte)(((Integer)(itm.value)).intValue() > 0?1:0));							
-					else if ( itm.value instanceof Float ) 		bb.put((byte)(((Float)(itm.value)).floatValue() > 0?1:0));
-					else if ( itm.value instanceof Long ) 		bb.put((byte)(((Long)(itm.value)).longValue()));
-				    else if ( itm.value instanceof Double ) 	bb.put((byte)(((Double)(itm.value)).doubleValue() > 0?1:0));							
-					else System.out.println("unsupported data conversion for index " + idx);
-				} break;
+					try
+					{
+						int bits = element.hasAttribute("bits") ? Integer.parseInt(element.getAttribute("bits")) : 1;
+						double scale = element.hasAttribute("scale") ? Double.parseDouble(element.getAttribute("scale")) : 1.0;
+						double offset = element.hasAttribute("offset") ? Double.parseDouble(element.getAttribute("offset")) : 0.0;
+						
+						message.getLayout().setEncoding(idx, bits, scale, offset);
+						
+						// a relay source receives the value with the same encoding
+						if (source_idx >= 0)
+						{
+							source.getLayout().setEncoding(source_idx, bits, scale, offset);
+						}
+					}
+					catch (IllegalArgumentException e)
+					{
+						RelayLog.error("ERROR parsing configuration file, invalid encoding for " + key + ": " + e.getMessage());
+					}
+				}
 			}
+			else
+			{
+				RelayLog.error("ERROR parsing configuration file, invalid value element, missing required attribute name|type|default");
+			}	
 		}
 		
-		// Put in the message length
-		int size = bb.position();
-		bb.putShort(4, (short)size);
+		// the largest message, with every header option and every string
+		// and array at its capacity, must fit in the 16 bit message size
+		MessageLayout msg_layout = message.getLayout();
+		int message_size = MessageEncoder.EXTENDED_HEADER_SIZE + MessageEncoder.MESSAGE_ID_SIZE + MessageEncoder.TIMESTAMP_HEADER_SIZE + 
+				MessageEncoder.SCHEMA_VERSION_SIZE + 
+				((msg_layout.getSize() + 7) / 8) + msg_layout.getDataSize();
+		if (message_size > MessageEncoder.MAX_MESSAGE_SIZE)
+		{
+			RelayLog.error("ERROR message size of " + name + " (" + message_size +") greater than allowed (" + MessageEncoder.MAX_MESSAGE_SIZE + 
+					"), message not sent");
+			return;
+		}
 		
-		return size;
+		if (inbound)
+		{
+			if (ingest == null)
+			{
+				RelayLog.error("ERROR parsing configuration file, " + name + " has direction=\"in\" but there is no ingest tag");
+			}
+			else if (! ingest.addMessage(message, in_tables.toArray(new String[in_tables.size()]), in_keys.toArray(new String[in_keys.size()])))
+			{
+				RelayLog.error("ERROR parsing configuration file, more than one message with direction=\"in\" has the id of " + name);
+			}
+			return;
+		}
+		
+		buffer_size = Math.max(buffer_size, message_size);
+		messages.add(message);
+		message_ids.add(id);
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Parse the default value of an array, a comma separated list of the
+	 * elements, which may be empty.
+	 * 
+ 	 *************************************************************************/
+	private static Object parseArray(ValueType type, String text)
+	{
+		String[] items = text.trim().isEmpty() ? new String[0] : text.split(",");
+		
+		if (type == ValueType.DOUBLE_ARRAY)
+		{
+			double[] a = new double[items.length];
+			for (int i = 0; i < items.length; i++)
+			{
+				a[i] = Double.parseDouble(items[i].trim());
+			}
+			return a;
+		}
+		
+		boolean[] a = new boolean[items.length];
+		for (int i = 0; i < items.length; i++)
+		{
+			a[i] = Boolean.parseBoolean(items[i].trim());
+		}
+		return a;
 	}
 	
 	/**************************************************************************
@@ -522,57 +1107,118 @@ public class NetTableToSocket
 	 *************************************************************************/
 	void generateRandomData()
 	{
-		Enumeration<ValueItem> vals = value_list.elements();
-
-		while(vals.hasMoreElements())
+		for (int i = 0; i < layout.getSize(); i++)
 		{
-			ValueItem itm = vals.nextElement();
+			ValueType type = layout.getType(i);
+			long bits = store.get(i);
 			
-			switch(itm.type)
+			switch(type)
 			{
 				case DOUBLE:
+				case FLOAT:
 				{
-					double v = (double)(((Double)(itm.value)).doubleValue());
+					double v = MessageLayout.toDouble(type, bits);
 					if (Math.abs(v) < 0.01) v = 1.0;
-					itm.value = (Double)(v + ((Math.random() - 0.5) * (v / 100.0)));
+					store.set(i, MessageLayout.fromDouble(type, v + ((Math.random() - 0.5) * (v / 100.0))));
 				} break;
 				
-				case FLOAT:
-				{
-					float v = (float)(((Float)(itm.value)).floatValue());
-					if (Math.abs(v) < 0.01) v = 1.0f;
-					itm.value = (Float)(v + (float)((Math.random() - 0.5) * (v / 100.0)));
-				} break;
-			
 				case INT:
-				{
-					int v = (int)(((Integer)(itm.value)).intValue());
-					itm.value = (Integer)(v + (int)((Math.random() - 0.5) * 10));
-				} break;
-				
 				case SHORT:
-				{
-					short v = (short)(((Short)(itm.value)).shortValue());
-					itm.value = (Short)((short)(v + ((Math.random() - 0.5) * 10)));
-				} break;
-				
 				case LONG:
 				{
-					long v = (long)(((Long)(itm.value)).longValue());
-					itm.value = (Long)((long)(v + ((Math.random() - 0.5) * 10)));
+					store.set(i, MessageLayout.fromLong(type, (long)(bits + ((Math.random() - 0.5) * 10))));
 				} break;
 				
 				case BOOLEAN: 
 				{
 					if (Math.random() > 0.9)
 					{
-						itm.value = (Boolean)(! ((Boolean)(itm.value)).booleanValue());
+						store.set(i, (bits != 0) ? 0 : 1);
 					}
 				} break;
 			}
 		}
 	}
 	
+	/**************************************************************************
+	 * 
+	 * Create the value store for the values added so far. This must be done
+	 * before any table listener threads are started.
+	 * 
+	 *************************************************************************/
+	ValueStore createStore()
+	{
+		store = new ValueStore(layout);
+		metrics = new RelayMetrics(layout);
+		metrics.setStore(store);
+		slot_triggers = new SendTrigger[layout.getSize()][0];
+		return store;
+	}
+	
+	RelayMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**************************************************************************
+	 * 
+	 * @return the slot of a value in the store, -1 if it was never added
+	 * 
+	 *************************************************************************/
+	int getSlot(String key)
+	{
+		return layout.getSlot(key);
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Collect the send triggers of every stream, and for each value the 
+	 * triggers of the streams sent on change that include it, so an update
+	 * only wakes the messages it is in.
+	 * 
+	 *************************************************************************/
+	private void setTriggers(ArrayList<SenderPipeline> senders)
+	{
+		ArrayList<SendTrigger> triggers = new ArrayList<SendTrigger>();
+		SendTrigger[][] by_slot = new SendTrigger[layout.getSize()][0];
+		
+		for (SenderPipeline sender : senders)
+		{
+			for (MessageStream stream : sender.getStreams())
+			{
+				SendTrigger trigger = stream.getSendTrigger();
+				if (trigger.getMode() != SendTrigger.SendMode.CHANGE)
+				{
+					continue;
+				}
+				
+				triggers.add(trigger);
+				for (int slot : stream.getMessage().getStoreSlots())
+				{
+					by_slot[slot] = Arrays.copyOf(by_slot[slot], by_slot[slot].length + 1);
+					by_slot[slot][by_slot[slot].length - 1] = trigger;
+				}
+			}
+		}
+		
+		send_triggers = triggers.toArray(new SendTrigger[triggers.size()]);
+		slot_triggers = by_slot;
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Tell every message sent on change that one or more values have changed.
+	 * 
+	 *************************************************************************/
+	private void valuesChanged()
+	{
+		SendTrigger[] triggers = send_triggers;
+		for (int i = 0; i < triggers.length; i++)
+		{
+			triggers[i].valueChanged();
+		}
+	}
+	
 	/**************************************************************************
 	 * 
 	 * Add a name-pair value that should be included in the messages, a default
@@ -582,25 +1228,53 @@ public class NetTableToSocket
 	 * @param type			the type of the value
 	 * @param default_value a default value
 	 * 
+	 * @return the slot of the value in the store, or -1 if the value could
+	 *         not be added. A key that was already added (to another message)
+	 *         with the same type shares the slot.
+	 * 
 	 *************************************************************************/
-	public void addValue(String key, ValueType type, Object default_value)
+	public int addValue(String key, ValueType type, Object default_value)
 	{
-		System.out.println("adding " + key);
-		
-		if (value_map.containsKey(key))
+		return addValue(key, type, default_value, MessageLayout.DEFAULT_CAPACITY);
+	}
+	
+	/**************************************************************************
+	 * 
+	 * Add a name-pair value that should be included in the messages.
+	 * 
+	 * @param key			the name of the value as it will be in the network table
+	 * @param type			the type of the value
+	 * @param default_value a default value
+	 * @param capacity		the most bytes of a string or elements of an array
+	 * 
+	 * @return the slot of the value in the store, or -1 if the value could
+	 *         not be added. A key that was already added (to another message)
+	 *         with the same type and capacity shares the slot.
+	 * 
+	 *************************************************************************/
+	public int addValue(String key, ValueType type, Object default_value, int capacity)
+	{
+		int idx = layout.getSlot(key);
+		if (idx >= 0)
 		{
-			System.out.println("Error: duplicate key - " + key);
-			return;
+			if ((layout.getType(idx) != type) || (MessageLayout.isVariable(type) && (layout.getCapacity(idx) != capacity)))
+			{
+				RelayLog.error("Error: duplicate key with a different type or max_length - " + key);
+				return -1;
+			}
+			
+			return idx;
 		}
 		
-		ValueItem itm = new ValueItem();
-		itm.type = type;
-		itm.value = default_value;
-
-		int idx = value_list.size();
-		value_list.addElement(itm);
+		RelayLog.info("adding " + key);
 		
-		value_map.put(key, idx);
+		idx = layout.addValue(key, type, default_value, capacity);
+		if (idx < 0)
+		{
+			RelayLog.error("Error: invalid default value for key - " + key);
+		}
+		
+		return idx;
 	}
 	
 	/**************************************************************************
@@ -614,77 +1288,91 @@ public class NetTableToSocket
 	 **************************************************************************/
     public void setValue(String key, Object value) 
     {
-		if (value_map.containsKey(key))
+		int idx = layout.getSlot(key);
+		if (idx >= 0)
 		{
-
-	    	int idx = value_map.get(key);
-			ValueItem itm = value_list.get(idx);
-			itm.value = value;
-
-//			System.out.println("got value: " + key + " [" + idx + "]  = " + value);
+			setValue(idx, value);
+		}
+		else
+		{
+			metrics.updateIgnored();
 		}
     }
-}
+    
+	/**************************************************************************
+	 * 
+	 * Set the value in a slot of the store.
+	 * 
+	 * This is called directly from the network table listener thread, the
+	 * value store does not need any locks.
+	 * 
+	 * @param idx	the slot of the value, from addValue()
+	 * @param value the value
+	 * 
+	 **************************************************************************/
+    public void setValue(int idx, Object value) 
+    {
+		try
+		{
+			if (store.setValue(idx, value))
+			{
+				metrics.updateTruncated();
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			metrics.updateRejected();
+			RelayLog.debug(e.getMessage() + " for " + layout.getKey(idx));
+			return;
+		}
 
-/******************************************************************************
- * 
- * This class listens for changed to the SmartDashboard ITable, any changes 
- * are reported to the DashboardToUdp application via the setValue method.
- * 
- * @reference This was originally copied from the wpilib SmartDashboard DashboardPanel.java file
- * 
- *****************************************************************************/
-class MyTableListener implements ITableListener 
-{
-	private NetTableToSocket my_app;
-	
-	public MyTableListener(NetTableToSocket app)
-	{
-		my_app = app;
-	}
-	
-    @Override
-    public void valueChanged(final ITable source, final String key, final Object value, final boolean isNew) 
+		valueUpdated(idx);
+
+//		RelayLog.debug("got value: " + layout.getKey(idx) + " = " + value);
+    }
+    
+	/**************************************************************************
+	 * 
+	 * Set the bits of a slot, already converted to the type of the slot (see
+	 * MessageLayout), for sources that do not receive boxed values.
+	 * 
+	 * @param idx	the slot of the value, from addValue()
+	 * @param bits	the bits of the value
+	 * 
+	 **************************************************************************/
+    public void setBits(int idx, long bits) 
     {
-    	if (value instanceof ITable) 
-        {
-            final ITable table = (ITable) value;
-            table.addTableListenerEx
-            (
-            	"~TYPE~", 
-        		new ITableListener() 
-        		{
-	                public void valueChanged(final ITable typeSource, final String typeKey, final Object typeValue, final boolean typeIsNew) 
-	                {
-	                    table.removeTableListener(this);
-	                    SwingUtilities.invokeLater
-	                    (
-	                    	new Runnable() 
-		                    {
-		                        public void run() 
-		                        {
-		                        	my_app.setValue(key, value);
-		                        }
-		                    }
-	                    );
-	                }
-        		}, 
-	            ITable.NOTIFY_IMMEDIATE | ITable.NOTIFY_LOCAL | ITable.NOTIFY_NEW | ITable.NOTIFY_UPDATE
-	        );
-        } 
-        else 
-        {
-            SwingUtilities.invokeLater
-            (
-            	new Runnable() 
-	            {
-	                public void run() 
-	                {
-	                	my_app.setValue(key, value);
-	                }
-	            }
-            );
-        } 
+		store.set(idx, bits);
+		valueUpdated(idx);
+    }
+    
+	/**************************************************************************
+	 * 
+	 * Set a slot, of any type, from slot values already converted to the 
+	 * type of the slot (see MessageLayout).
+	 * 
+	 * @param idx		the slot of the value, from addValue()
+	 * @param values	the slot values of a layout with the same value
+	 * @param pos		the position of the value in the slot values
+	 * 
+	 **************************************************************************/
+    public void setBits(int idx, long[] values, int pos) 
+    {
+		store.set(idx, values, pos);
+		valueUpdated(idx);
+    }
+    
+	/**************************************************************************
+	 * 
+	 * Tell the messages sent on change that include a slot that it changed.
+	 * 
+	 **************************************************************************/
+    private void valueUpdated(int idx) 
+    {
+		SendTrigger[] triggers = slot_triggers[idx];
+		for (int i = 0; i < triggers.length; i++)
+		{
+			triggers[i].valueChanged();
+		}
     }
 }
-
@@ -0,0 +1,125 @@
+package HoloFirst;
+
+import edu.wpi.first.wpilibj.networktables.NetworkTable;
+import edu.wpi.first.wpilibj.tables.ITable;
+
+/******************************************************************************
+ *
+ * A ValueSource that receives values from a network table server as a
+ * network table client.
+ *
+ * Each value is subscribed to on its own (see KeyListener), in any table,
+ * so only the keys that are in a message are ever passed to the
+ * application.
+ *
+ * The network tables library has a single client connection per process,
+ * so every network table source must use the same host. Values from another
+ * host can be received with a RelaySource from a relay running near that
+ * host.
+ *
+ *****************************************************************************/
+public class NetworkTableSource extends ValueSource
+{
+	private static final String NETWORK_IDENTITY = "SmartDashboard";
+
+	private static String client_host = null;
+
+	private final String host;
+
+	private ITable[] subscribed = new ITable[0];
+	private KeyListener[] listeners = new KeyListener[0];
+
+	/**************************************************************************
+	 *
+	 * @param name	the name of the source, empty for the default source
+	 * @param app	the application to send the updates to
+	 * @param host	the address of the network table server
+	 *
+	 *************************************************************************/
+	public NetworkTableSource(String name, NetTableToSocket app, String host)
+	{
+		super(name, app);
+		this.host = host;
+	}
+
+	/**************************************************************************
+	 *
+	 * Connect to the server, if not already connected, and subscribe to
+	 * every value of this source.
+	 *
+	 *************************************************************************/
+	@Override
+	public void start()
+	{
+		if (! connect(host, "source " + name))
+		{
+			return;
+		}
+
+		// subscribe to just the keys in the messages, a key with a '/' is in
+		// a sub table, for example "Vision/range"
+		subscribed = new ITable[keys.length];
+		listeners = new KeyListener[keys.length];
+		for (int i = 0; i < keys.length; i++)
+		{
+			subscribed[i] = NetworkTable.getTable(tables[i]);
+			listeners[i] = new KeyListener(app, store_slots[i]);
+			subscribed[i].addTableListenerEx(keys[i], listeners[i],
+					ITable.NOTIFY_IMMEDIATE | ITable.NOTIFY_LOCAL | ITable.NOTIFY_NEW | ITable.NOTIFY_UPDATE);
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Connect the network table client to a server, if not already
+	 * connected. Also used to publish values (see IngestServer).
+	 *
+	 * @param host	the address of the server
+	 * @param user	what the connection is for, for log messages
+	 *
+	 * @return false if the client is already connected to another host
+	 *
+	 *************************************************************************/
+	static boolean connect(String host, String user)
+	{
+		synchronized (NetworkTableSource.class)
+		{
+			if (client_host == null)
+			{
+				RelayLog.info("Getting data from " + host + ":" + NetworkTable.DEFAULT_PORT);
+
+				NetworkTable.setClientMode();
+				NetworkTable.setIPAddress(host);
+				NetworkTable.setPort(NetworkTable.DEFAULT_PORT);
+				NetworkTable.setNetworkIdentity(NETWORK_IDENTITY);
+				NetworkTable.initialize();
+
+				client_host = host;
+			}
+			else if (! client_host.equals(host))
+			{
+				RelayLog.error("ERROR only one network table host is supported, " + user + " (" + host +
+						") not started, already connected to " + client_host);
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**************************************************************************
+	 *
+	 * Unsubscribe from every value of this source, the client stays
+	 * connected for the sources of a new configuration.
+	 *
+	 *************************************************************************/
+	@Override
+	public void stop()
+	{
+		for (int i = 0; i < listeners.length; i++)
+		{
+			subscribed[i].removeTableListener(listeners[i]);
+		}
+		listeners = new KeyListener[0];
+	}
+}
@@ -0,0 +1,274 @@
+package HoloFirst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/******************************************************************************
+ *
+ * This class reads the messages of a recording made by a
+ * RecordingTransport, in the order they were sent, from memory-mapped
+ * segment files.
+ *
+ * The index of the recording is read when it is opened, so seek() can
+ * start at any time in the recording and only reads the messages of the
+ * second before it.
+ *
+ *****************************************************************************/
+public class RecordingReader
+{
+	private final String name;
+
+	private final long[] index_times;
+	private final int[] index_segments;
+	private final int[] index_positions;
+
+	private MappedByteBuffer segment = null;
+	private int segment_number = -1;
+
+	private long start_time = 0;
+	private int max_message_size = 0;
+	private long time = 0;
+
+	/**************************************************************************
+	 *
+	 * Open a recording.
+	 *
+	 * @param path the name of the recording, or any of its files
+	 *
+	 * @throws IOException if the recording cannot be read
+	 *
+	 *************************************************************************/
+	public RecordingReader(String path) throws IOException
+	{
+		String n = path;
+		int dot = n.lastIndexOf('.');
+		if ((dot > n.lastIndexOf(File.separatorChar)) && ! new File(n + RecordingTransport.INDEX_EXTENSION).exists())
+		{
+			n = n.substring(0, dot);
+		}
+		this.name = n;
+
+		ByteBuffer bb;
+		RandomAccessFile file = new RandomAccessFile(name + RecordingTransport.INDEX_EXTENSION, "r");
+		try
+		{
+			bb = ByteBuffer.allocate((int)file.length()).order(ByteOrder.LITTLE_ENDIAN);
+			file.getChannel().read(bb, 0);
+			bb.flip();
+		}
+		finally
+		{
+			file.close();
+		}
+
+		int entries = bb.remaining() / RecordingTransport.INDEX_ENTRY_SIZE;
+		index_times = new long[entries];
+		index_segments = new int[entries];
+		index_positions = new int[entries];
+		for (int i = 0; i < entries; i++)
+		{
+			index_times[i] = bb.getLong();
+			index_segments[i] = bb.getInt();
+			index_positions[i] = bb.getInt();
+		}
+
+		if (! openSegment(0))
+		{
+			throw new IOException(name + " is not a recording");
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the time the recording started, microseconds since 1970
+	 *
+	 *************************************************************************/
+	public long getStartTime()
+	{
+		return start_time;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the size of the largest message in the recording
+	 *
+	 *************************************************************************/
+	public int getMaxMessageSize()
+	{
+		return max_message_size;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the time the last message read was sent, microseconds since
+	 *         1970
+	 *
+	 *************************************************************************/
+	public long getTime()
+	{
+		return time;
+	}
+
+	/**************************************************************************
+	 *
+	 * Go back to the first message.
+	 *
+	 *************************************************************************/
+	public void rewind() throws IOException
+	{
+		openSegment(0);
+	}
+
+	/**************************************************************************
+	 *
+	 * Move to the first message sent at or after a time.
+	 *
+	 * @param seek_time microseconds since 1970
+	 *
+	 *************************************************************************/
+	public void seek(long seek_time) throws IOException
+	{
+		// the last index entry before the time
+		int lo = 0;
+		int hi = index_times.length - 1;
+		int entry = -1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (index_times[mid] <= seek_time)
+			{
+				entry = mid;
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid - 1;
+			}
+		}
+
+		if ((entry < 0) || ! openSegment(index_segments[entry]))
+		{
+			openSegment(0);
+		}
+		else
+		{
+			segment.position(index_positions[entry]);
+		}
+
+		while (nextRecord() && (segment.getLong(segment.position()) < seek_time))
+		{
+			int pos = segment.position();
+			segment.position(pos + RecordingTransport.RECORD_HEADER_SIZE + segment.getInt(pos + 8));
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Copy the next message.
+	 *
+	 * @param dst the buffer to copy the message to, at its position
+	 *
+	 * @return the size of the message, -1 at the end of the recording
+	 *
+	 *************************************************************************/
+	public int next(ByteBuffer dst) throws IOException
+	{
+		if (! nextRecord())
+		{
+			return -1;
+		}
+
+		int pos = segment.position();
+		time = segment.getLong(pos);
+		int size = segment.getInt(pos + 8);
+
+		ByteBuffer view = segment.duplicate();
+		view.limit(pos + RecordingTransport.RECORD_HEADER_SIZE + size);
+		view.position(pos + RecordingTransport.RECORD_HEADER_SIZE);
+		dst.put(view);
+
+		segment.position(pos + RecordingTransport.RECORD_HEADER_SIZE + size);
+		return size;
+	}
+
+	/**************************************************************************
+	 *
+	 * Move to the next segment if the current one has no more messages.
+	 *
+	 * @return false at the end of the recording
+	 *
+	 *************************************************************************/
+	private boolean nextRecord() throws IOException
+	{
+		while (true)
+		{
+			if (segment.remaining() >= RecordingTransport.RECORD_HEADER_SIZE)
+			{
+				int size = segment.getInt(segment.position() + 8);
+				if ((size > 0) && (size <= segment.remaining() - RecordingTransport.RECORD_HEADER_SIZE))
+				{
+					return true;
+				}
+			}
+
+			if (! openSegment(segment_number + 1))
+			{
+				// stay at the end of the last segment
+				segment.position(segment.limit());
+				return false;
+			}
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Map a segment file and move to its first message.
+	 *
+	 * @return false if there is no such segment
+	 *
+	 *************************************************************************/
+	private boolean openSegment(int number) throws IOException
+	{
+		File f = new File(RecordingTransport.segmentFile(name, number));
+		if (! f.exists())
+		{
+			return false;
+		}
+
+		MappedByteBuffer bb;
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try
+		{
+			bb = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		finally
+		{
+			file.close();
+		}
+
+		bb.order(ByteOrder.LITTLE_ENDIAN);
+		if ((bb.capacity() < RecordingTransport.SEGMENT_HEADER_SIZE) || (bb.getInt(0) != RecordingTransport.MAGIC) ||
+				(bb.getInt(4) != RecordingTransport.VERSION) || (bb.getInt(8) != number))
+		{
+			throw new IOException(f + " is not segment " + number + " of a recording");
+		}
+
+		max_message_size = Math.max(max_message_size, bb.getInt(12));
+		start_time = bb.getLong(16);
+
+		bb.position(RecordingTransport.SEGMENT_HEADER_SIZE);
+		segment = bb;
+		segment_number = number;
+		return true;
+	}
+}
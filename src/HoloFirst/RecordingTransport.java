@@ -0,0 +1,254 @@
+package HoloFirst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/******************************************************************************
+ *
+ * This transport records every message it is sent, with the time it was
+ * sent, so a match can be played back later (see RecordingReader and
+ * FrameReplay).
+ *
+ * Each run of the relay starts a new recording, named record_file followed
+ * by the date and time, and a number if that recording already exists. The
+ * messages are appended to memory-mapped segment files of segment_size
+ * bytes, <name>.000, <name>.001 and so on, so recording a message is only a
+ * copy into memory and never waits for the disk. Once a second an entry is
+ * added to the index file <name>.idx, so a replay can start at any time in
+ * the recording without reading it all.
+ *
+ * All numbers are little endian:
+ *
+ *    segment header, SEGMENT_HEADER_SIZE bytes
+ *    start   length  value
+ *    0       4       MAGIC
+ *    4       4       VERSION
+ *    8       4       segment number, from 0
+ *    12      4       largest message size
+ *    16      8       time the recording started, microseconds since 1970
+ *    24      8       unused
+ *
+ *    each message, from SEGMENT_HEADER_SIZE
+ *    0       8       time sent, microseconds since 1970
+ *    8       4       message size, 0 for the end of the segment
+ *    12      xx      the message
+ *
+ *    each index entry, INDEX_ENTRY_SIZE bytes
+ *    0       8       time sent of the message
+ *    8       4       segment number
+ *    12      4       position of the message in the segment
+ *
+ *****************************************************************************/
+public class RecordingTransport implements Transport
+{
+	public static final int MAGIC = 0x48465243; // "HFRC"
+	public static final int VERSION = 1;
+	public static final int SEGMENT_HEADER_SIZE = 32;
+	public static final int RECORD_HEADER_SIZE = 12;
+	public static final int INDEX_ENTRY_SIZE = 16;
+
+	static final String INDEX_EXTENSION = ".idx";
+
+	private static final long INDEX_PERIOD_US = 1000000L;
+
+	private final String record_file;
+	private final int buffer_size;
+	private final int segment_size;
+
+	private String name = null;
+	private long start_time = 0;
+
+	private MappedByteBuffer segment = null;
+	private int segment_number = -1;
+
+	private FileChannel index = null;
+	private final ByteBuffer index_entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private long next_index_time = 0;
+
+	private DestinationMetrics metrics = new DestinationMetrics("");
+
+	/**************************************************************************
+	 *
+	 * @param record_file	the path and start of the name of the recording
+	 * @param segment_size	the size of each segment file, bytes
+	 * @param buffer_size	the largest message that will be sent
+	 *
+	 *************************************************************************/
+	public RecordingTransport(String record_file, int segment_size, int buffer_size)
+	{
+		this.record_file = record_file;
+		this.buffer_size = buffer_size;
+		this.segment_size = Math.max(segment_size, SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + buffer_size);
+	}
+
+	@Override
+	public void open() throws IOException
+	{
+		start_time = RelayClock.nowMicros();
+		name = record_file + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(start_time / 1000));
+
+		// a recording reopened within the same second, after a reload
+		String base = name;
+		for (int n = 1; new File(name + INDEX_EXTENSION).exists(); n++)
+		{
+			name = base + "-" + n;
+		}
+
+		File parent = new File(name).getAbsoluteFile().getParentFile();
+		if (parent != null)
+		{
+			parent.mkdirs();
+		}
+
+		index = new RandomAccessFile(name + INDEX_EXTENSION, "rw").getChannel();
+		index.truncate(0);
+		next_index_time = 0;
+
+		segment_number = -1;
+		nextSegment();
+
+		RelayLog.info("Recording messages to " + name);
+	}
+
+	/**************************************************************************
+	 *
+	 * Append a message to the recording.
+	 *
+	 * @return false if the recording is not open or could not be written
+	 *
+	 *************************************************************************/
+	@Override
+	public boolean send(ByteBuffer frame)
+	{
+		if (segment == null)
+		{
+			return false;
+		}
+
+		long now = RelayClock.nowMicros();
+		int size = frame.remaining();
+
+		try
+		{
+			if (segment.remaining() < RECORD_HEADER_SIZE + size)
+			{
+				nextSegment();
+			}
+
+			if (now >= next_index_time)
+			{
+				index_entry.clear();
+				index_entry.putLong(now);
+				index_entry.putInt(segment_number);
+				index_entry.putInt(segment.position());
+				index_entry.flip();
+				index.write(index_entry);
+
+				next_index_time = now + INDEX_PERIOD_US;
+			}
+		}
+		catch (IOException e)
+		{
+			metrics.sendFailed();
+			RelayLog.error("Could not write recording " + name, e);
+			close();
+			return false;
+		}
+
+		// the size is written last, so a reader of an unfinished segment
+		// never sees a partly written message
+		int pos = segment.position();
+		segment.position(pos + RECORD_HEADER_SIZE);
+		segment.put(frame);
+		segment.putLong(pos, now);
+		segment.putInt(pos + 8, size);
+
+		return true;
+	}
+
+	@Override
+	public void flush()
+	{
+		// messages are never held
+	}
+
+	@Override
+	public boolean keyframeNeeded()
+	{
+		return false;
+	}
+
+	@Override
+	public void setMetrics(DestinationMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void close()
+	{
+		if (segment != null)
+		{
+			segment.force();
+			segment = null;
+		}
+
+		try { if (index != null) index.close(); } catch (Exception e) { }
+		index = null;
+	}
+
+	@Override
+	public String getName()
+	{
+		return record_file + ":RECORD";
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the name of the segment file with the given number
+	 *
+	 *************************************************************************/
+	static String segmentFile(String name, int number)
+	{
+		return String.format("%s.%03d", name, number);
+	}
+
+	/**************************************************************************
+	 *
+	 * Map the next segment file, the previous one is written to the disk by
+	 * the operating system.
+	 *
+	 *************************************************************************/
+	private void nextSegment() throws IOException
+	{
+		segment_number++;
+
+		RandomAccessFile file = new RandomAccessFile(segmentFile(name, segment_number), "rw");
+		try
+		{
+			file.setLength(0);
+			file.setLength(segment_size);
+			segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment_size);
+		}
+		finally
+		{
+			// the mapping stays valid after the file is closed
+			file.close();
+		}
+
+		segment.order(ByteOrder.LITTLE_ENDIAN);
+		segment.putInt(MAGIC);
+		segment.putInt(VERSION);
+		segment.putInt(segment_number);
+		segment.putInt(buffer_size);
+		segment.putLong(start_time);
+		segment.putLong(0);
+	}
+}
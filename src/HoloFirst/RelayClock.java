@@ -0,0 +1,48 @@
+package HoloFirst;
+
+/******************************************************************************
+ *
+ * This class converts System.nanoTime() readings to wall clock time in
+ * microseconds, so time stamps in messages have better than millisecond
+ * resolution and never step backwards while the relay is running.
+ *
+ *****************************************************************************/
+public class RelayClock
+{
+	private static final long EPOCH_OFFSET_NS = (System.currentTimeMillis() * 1000000L) - System.nanoTime();
+
+	/**************************************************************************
+	 *
+	 * @return the current time, microseconds since 1970-01-01 UTC
+	 *
+	 *************************************************************************/
+	public static long nowMicros()
+	{
+		return toMicros(System.nanoTime());
+	}
+
+	/**************************************************************************
+	 *
+	 * @param nano_time a value from System.nanoTime()
+	 *
+	 * @return the time, microseconds since 1970-01-01 UTC
+	 *
+	 *************************************************************************/
+	public static long toMicros(long nano_time)
+	{
+		return (nano_time + EPOCH_OFFSET_NS) / 1000L;
+	}
+
+	/**************************************************************************
+	 *
+	 * @param micros a time, microseconds since 1970-01-01 UTC
+	 *
+	 * @return the System.nanoTime() of the time, which is before the start
+	 *         of the relay for a time saved by an earlier run
+	 *
+	 *************************************************************************/
+	public static long toNanoTime(long micros)
+	{
+		return (micros * 1000L) - EPOCH_OFFSET_NS;
+	}
+}
@@ -0,0 +1,205 @@
+package HoloFirst;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/******************************************************************************
+ *
+ * This class writes log messages and frame dumps to System.out on a
+ * background thread, so the sender and table listener threads never wait
+ * on console output.
+ *
+ * Messages below the configured level are discarded before any formatting.
+ * Messages are put in a bounded queue; if the queue is full the message is
+ * dropped and counted rather than blocking the caller.
+ *
+ * Frame dumps are written from the preallocated rings of FrameDump objects,
+ * the hex formatting is done only on the background thread.
+ *
+ *****************************************************************************/
+public class RelayLog
+{
+	enum Level
+	{
+		ERROR, WARN, INFO, DEBUG
+	};
+
+	private static final int QUEUE_SIZE = 1024;
+	private static final long POLL_MS = 20;
+
+	private static volatile Level level = Level.INFO;
+
+	private static final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+	private static final CopyOnWriteArrayList<FrameDump> dumps = new CopyOnWriteArrayList<FrameDump>();
+	private static final AtomicLong dropped = new AtomicLong(0);
+
+	private static final Object drain_lock = new Object();
+	private static final StringBuilder line = new StringBuilder(16384);
+
+	static
+	{
+		Thread writer = new Thread("RelayLog")
+		{
+			public void run()
+			{
+				while (true)
+				{
+					try
+					{
+						String msg = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+						drain(msg);
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+
+		// write anything still queued when the application exits
+		Runtime.getRuntime().addShutdownHook(new Thread("RelayLog flush")
+		{
+			public void run()
+			{
+				drain(null);
+			}
+		});
+	}
+
+	public static void setLevel(Level new_level)
+	{
+		level = new_level;
+	}
+
+	/**************************************************************************
+	 *
+	 * Set the level from a configuration value (error, warn, info or debug).
+	 *
+	 *************************************************************************/
+	public static void setLevel(String name)
+	{
+		try
+		{
+			level = Level.valueOf(name.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e)
+		{
+			error("ERROR parsing configuration file, unknown log level " + name);
+		}
+	}
+
+	public static boolean isEnabled(Level msg_level)
+	{
+		return msg_level.ordinal() <= level.ordinal();
+	}
+
+	public static void error(String msg)
+	{
+		log(Level.ERROR, msg);
+	}
+
+	public static void error(String msg, Throwable t)
+	{
+		if (isEnabled(Level.ERROR))
+		{
+			StringWriter sw = new StringWriter();
+			t.printStackTrace(new PrintWriter(sw));
+			log(Level.ERROR, msg + ": " + sw);
+		}
+	}
+
+	public static void warn(String msg)
+	{
+		log(Level.WARN, msg);
+	}
+
+	public static void info(String msg)
+	{
+		log(Level.INFO, msg);
+	}
+
+	public static void debug(String msg)
+	{
+		log(Level.DEBUG, msg);
+	}
+
+	/**************************************************************************
+	 *
+	 * Create a frame dump that is written by the log thread.
+	 *
+	 * @param name			the name printed with each frame
+	 * @param every			dump one of every this many frames, 0 for none
+	 * @param max_size		the largest frame that will be dumped
+	 *
+	 * @return the frame dump, or null if every is 0
+	 *
+	 *************************************************************************/
+	public static FrameDump createFrameDump(String name, int every, int max_size)
+	{
+		if (every <= 0)
+		{
+			return null;
+		}
+
+		FrameDump dump = new FrameDump(name, every, max_size);
+		dumps.add(dump);
+		return dump;
+	}
+
+	public static void removeFrameDump(FrameDump dump)
+	{
+		dumps.remove(dump);
+	}
+
+	private static void log(Level msg_level, String msg)
+	{
+		if (isEnabled(msg_level) && ! queue.offer(msg))
+		{
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Write a message and everything else that is waiting. Only the log
+	 * thread and the shutdown hook call this.
+	 *
+	 *************************************************************************/
+	private static void drain(String first)
+	{
+		synchronized (drain_lock)
+		{
+			if (first != null)
+			{
+				System.out.println(first);
+			}
+
+			String msg;
+			while ((msg = queue.poll()) != null)
+			{
+				System.out.println(msg);
+			}
+
+			for (FrameDump dump : dumps)
+			{
+				while (dump.format(line))
+				{
+					System.out.println(line);
+				}
+			}
+
+			long n_dropped = dropped.getAndSet(0);
+			if (n_dropped > 0)
+			{
+				System.out.println("(" + n_dropped + " log messages dropped)");
+			}
+		}
+	}
+}
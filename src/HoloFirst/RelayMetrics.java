@@ -0,0 +1,336 @@
+package HoloFirst;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/******************************************************************************
+ *
+ * This class collects the metrics of the relay:
+ *
+ *    - a histogram per value of the time from the network table update to
+ *      the message with the update being written to a destination
+ *    - frames, bytes, drops, send failures, reconnects and coalesced
+ *      updates per destination (see DestinationMetrics)
+ *    - updates received, ignored (not in the message) and rejected (could
+ *      not be converted)
+ *
+ * Updating a metric is a lock-free atomic operation. The metrics can be
+ * read through JMX (the HoloFirst domain) and in the Prometheus text format
+ * (see MetricsHttpServer).
+ *
+ *****************************************************************************/
+public class RelayMetrics implements RelayMetricsMBean
+{
+	private static final String DOMAIN = "HoloFirst";
+
+	private final MessageLayout layout;
+	private final LatencyHistogram[] latencies;
+	private final CopyOnWriteArrayList<DestinationMetrics> destinations = new CopyOnWriteArrayList<DestinationMetrics>();
+
+	private final AtomicLong ignored_updates = new AtomicLong(0);
+	private final AtomicLong rejected_updates = new AtomicLong(0);
+	private final AtomicLong truncated_updates = new AtomicLong(0);
+
+	private ValueStore store = null;
+
+	/**************************************************************************
+	 *
+	 * A metric that is kept for each destination, with how to read it.
+	 *
+	 *************************************************************************/
+	private enum DestinationMetric
+	{
+		FRAMES_SENT("holofirst_frames_sent_total", "counter")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getFramesSent()); }
+		},
+		BYTES_SENT("holofirst_bytes_sent_total", "counter")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getBytesSent()); }
+		},
+		FRAMES_DROPPED("holofirst_frames_dropped_total", "counter")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getFramesDropped()); }
+		},
+		SEND_FAILURES("holofirst_send_failures_total", "counter")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getSendFailures()); }
+		},
+		RECONNECTS("holofirst_reconnects_total", "counter")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getReconnects()); }
+		},
+		COALESCED_UPDATES("holofirst_coalesced_updates_total", "counter")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getCoalescedUpdates()); }
+		},
+		FRAMES_PER_SECOND("holofirst_frames_per_second", "gauge")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getFramesPerSecond()); }
+		},
+		BYTES_PER_SECOND("holofirst_bytes_per_second", "gauge")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getBytesPerSecond()); }
+		},
+		MISSED_DEADLINES("holofirst_missed_deadlines_total", "counter")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getMissedDeadlines()); }
+		},
+		CONFLATED_FRAMES("holofirst_conflated_frames_total", "counter")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getConflatedFrames()); }
+		},
+		LAG_DISCONNECTS("holofirst_lag_disconnects_total", "counter")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getLagDisconnects()); }
+		},
+		CONNECTED_CLIENTS("holofirst_connected_clients", "gauge")
+		{
+			void append(StringBuilder out, DestinationMetrics dm) { out.append(dm.getClients()); }
+		};
+
+		final String metric;
+		final String type;
+
+		DestinationMetric(String metric, String type)
+		{
+			this.metric = metric;
+			this.type = type;
+		}
+
+		/**************************************************************************
+		 *
+		 * Write the value of the metric for one destination.
+		 *
+		 *************************************************************************/
+		abstract void append(StringBuilder out, DestinationMetrics dm);
+	}
+
+	/**************************************************************************
+	 *
+	 * @param layout the layout of the message, one latency histogram is kept
+	 *               for each value
+	 *
+	 *************************************************************************/
+	public RelayMetrics(MessageLayout layout)
+	{
+		this.layout = layout;
+		this.latencies = new LatencyHistogram[layout.getSize()];
+
+		for (int i = 0; i < latencies.length; i++)
+		{
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	public void setStore(ValueStore store)
+	{
+		this.store = store;
+	}
+
+	/**************************************************************************
+	 *
+	 * Create the metrics of a destination.
+	 *
+	 *************************************************************************/
+	public DestinationMetrics addDestination(String name)
+	{
+		DestinationMetrics dm = new DestinationMetrics(name);
+		destinations.add(dm);
+		return dm;
+	}
+
+	/**************************************************************************
+	 *
+	 * Record the latency of a value, from the update to it being sent.
+	 *
+	 *************************************************************************/
+	public void recordLatency(int idx, long latency_ns)
+	{
+		latencies[idx].record(latency_ns);
+	}
+
+	public LatencyHistogram getLatency(int idx)
+	{
+		return latencies[idx];
+	}
+
+	public void updateIgnored()
+	{
+		ignored_updates.incrementAndGet();
+	}
+
+	public void updateRejected()
+	{
+		rejected_updates.incrementAndGet();
+	}
+
+	public void updateTruncated()
+	{
+		truncated_updates.incrementAndGet();
+	}
+
+	@Override
+	public long getUpdates()
+	{
+		return (store == null) ? 0 : store.getUpdateCount();
+	}
+
+	@Override
+	public long getIgnoredUpdates()
+	{
+		return ignored_updates.get();
+	}
+
+	@Override
+	public long getRejectedUpdates()
+	{
+		return rejected_updates.get();
+	}
+
+	@Override
+	public long getTruncatedUpdates()
+	{
+		return truncated_updates.get();
+	}
+
+	/**************************************************************************
+	 *
+	 * Register the metrics with the platform MBean server. Each metric is
+	 * registered on its own, so one that cannot be (for example two
+	 * destinations with the same name) does not hide the others.
+	 *
+	 *************************************************************************/
+	public void registerMBeans()
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		register(server, this, DOMAIN + ":type=Relay");
+
+		for (DestinationMetrics dm : destinations)
+		{
+			register(server, dm, DOMAIN + ":type=Destination,name=" + ObjectName.quote(dm.getName()));
+			register(server, dm.getSendJitter(), DOMAIN + ":type=Jitter,name=" + ObjectName.quote(dm.getName()));
+		}
+
+		for (int i = 0; i < latencies.length; i++)
+		{
+			register(server, latencies[i], DOMAIN + ":type=Latency,key=" + ObjectName.quote(layout.getKey(i)));
+		}
+	}
+
+	private static void register(MBeanServer server, Object mbean, String name)
+	{
+		try
+		{
+			server.registerMBean(mbean, new ObjectName(name));
+		}
+		catch (Exception e)
+		{
+			RelayLog.error("ERROR registering " + name + " with JMX, " + e.getClass().getSimpleName());
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Remove every relay metric from the platform MBean server, so the
+	 * metrics of a reloaded configuration can be registered.
+	 *
+	 *************************************************************************/
+	public void unregisterMBeans()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+			for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":*"), null))
+			{
+				server.unregisterMBean(name);
+			}
+		}
+		catch (Exception e)
+		{
+			RelayLog.error("ERROR unregistering metrics from JMX: " + e.getMessage());
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Write every metric in the Prometheus text exposition format.
+	 *
+	 *************************************************************************/
+	public void writePrometheus(StringBuilder out)
+	{
+		out.append("# TYPE holofirst_updates_total counter\n");
+		out.append("holofirst_updates_total ").append(getUpdates()).append('\n');
+		out.append("# TYPE holofirst_ignored_updates_total counter\n");
+		out.append("holofirst_ignored_updates_total ").append(getIgnoredUpdates()).append('\n');
+		out.append("# TYPE holofirst_rejected_updates_total counter\n");
+		out.append("holofirst_rejected_updates_total ").append(getRejectedUpdates()).append('\n');
+		out.append("# TYPE holofirst_truncated_updates_total counter\n");
+		out.append("holofirst_truncated_updates_total ").append(getTruncatedUpdates()).append('\n');
+
+		for (DestinationMetric m : DestinationMetric.values())
+		{
+			writeCounter(out, m);
+		}
+
+		double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+
+		out.append("# TYPE holofirst_send_jitter_seconds summary\n");
+		for (DestinationMetrics dm : destinations)
+		{
+			String name = escape(dm.getName());
+			LatencyHistogram h = dm.getSendJitter();
+
+			for (double q : quantiles)
+			{
+				out.append("holofirst_send_jitter_seconds{destination=\"").append(name).append("\",quantile=\"").append(q).append("\"} ")
+					.append(h.getValueAt(q) / 1.0e9).append('\n');
+			}
+			out.append("holofirst_send_jitter_seconds_sum{destination=\"").append(name).append("\"} ").append(h.getSumNanos() / 1.0e9).append('\n');
+			out.append("holofirst_send_jitter_seconds_count{destination=\"").append(name).append("\"} ").append(h.getCount()).append('\n');
+		}
+
+		out.append("# TYPE holofirst_update_latency_seconds summary\n");
+		for (int i = 0; i < latencies.length; i++)
+		{
+			String key = escape(layout.getKey(i));
+			LatencyHistogram h = latencies[i];
+
+			for (double q : quantiles)
+			{
+				out.append("holofirst_update_latency_seconds{key=\"").append(key).append("\",quantile=\"").append(q).append("\"} ")
+					.append(h.getValueAt(q) / 1.0e9).append('\n');
+			}
+			out.append("holofirst_update_latency_seconds_sum{key=\"").append(key).append("\"} ").append(h.getSumNanos() / 1.0e9).append('\n');
+			out.append("holofirst_update_latency_seconds_count{key=\"").append(key).append("\"} ").append(h.getCount()).append('\n');
+		}
+	}
+
+	private void writeCounter(StringBuilder out, DestinationMetric m)
+	{
+		out.append("# TYPE ").append(m.metric).append(' ').append(m.type).append('\n');
+
+		for (DestinationMetrics dm : destinations)
+		{
+			out.append(m.metric).append("{destination=\"").append(escape(dm.getName())).append("\"} ");
+			m.append(out, dm);
+			out.append('\n');
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Escape a Prometheus label value.
+	 *
+	 *************************************************************************/
+	private static String escape(String value)
+	{
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
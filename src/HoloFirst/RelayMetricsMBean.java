@@ -0,0 +1,14 @@
+package HoloFirst;
+
+/******************************************************************************
+ *
+ * JMX view of the RelayMetrics that are not specific to a destination.
+ *
+ *****************************************************************************/
+public interface RelayMetricsMBean
+{
+	long getUpdates();
+	long getIgnoredUpdates();
+	long getRejectedUpdates();
+	long getTruncatedUpdates();
+}
@@ -0,0 +1,161 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/******************************************************************************
+ *
+ * A ValueSource that receives the messages of another NetTableToSocket
+ * relay over UDP, so values from another network table host (for example
+ * a second robot or a vision coprocessor) can be merged into the messages
+ * of this relay.
+ *
+ * The other relay must send a message with the values of this source in
+ * the same order, with the same types and encodings, to the port of this
+ * source. Any protocol and message options can be used, if a message_id is
+ * given only messages with that id are used.
+ *
+ *****************************************************************************/
+public class RelaySource extends ValueSource implements Runnable
+{
+	private static final int MAX_DATAGRAM_SIZE = 65536;
+
+	private final int port;
+	private final int message_id;
+
+	private MessageDecoder decoder;
+	private DatagramChannel channel;
+	private Thread thread;
+
+	/**************************************************************************
+	 *
+	 * @param name			the name of the source
+	 * @param app			the application to send the updates to
+	 * @param port			the UDP port to receive messages on
+	 * @param message_id	the id of the message to use, -1 for any
+	 *
+	 *************************************************************************/
+	public RelaySource(String name, NetTableToSocket app, int port, int message_id)
+	{
+		super(name, app);
+		this.port = port;
+		this.message_id = message_id;
+	}
+
+	/**************************************************************************
+	 *
+	 * Open the port and start receiving on a new thread.
+	 *
+	 *************************************************************************/
+	@Override
+	public void start() throws IOException
+	{
+		decoder = new MessageDecoder(layout);
+
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+
+		RelayLog.info("Getting data for " + name + " from relay messages on port " + port);
+
+		thread = new Thread(this, "Source " + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public boolean conflictsWith(ValueSource other)
+	{
+		return (other instanceof RelaySource) && (((RelaySource)other).port == port);
+	}
+
+	/**************************************************************************
+	 *
+	 * Receive and decode messages until the channel is closed.
+	 *
+	 *************************************************************************/
+	@Override
+	public void run()
+	{
+		ByteBuffer bb = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+
+		while (channel.isOpen())
+		{
+			try
+			{
+				bb.clear();
+				channel.receive(bb);
+				bb.flip();
+			}
+			catch (IOException e)
+			{
+				if (channel.isOpen())
+				{
+					RelayLog.error("Receive for " + name + " failed", e);
+				}
+				continue;
+			}
+
+			if ((message_id >= 0) && (MessageDecoder.peekMessageId(bb) != message_id))
+			{
+				continue;
+			}
+
+			if (! decoder.decode(bb))
+			{
+				RelayLog.debug("Ignored a message for " + name + " that does not match its values");
+				continue;
+			}
+
+			long[] values = decoder.getValues();
+			boolean[] changed = decoder.getChanged();
+			for (int i = 0; i < changed.length; i++)
+			{
+				if (changed[i])
+				{
+					app.setBits(store_slots[i], values, layout.getPosition(i));
+				}
+			}
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Close the port and wait for the receive thread to finish, so the port
+	 * can be opened again by the source of a new configuration.
+	 *
+	 *************************************************************************/
+	@Override
+	public void stop()
+	{
+		if (thread == null)
+		{
+			// never started
+			return;
+		}
+
+		close();
+
+		try
+		{
+			thread.join(1000);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void close()
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// closing anyway
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package HoloFirst;
+
+import java.util.concurrent.locks.LockSupport;
+
+/******************************************************************************
+ *
+ * The SendScheduler sends every message of every destination from a single
+ * thread.
+ *
+ * Each pass polls every SenderPipeline, which builds and sends the messages
+ * that are due and reports when its next message is due. The thread then
+ * parks until the earliest of those deadlines (or until a value changes for
+ * a message sent on change), and spins for the last SendTrigger.SPIN_NS so
+ * deadlines are met to within a few microseconds. The transports never
+ * block, so one thread can keep the timing of every destination.
+ *
+ * When the configuration is reloaded, the pipelines of the new
+ * configuration are handed to the thread, which switches to them between
+ * two passes, so no message is ever built from half of each.
+ *
+ *****************************************************************************/
+public class SendScheduler implements Runnable
+{
+	// the longest the scheduler waits before polling again
+	static final long MAX_WAIT_NS = 1000000000L;
+
+	private SenderPipeline[] pipelines;
+	private volatile SenderPipeline[] next_pipelines = null;
+
+	private Thread thread = null;
+	private volatile boolean done = false;
+
+	/**************************************************************************
+	 *
+	 * @param pipelines the destinations to send to
+	 *
+	 *************************************************************************/
+	public SendScheduler(SenderPipeline[] pipelines)
+	{
+		this.pipelines = pipelines;
+	}
+
+	/**************************************************************************
+	 *
+	 * Start the scheduler on a new thread.
+	 *
+	 *************************************************************************/
+	public Thread start()
+	{
+		thread = new Thread(this, "Sender");
+		thread.start();
+		return thread;
+	}
+
+	/**************************************************************************
+	 *
+	 * Replace every pipeline, for a new configuration. The new pipelines
+	 * are opened and the old ones closed by the scheduler thread between
+	 * two passes, this waits until it has done so.
+	 *
+	 * @param pipelines the destinations to send to from now on
+	 *
+	 *************************************************************************/
+	public void swap(SenderPipeline[] pipelines) throws InterruptedException
+	{
+		if (thread == null)
+		{
+			this.pipelines = pipelines;
+			return;
+		}
+
+		next_pipelines = pipelines;
+		LockSupport.unpark(thread);
+
+		while ((next_pipelines != null) && thread.isAlive())
+		{
+			Thread.sleep(1);
+		}
+	}
+
+	public void stop()
+	{
+		done = true;
+	}
+
+	/**************************************************************************
+	 *
+	 * Open every pipeline, then poll them until stopped.
+	 *
+	 *************************************************************************/
+	@Override
+	public void run()
+	{
+		Thread sender = Thread.currentThread();
+
+		long now = System.nanoTime();
+		for (SenderPipeline pipeline : pipelines)
+		{
+			pipeline.open(sender, now);
+		}
+
+		while (! done && ! Thread.interrupted())
+		{
+			now = System.nanoTime();
+			long next_ns = now + MAX_WAIT_NS;
+
+			SenderPipeline[] next = next_pipelines;
+			if (next != null)
+			{
+				switchTo(next, sender, now);
+				next_pipelines = null;
+			}
+
+			for (SenderPipeline pipeline : pipelines)
+			{
+				long t = pipeline.poll(now);
+				if (t - next_ns < 0)
+				{
+					next_ns = t;
+				}
+			}
+
+			// wake up early to poll again if a value changes
+			long wait_ns = next_ns - System.nanoTime();
+			if (wait_ns > SendTrigger.SPIN_NS)
+			{
+				LockSupport.parkNanos(this, wait_ns - SendTrigger.SPIN_NS);
+			}
+			else if (wait_ns > 0)
+			{
+				Thread.yield();
+			}
+		}
+
+		for (SenderPipeline pipeline : pipelines)
+		{
+			pipeline.close();
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Open the pipelines of a new configuration, which take over the
+	 * transports of the old ones, then close the old ones. An old transport
+	 * that is not taken over is closed first, as a new transport may bind
+	 * the same port or write the same file.
+	 *
+	 *************************************************************************/
+	private void switchTo(SenderPipeline[] next, Thread sender, long now)
+	{
+		boolean[] adopted = new boolean[pipelines.length];
+		for (int i = 0; i < pipelines.length; i++)
+		{
+			adopted[i] = adopted(next, pipelines[i]);
+			if (! adopted[i])
+			{
+				pipelines[i].close();
+			}
+		}
+
+		for (SenderPipeline pipeline : next)
+		{
+			pipeline.open(sender, now);
+		}
+
+		// the transport of these now belongs to the new pipeline
+		for (int i = 0; i < pipelines.length; i++)
+		{
+			if (adopted[i])
+			{
+				pipelines[i].close();
+			}
+		}
+
+		pipelines = next;
+	}
+
+	private static boolean adopted(SenderPipeline[] next, SenderPipeline old)
+	{
+		for (SenderPipeline pipeline : next)
+		{
+			if (pipeline.adopts(old))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
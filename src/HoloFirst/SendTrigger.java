@@ -0,0 +1,204 @@
+package HoloFirst;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/******************************************************************************
+ *
+ * This class decides when the next message of a MessageStream should be
+ * built and sent. It never blocks, the SendScheduler asks each trigger when
+ * its next message is due and waits for the earliest one.
+ *
+ * In PERIODIC mode messages are sent on a fixed schedule of deadlines,
+ * start + n * period, measured with System.nanoTime(). The time taken to
+ * build and send a message does not add to the period, so the rate does not
+ * drift. If the scheduler falls more than a period behind, the missed
+ * deadlines are skipped (and counted) rather than sent in a burst. How late
+ * each message was is recorded as the send jitter of the destination.
+ *
+ * In CHANGE mode a message is due as soon as a value is updated, bursts of
+ * updates are coalesced so messages are never sent closer together than the
+ * minimum interval, and a keep-alive message is sent whenever the maximum
+ * interval passes without any updates.
+ *
+ *****************************************************************************/
+public class SendTrigger
+{
+	enum SendMode
+	{
+		PERIODIC, CHANGE
+	};
+
+	// park until this close to a deadline, then spin, since parking alone
+	// can wake up a millisecond or more late
+	static final long SPIN_NS = 200000L;
+
+	private final SendMode mode;
+	private final long period_ns;
+	private final long min_interval_ns;
+	private final long max_interval_ns;
+
+	private final AtomicBoolean changed = new AtomicBoolean(false);
+	private volatile Thread sender = null;
+
+	private long last_send_ns;
+	private long next_deadline_ns;
+
+	private DestinationMetrics metrics = null;
+
+	/**************************************************************************
+	 *
+	 * @param mode			PERIODIC or CHANGE
+	 * @param period		time between messages in PERIODIC mode (seconds)
+	 * @param min_interval	minimum time between messages in CHANGE mode (seconds)
+	 * @param max_interval	keep-alive time between messages in CHANGE mode (seconds)
+	 *
+	 *************************************************************************/
+	public SendTrigger(SendMode mode, float period, float min_interval, float max_interval)
+	{
+		this.mode = mode;
+		this.period_ns = Math.max((long)(period * 1.0e9), 1L);
+		this.min_interval_ns = (long)(min_interval * 1.0e9);
+		this.max_interval_ns = Math.max((long)(max_interval * 1.0e9), this.min_interval_ns);
+
+		start(System.nanoTime());
+	}
+
+	public SendMode getMode()
+	{
+		return mode;
+	}
+
+	/**************************************************************************
+	 *
+	 * @param metrics where to record the send jitter and missed deadlines
+	 *
+	 *************************************************************************/
+	public void setMetrics(DestinationMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**************************************************************************
+	 *
+	 * Start the schedule, the first message is due right away.
+	 *
+	 * @param sender	the thread to wake when a value changes
+	 * @param now		the current System.nanoTime()
+	 *
+	 *************************************************************************/
+	public void start(Thread sender, long now)
+	{
+		this.sender = sender;
+		start(now);
+	}
+
+	private void start(long now)
+	{
+		last_send_ns = now - max_interval_ns;
+		next_deadline_ns = now;
+	}
+
+	/**************************************************************************
+	 *
+	 * Report that a value has changed. This is called from the table listener
+	 * thread and only wakes the sender if it is not already pending.
+	 *
+	 *************************************************************************/
+	public void valueChanged()
+	{
+		if (mode == SendMode.CHANGE && changed.compareAndSet(false, true))
+		{
+			Thread t = sender;
+			if (t != null)
+			{
+				LockSupport.unpark(t);
+			}
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the System.nanoTime() the next message is due
+	 *
+	 *************************************************************************/
+	public long nextSendTime()
+	{
+		if (mode == SendMode.PERIODIC)
+		{
+			return next_deadline_ns;
+		}
+
+		return last_send_ns + (changed.get() ? min_interval_ns : max_interval_ns);
+	}
+
+	/**************************************************************************
+	 *
+	 * Report that the message that is due is about to be built, and move on
+	 * to the next one.
+	 *
+	 * @param now the current System.nanoTime()
+	 *
+	 * @return true if one or more values changed since the last message,
+	 *         false for a periodic or keep-alive message
+	 *
+	 *************************************************************************/
+	public boolean beginSend(long now)
+	{
+		if (mode == SendMode.PERIODIC)
+		{
+			if (metrics != null)
+			{
+				metrics.sendScheduled(now - next_deadline_ns);
+			}
+
+			next_deadline_ns += period_ns;
+
+			long behind_ns = now - next_deadline_ns;
+			if (behind_ns > period_ns)
+			{
+				long missed = behind_ns / period_ns;
+				next_deadline_ns += missed * period_ns;
+
+				if (metrics != null)
+				{
+					metrics.deadlinesMissed(missed);
+				}
+			}
+
+			return false;
+		}
+
+		last_send_ns = now;
+
+		// clear before the message is built so updates that arrive
+		// while building will trigger another message
+		return changed.getAndSet(false);
+	}
+
+	/**************************************************************************
+	 *
+	 * Block the calling thread until System.nanoTime() reaches a deadline.
+	 *
+	 *************************************************************************/
+	public static void waitUntil(long deadline_ns) throws InterruptedException
+	{
+		long remaining_ns;
+		while ((remaining_ns = deadline_ns - System.nanoTime()) > 0)
+		{
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+
+			if (remaining_ns > SPIN_NS)
+			{
+				LockSupport.parkNanos(remaining_ns - SPIN_NS);
+			}
+			else
+			{
+				Thread.yield();
+			}
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package HoloFirst;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/******************************************************************************
+ *
+ * A SenderPipeline sends messages to one destination.
+ *
+ * The pipeline owns the transport, buffer and metrics of the destination,
+ * and has a MessageStream for each message definition that is sent to the
+ * destination. The SendScheduler polls every pipeline from a single thread,
+ * the transport never blocks, so a slow or disconnected destination does
+ * not change the timing of any other destination.
+ *
+ * When the configuration is reloaded, the pipeline of the new configuration
+ * for the same destination takes over the transport of the old one, so
+ * connections and consumers are kept, and each of its streams carries on
+ * the sequence numbers of the stream with the same message id.
+ *
+ *****************************************************************************/
+public class SenderPipeline
+{
+	private final Transport transport;
+	private final FrameDump frame_dump;
+
+	private final RelayMetrics metrics;
+	private final DestinationMetrics dest_metrics;
+
+	private final Destination dest;
+	private final int buffer_size;
+	private final ByteBuffer msg_bb;
+
+	private MessageStream[] streams = new MessageStream[0];
+
+	private boolean open = false;
+
+	// the pipeline this one replaces after a reload, until it is opened
+	private SenderPipeline previous = null;
+	private boolean adopt_transport = false;
+
+	/**************************************************************************
+	 *
+	 * @param metrics			the metrics to update
+	 * @param dest				the destination the messages are sent to
+	 * @param buffer_size		the largest message that will be sent
+	 * @param connect_period	the longest time between connection attempts (seconds)
+	 *
+	 *************************************************************************/
+	public SenderPipeline(RelayMetrics metrics, Destination dest, int buffer_size, float connect_period)
+	{
+		this(metrics, dest, buffer_size, connect_period, null);
+	}
+
+	/**************************************************************************
+	 *
+	 * @param metrics			the metrics to update
+	 * @param dest				the destination the messages are sent to
+	 * @param buffer_size		the largest message that will be sent
+	 * @param connect_period	the longest time between connection attempts (seconds)
+	 * @param previous			the pipeline of the old configuration for the
+	 *                          same destination, or null
+	 *
+	 *************************************************************************/
+	public SenderPipeline(RelayMetrics metrics, Destination dest, int buffer_size, float connect_period, SenderPipeline previous)
+	{
+		this.metrics = metrics;
+		this.dest = dest;
+		this.buffer_size = buffer_size;
+
+		if ((previous != null) && previous.dest.sameTransport(dest))
+		{
+			// the transport sizes its buffers for the largest message
+			this.previous = previous;
+			this.adopt_transport = (previous.buffer_size == buffer_size);
+		}
+		this.transport = adopt_transport ? previous.transport : dest.createTransport(buffer_size, connect_period);
+
+		this.dest_metrics = metrics.addDestination(transport.getName());
+
+		this.frame_dump = RelayLog.createFrameDump(transport.getName(), dest.frame_dump, buffer_size);
+
+		this.msg_bb = ByteBuffer.allocateDirect(buffer_size);
+	}
+
+	public Destination getDestination()
+	{
+		return dest;
+	}
+
+	public String getName()
+	{
+		return transport.getName();
+	}
+
+	/**************************************************************************
+	 *
+	 * Send a message definition to this destination. This must be done
+	 * before the pipeline is opened.
+	 *
+	 * @param store		the values to send
+	 * @param message	the message to send
+	 *
+	 * @return the stream that builds the messages
+	 *
+	 *************************************************************************/
+	public MessageStream addMessage(ValueStore store, MessageDefinition message)
+	{
+		Destination settings = message.applySettings(dest);
+
+		if ((message.getId() >= 0) && (settings.protocol == 1))
+		{
+			RelayLog.warn(message.getName() + " has a message id, using protocol 2 for " + getName());
+			settings.protocol = 2;
+		}
+
+		MessageStream stream = new MessageStream(store, message, settings, metrics, dest_metrics, buffer_size);
+
+		streams = Arrays.copyOf(streams, streams.length + 1);
+		streams[streams.length - 1] = stream;
+
+		if (settings.batch_size > 1)
+		{
+			RelayLog.info(getName() + " sending " + message.getName() + " in batches of " + settings.batch_size +
+					" samples at " + settings.sample_rate + " samples per second");
+		}
+		else if (settings.send_mode == SendTrigger.SendMode.CHANGE)
+		{
+			RelayLog.info(getName() + " sending " + message.getName() + " on change, min interval " + settings.min_interval +
+					"s, max interval " + settings.max_interval + "s");
+		}
+		else
+		{
+			RelayLog.info(getName() + " sending " + message.getName() + " every " + settings.period + "s");
+		}
+
+		return stream;
+	}
+
+	public MessageStream[] getStreams()
+	{
+		return streams;
+	}
+
+	/**************************************************************************
+	 *
+	 * Open the transport and start every stream. A pipeline that replaces
+	 * one of the old configuration takes over its transport and sequence
+	 * numbers, the old pipeline must not be polled after this.
+	 *
+	 * @param sender	the thread that polls this pipeline
+	 * @param now		the current System.nanoTime()
+	 *
+	 *************************************************************************/
+	public void open(Thread sender, long now)
+	{
+		transport.setMetrics(dest_metrics);
+
+		if (adopt_transport && previous.open)
+		{
+			// the old pipeline no longer closes it
+			previous.open = false;
+			open = true;
+		}
+		else
+		{
+			RelayLog.info("Sending messages to " + transport.getName());
+
+			try
+			{
+				transport.open();
+				open = true;
+			}
+			catch (Exception e)
+			{
+				RelayLog.error("Could not open " + transport.getName(), e);
+			}
+		}
+
+		for (MessageStream stream : streams)
+		{
+			if (previous != null)
+			{
+				for (MessageStream old : previous.streams)
+				{
+					if (old.getMessage().getId() == stream.getMessage().getId())
+					{
+						stream.continueFrom(old);
+						break;
+					}
+				}
+			}
+
+			stream.start(sender, now);
+		}
+
+		previous = null;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return true if this pipeline takes over the transport of an old one
+	 *         when it is opened
+	 *
+	 *************************************************************************/
+	boolean adopts(SenderPipeline old)
+	{
+		return adopt_transport && (previous == old);
+	}
+
+	/**************************************************************************
+	 *
+	 * Build and send every message that is due.
+	 *
+	 * @param now the current System.nanoTime()
+	 *
+	 * @return the System.nanoTime() the next message is due
+	 *
+	 *************************************************************************/
+	public long poll(long now)
+	{
+		long next_ns = now + SendScheduler.MAX_WAIT_NS;
+
+		if (! open)
+		{
+			return next_ns;
+		}
+
+		transport.flush();
+
+		if (transport.keyframeNeeded())
+		{
+			for (MessageStream stream : streams)
+			{
+				stream.requestKeyframe();
+			}
+		}
+
+		for (MessageStream stream : streams)
+		{
+			long t = stream.poll(now, this);
+			if (t - next_ns < 0)
+			{
+				next_ns = t;
+			}
+		}
+
+		return next_ns;
+	}
+
+	public void close()
+	{
+		if (open)
+		{
+			transport.close();
+			open = false;
+		}
+
+		if (frame_dump != null)
+		{
+			RelayLog.removeFrameDump(frame_dump);
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the buffer the streams build their messages in
+	 *
+	 *************************************************************************/
+	ByteBuffer getBuffer()
+	{
+		return msg_bb;
+	}
+
+	/**************************************************************************
+	 *
+	 * Send the message in the buffer and update the destination metrics.
+	 *
+	 * @param msg_size the size of the message
+	 *
+	 * @return true if the message was sent
+	 *
+	 *************************************************************************/
+	boolean send(int msg_size)
+	{
+		if (! transport.send(msg_bb))
+		{
+			dest_metrics.frameDropped();
+			return false;
+		}
+
+		dest_metrics.frameSent(msg_size);
+
+		if (frame_dump != null)
+		{
+			frame_dump.frameSent(msg_bb, msg_size);
+		}
+
+		return true;
+	}
+}
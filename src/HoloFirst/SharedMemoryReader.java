@@ -0,0 +1,216 @@
+package HoloFirst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/******************************************************************************
+ *
+ * This class reads the messages written by a SharedMemoryTransport, for
+ * consumers on the same host as the relay. See SharedMemoryTransport for
+ * the layout of the ring file.
+ *
+ * Reading is polling, read() only reads memory, so it can be called as
+ * often as needed (for example once per rendered frame) without any system
+ * calls:
+ *
+ *    SharedMemoryReader reader = new SharedMemoryReader("holofirst.shm");
+ *    ByteBuffer msg = ByteBuffer.allocate(reader.getMaxMessageSize());
+ *
+ *    while (reader.read(msg) > 0)
+ *    {
+ *        msg.flip();
+ *        ... decode the message, for example with a MessageDecoder
+ *    }
+ *
+ * A new reader starts at the oldest message in the ring, so with protocol
+ * 2 it finds a keyframe if the ring holds at least keyframe_interval
+ * messages. A reader that falls more than a ring behind skips the messages
+ * that were overwritten, they are counted by getLost(). If the relay is
+ * restarted the reader starts over with the new messages.
+ *
+ * A reader is used by one thread.
+ *
+ *****************************************************************************/
+public class SharedMemoryReader
+{
+	private final MappedByteBuffer ring;
+	private final ByteBuffer view;
+	private final int slots;
+	private final int slot_size;
+
+	private long epoch;
+	private long next;
+	private long lost = 0;
+
+	/**************************************************************************
+	 *
+	 * Map the ring file of a relay.
+	 *
+	 * @param path the ring file
+	 *
+	 * @throws IOException if the file cannot be mapped or is not a ring
+	 *
+	 *************************************************************************/
+	public SharedMemoryReader(String path) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+		try
+		{
+			ring = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		finally
+		{
+			file.close();
+		}
+
+		ring.order(ByteOrder.LITTLE_ENDIAN);
+		view = ring.duplicate();
+
+		if ((ring.capacity() < SharedMemoryTransport.HEADER_SIZE) || (ring.getInt(0) != SharedMemoryTransport.MAGIC) ||
+				(ring.getInt(4) != SharedMemoryTransport.VERSION))
+		{
+			throw new IOException(path + " is not a relay shared memory ring");
+		}
+
+		slots = ring.getInt(SharedMemoryTransport.SLOTS_OFFSET);
+		slot_size = ring.getInt(SharedMemoryTransport.SLOT_SIZE_OFFSET);
+
+		if (SharedMemoryTransport.HEADER_SIZE + ((long)slots * slot_size) > ring.capacity())
+		{
+			throw new IOException(path + " is shorter than its ring");
+		}
+
+		restart();
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the size of the largest message in the ring
+	 *
+	 *************************************************************************/
+	public int getMaxMessageSize()
+	{
+		return slot_size - SharedMemoryTransport.SLOT_HEADER_SIZE;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of the last message read, messages are numbered
+	 *         from 1 each time the relay starts
+	 *
+	 *************************************************************************/
+	public long getMessageNumber()
+	{
+		return next - 1;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of messages that were overwritten before they
+	 *         could be read
+	 *
+	 *************************************************************************/
+	public long getLost()
+	{
+		return lost;
+	}
+
+	/**************************************************************************
+	 *
+	 * Skip to the newest message, so the next read() returns it.
+	 *
+	 *************************************************************************/
+	public void seekLatest()
+	{
+		next = Math.max(ring.getLong(SharedMemoryTransport.LAST_OFFSET), 1);
+	}
+
+	/**************************************************************************
+	 *
+	 * Copy the next message.
+	 *
+	 * @param dst the buffer to copy the message to, at its position
+	 *
+	 * @return the size of the message, 0 if there is no new message
+	 *
+	 * @throws IllegalArgumentException if dst has less room than
+	 *         getMaxMessageSize()
+	 *
+	 *************************************************************************/
+	public int read(ByteBuffer dst)
+	{
+		if (dst.remaining() < getMaxMessageSize())
+		{
+			throw new IllegalArgumentException("buffer smaller than the largest message");
+		}
+
+		while (true)
+		{
+			if (ring.getLong(SharedMemoryTransport.EPOCH_OFFSET) != epoch)
+			{
+				restart();
+			}
+
+			// the fences keep the reads in order, so a message is only read
+			// after its number, and checked after it was copied
+			long last = ring.getLong(SharedMemoryTransport.LAST_OFFSET);
+			MemoryFence.loadFence();
+
+			if (next > last)
+			{
+				return 0;
+			}
+
+			if (last - next >= slots)
+			{
+				// the oldest messages were overwritten
+				lost += last - slots + 1 - next;
+				next = last - slots + 1;
+			}
+
+			int slot = SharedMemoryTransport.HEADER_SIZE + (int)(next % slots) * slot_size;
+
+			long n = ring.getLong(slot);
+			MemoryFence.loadFence();
+			int size = ring.getInt(slot + 8);
+
+			if ((n == next) && (size >= 0) && (size <= getMaxMessageSize()))
+			{
+				int start = dst.position();
+				view.limit(slot + SharedMemoryTransport.SLOT_HEADER_SIZE + size);
+				view.position(slot + SharedMemoryTransport.SLOT_HEADER_SIZE);
+				dst.put(view);
+
+				MemoryFence.loadFence();
+				if (ring.getLong(slot) == next)
+				{
+					next++;
+					return size;
+				}
+
+				dst.position(start);
+			}
+
+			// overwritten while reading, the writer is a ring ahead
+			lost++;
+			next++;
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Start at the oldest message still in the ring.
+	 *
+	 *************************************************************************/
+	private void restart()
+	{
+		epoch = ring.getLong(SharedMemoryTransport.EPOCH_OFFSET);
+		long last = ring.getLong(SharedMemoryTransport.LAST_OFFSET);
+		next = Math.max(last - slots + 1, 1);
+	}
+}
@@ -0,0 +1,196 @@
+package HoloFirst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/******************************************************************************
+ *
+ * This transport writes messages into a memory-mapped ring file, so
+ * consumers on the same host can read them (see SharedMemoryReader) without
+ * any system calls or kernel copies.
+ *
+ * The ring has a fixed number of slots, each large enough for the largest
+ * message. Message n (counting from 1) is written to slot n % slots, so
+ * there is a single writer and any number of readers that never slow it
+ * down, a reader that falls more than a ring behind loses the oldest
+ * messages. All numbers are little endian:
+ *
+ *    header, HEADER_SIZE bytes
+ *    start   length  value
+ *    0       4       MAGIC
+ *    4       4       VERSION
+ *    8       4       number of slots
+ *    12      4       slot size, bytes
+ *    16      8       the number of the last message written, 0 for none
+ *    24      8       epoch, changes each time the relay opens the ring
+ *
+ *    each slot, from HEADER_SIZE + (n % slots) * slot size
+ *    0       8       the number of the message in the slot, -1 while it
+ *                    is being written
+ *    8       4       message size
+ *    12      4       unused
+ *    16      xx      the message
+ *
+ * A message is published by writing it with its slot number at -1, then
+ * setting the slot number and then the number of the last message. A reader
+ * copies a message and checks that the slot still has the number it
+ * expects, so it never uses a message that was overwritten while it read.
+ * The writes and reads are kept in that order with fences of the processor
+ * (see MemoryFence).
+ *
+ *****************************************************************************/
+public class SharedMemoryTransport implements Transport
+{
+	public static final int MAGIC = 0x48465348; // "HFSH"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final int SLOT_HEADER_SIZE = 16;
+
+	static final int SLOTS_OFFSET = 8;
+	static final int SLOT_SIZE_OFFSET = 12;
+	static final int LAST_OFFSET = 16;
+	static final int EPOCH_OFFSET = 24;
+
+	private final String path;
+	private final int slots;
+	private final int slot_size;
+
+	private MappedByteBuffer ring = null;
+	private long last = 0;
+
+	private DestinationMetrics metrics = new DestinationMetrics("");
+
+	/**************************************************************************
+	 *
+	 * @param path			the ring file, created or replaced
+	 * @param slots			the number of messages the ring holds
+	 * @param buffer_size	the largest message that will be sent
+	 *
+	 *************************************************************************/
+	public SharedMemoryTransport(String path, int slots, int buffer_size)
+	{
+		this.path = path;
+		this.slots = Math.max(slots, 2);
+		this.slot_size = (SLOT_HEADER_SIZE + buffer_size + 7) & ~7;
+	}
+
+	@Override
+	public void open() throws IOException
+	{
+		long size = HEADER_SIZE + ((long)slots * slot_size);
+
+		RandomAccessFile file = new RandomAccessFile(new File(path), "rw");
+		try
+		{
+			file.setLength(size);
+			ring = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		finally
+		{
+			// the mapping stays valid after the file is closed
+			file.close();
+		}
+
+		ring.order(ByteOrder.LITTLE_ENDIAN);
+
+		// readers of a previous run see the epoch change and start over
+		ring.putLong(LAST_OFFSET, 0);
+		for (int i = 0; i < slots; i++)
+		{
+			ring.putLong(HEADER_SIZE + (i * slot_size), 0);
+		}
+		ring.putInt(0, MAGIC);
+		ring.putInt(4, VERSION);
+		ring.putInt(SLOTS_OFFSET, slots);
+		ring.putInt(SLOT_SIZE_OFFSET, slot_size);
+		MemoryFence.storeFence();
+		ring.putLong(EPOCH_OFFSET, RelayClock.nowMicros());
+
+		last = 0;
+
+		RelayLog.info("Writing messages to shared memory " + path + ", " + slots + " slots of " + slot_size + " bytes");
+	}
+
+	/**************************************************************************
+	 *
+	 * Write a message into the next slot of the ring.
+	 *
+	 * @return false if the ring is not open
+	 *
+	 *************************************************************************/
+	@Override
+	public boolean send(ByteBuffer frame)
+	{
+		if (ring == null)
+		{
+			return false;
+		}
+
+		int size = frame.remaining();
+		if (size > slot_size - SLOT_HEADER_SIZE)
+		{
+			metrics.sendFailed();
+			return false;
+		}
+
+		long n = last + 1;
+		int slot = HEADER_SIZE + (int)(n % slots) * slot_size;
+
+		// the fences keep the writes in order for readers in other
+		// processes, so a slot is complete before its number is published
+		ring.putLong(slot, -1);
+		MemoryFence.storeFence();
+
+		ring.putInt(slot + 8, size);
+		ring.position(slot + SLOT_HEADER_SIZE);
+		ring.put(frame);
+		MemoryFence.storeFence();
+
+		ring.putLong(slot, n);
+		MemoryFence.storeFence();
+
+		ring.putLong(LAST_OFFSET, n);
+		last = n;
+
+		return true;
+	}
+
+	@Override
+	public void flush()
+	{
+		// messages are never held
+	}
+
+	@Override
+	public boolean keyframeNeeded()
+	{
+		// readers are not known, they rely on the periodic keyframes and
+		// the messages still in the ring
+		return false;
+	}
+
+	@Override
+	public void setMetrics(DestinationMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void close()
+	{
+		// the mapping is released when it is garbage collected, readers can
+		// still read the last messages
+		ring = null;
+	}
+
+	@Override
+	public String getName()
+	{
+		return path + ":SHM";
+	}
+}
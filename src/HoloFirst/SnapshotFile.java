@@ -0,0 +1,403 @@
+package HoloFirst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/******************************************************************************
+ *
+ * This class keeps the last known value of every slot of a ValueStore in a
+ * memory-mapped file, so a relay that restarts sends the values it had
+ * instead of the configured defaults until every key has been updated
+ * again.
+ *
+ * A checkpoint thread copies the store into the file every interval, only
+ * when a value has changed, and never touches the send path. Each value is
+ * saved with the wall clock time of its last update, so it can be left at
+ * its default when it is too old to be of use. At start up, the value of
+ * every key that is in the file with the same type and capacity is
+ * restored (see ValueStore.restore()).
+ *
+ * The file holds two copies of the values, a checkpoint writes the copy
+ * that is not current, forces it to the disk and only then makes it
+ * current, so neither a relay stopped part way through a checkpoint nor a
+ * power loss leaves the file without a complete copy. A new file is written
+ * beside the old one, with its first copy, and renamed into place. All
+ * numbers are little endian:
+ *
+ *    header, HEADER_SIZE bytes
+ *    start   length  value
+ *    0       4       MAGIC
+ *    4       4       VERSION
+ *    8       4       number of values
+ *    12      4       size of a copy, bytes
+ *    16      4       start of the first copy
+ *    20      4       current copy, 0 or 1
+ *    24      8       time of the current checkpoint, microseconds since 1970
+ *
+ *    each value, from HEADER_SIZE
+ *    0       2       key length, bytes
+ *    2       xx      the key, UTF-8
+ *    xx      1       type, NetTableToSocket.ValueType ordinal
+ *    xx      4       capacity of a string or array
+ *    xx      4       number of longs in the slot
+ *    xx      4       offset of the value in a copy
+ *
+ *    each value in a copy
+ *    0       8       time of the last update, microseconds since 1970, 0 if
+ *                    it was never updated
+ *    8       xx      the longs of the slot (see MessageLayout)
+ *
+ *****************************************************************************/
+public class SnapshotFile implements Runnable
+{
+	public static final int MAGIC = 0x4846534E; // "HFSN"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+
+	static final int COUNT_OFFSET = 8;
+	static final int COPY_SIZE_OFFSET = 12;
+	static final int COPIES_OFFSET = 16;
+	static final int CURRENT_OFFSET = 20;
+	static final int TIME_OFFSET = 24;
+
+	// the new file, until it is renamed to the snapshot file
+	static final String NEW_EXTENSION = ".new";
+
+	private final String path;
+	private final ValueStore store;
+	private final long interval_ns;
+
+	private final int[] offsets;
+	private final long[] values;
+
+	private MappedByteBuffer file = null;
+	private int copies_offset;
+	private int copy_size;
+	private int current = -1;
+	private long last_update_count = -1;
+
+	private Thread thread = null;
+	private volatile boolean done = false;
+
+	/**************************************************************************
+	 *
+	 * @param path		the snapshot file, replaced by open()
+	 * @param store		the values to save
+	 * @param interval	the time between checkpoints (seconds)
+	 *
+	 *************************************************************************/
+	public SnapshotFile(String path, ValueStore store, float interval)
+	{
+		this.path = path;
+		this.store = store;
+		this.interval_ns = (long)(interval * 1.0e9);
+
+		MessageLayout layout = store.getLayout();
+		this.offsets = new int[layout.getSize()];
+		this.values = layout.createValues();
+	}
+
+	/**************************************************************************
+	 *
+	 * Restore the values saved in the file to the store. This must be done
+	 * before open(), which replaces the file, and before the sources are
+	 * started.
+	 *
+	 * @param max_age the oldest value to restore (seconds), 0 for any age
+	 *
+	 * @return the number of values restored
+	 *
+	 *************************************************************************/
+	public int restore(float max_age)
+	{
+		File f = new File(path);
+		if (! f.exists())
+		{
+			return 0;
+		}
+
+		int restored = 0;
+		long oldest_us = 0;
+
+		try
+		{
+			ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(f.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+			if ((bb.remaining() < HEADER_SIZE) || (bb.getInt(0) != MAGIC) || (bb.getInt(4) != VERSION))
+			{
+				RelayLog.warn("Not restoring values, " + path + " is not a snapshot file");
+				return 0;
+			}
+
+			int count = bb.getInt(COUNT_OFFSET);
+			int saved = bb.getInt(CURRENT_OFFSET);
+			if (saved < 0)
+			{
+				return 0;
+			}
+			int copy = bb.getInt(COPIES_OFFSET) + (saved * bb.getInt(COPY_SIZE_OFFSET));
+
+			long now_us = RelayClock.nowMicros();
+			long max_age_us = (long)(max_age * 1.0e6);
+			MessageLayout layout = store.getLayout();
+			long[] slot = new long[0];
+
+			bb.position(HEADER_SIZE);
+			for (int i = 0; i < count; i++)
+			{
+				byte[] key = new byte[bb.getShort() & 0xFFFF];
+				bb.get(key);
+				int type = bb.get();
+				int capacity = bb.getInt();
+				int length = bb.getInt();
+				int offset = copy + bb.getInt();
+
+				int idx = layout.getSlot(new String(key, StandardCharsets.UTF_8));
+				if ((idx < 0) || (layout.getType(idx).ordinal() != type) || (layout.getCapacity(idx) != capacity) ||
+						(layout.getLength(idx) != length))
+				{
+					continue;
+				}
+
+				long update_us = bb.getLong(offset);
+				if ((update_us == 0) || ((max_age_us > 0) && (now_us - update_us > max_age_us)))
+				{
+					continue;
+				}
+
+				if (slot.length < length)
+				{
+					slot = new long[length];
+				}
+				for (int j = 0; j < length; j++)
+				{
+					slot[j] = bb.getLong(offset + 8 + (j * 8));
+				}
+				if ((capacity > 0) && ((slot[0] < 0) || (slot[0] > capacity)))
+				{
+					continue;
+				}
+
+				store.restore(idx, slot, 0, RelayClock.toNanoTime(update_us));
+
+				restored++;
+				oldest_us = (oldest_us == 0) ? update_us : Math.min(oldest_us, update_us);
+			}
+
+			RelayLog.info("Restored " + restored + " values from " + path + ((restored > 0) ?
+					(", the oldest updated " + ((now_us - oldest_us) / 1000000L) + "s ago") : ""));
+		}
+		catch (IOException | RuntimeException e)
+		{
+			// a missing or damaged snapshot only loses the warm start
+			RelayLog.error("ERROR restoring values from " + path, e);
+		}
+
+		return restored;
+	}
+
+	/**************************************************************************
+	 *
+	 * Create the file for the layout of the store, with the values of the
+	 * store as its first copy, and map it. The file is written beside the
+	 * old one and renamed into place, so the old one is kept until the new
+	 * one is complete.
+	 *
+	 *************************************************************************/
+	public void open() throws IOException
+	{
+		MessageLayout layout = store.getLayout();
+
+		byte[][] keys = new byte[layout.getSize()][];
+		int directory_size = 0;
+		copy_size = 0;
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = layout.getKey(i).getBytes(StandardCharsets.UTF_8);
+			directory_size += 2 + keys[i].length + 1 + 4 + 4 + 4;
+
+			offsets[i] = copy_size;
+			copy_size += 8 + (layout.getLength(i) * 8);
+		}
+		copies_offset = (HEADER_SIZE + directory_size + 7) & ~7;
+
+		int size = copies_offset + (2 * copy_size);
+
+		ByteBuffer bb = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		bb.putInt(0, MAGIC);
+		bb.putInt(4, VERSION);
+		bb.putInt(COUNT_OFFSET, keys.length);
+		bb.putInt(COPY_SIZE_OFFSET, copy_size);
+		bb.putInt(COPIES_OFFSET, copies_offset);
+
+		bb.position(HEADER_SIZE);
+		for (int i = 0; i < keys.length; i++)
+		{
+			bb.putShort((short)keys[i].length);
+			bb.put(keys[i]);
+			bb.put((byte)layout.getType(i).ordinal());
+			bb.putInt(layout.getCapacity(i));
+			bb.putInt(layout.getLength(i));
+			bb.putInt(offsets[i]);
+		}
+
+		// the restored values are saved straight away, in case the relay
+		// stops again before the first interval
+		last_update_count = store.getUpdateCount();
+		writeCopy(bb, 0);
+		bb.putLong(TIME_OFFSET, RelayClock.nowMicros());
+		bb.putInt(CURRENT_OFFSET, 0);
+		current = 0;
+
+		File f = new File(path);
+		File new_file = new File(path + NEW_EXTENSION);
+
+		FileChannel channel = FileChannel.open(new_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try
+		{
+			bb.clear();
+			while (bb.hasRemaining())
+			{
+				channel.write(bb);
+			}
+			channel.force(true);
+		}
+		finally
+		{
+			channel.close();
+		}
+
+		Files.move(new_file.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try
+		{
+			file = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		finally
+		{
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+
+		file.order(ByteOrder.LITTLE_ENDIAN);
+
+		RelayLog.info("Saving the values to " + path + " every " + (interval_ns / 1.0e9) + "s");
+	}
+
+	/**************************************************************************
+	 *
+	 * Start saving on a new thread.
+	 *
+	 *************************************************************************/
+	public void start()
+	{
+		thread = new Thread(this, "Snapshot");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**************************************************************************
+	 *
+	 * Save the values one last time and stop the checkpoint thread.
+	 *
+	 *************************************************************************/
+	public void stop()
+	{
+		if (thread == null)
+		{
+			return;
+		}
+
+		done = true;
+		LockSupport.unpark(thread);
+
+		try
+		{
+			thread.join(1000);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (! done)
+		{
+			LockSupport.parkNanos(this, interval_ns);
+			checkpoint();
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Save the values of the store to the copy that is not current, then
+	 * make it current, if any value has been updated since the last
+	 * checkpoint.
+	 *
+	 *************************************************************************/
+	public void checkpoint()
+	{
+		long update_count = store.getUpdateCount();
+		if ((file == null) || (update_count == last_update_count))
+		{
+			return;
+		}
+
+		// counted first, so an update while copying is saved next time
+		last_update_count = update_count;
+
+		int next = (current == 0) ? 1 : 0;
+		writeCopy(file, next);
+
+		// the copy is on the disk before it is made current, and the
+		// header after, so a power loss never leaves a partial copy current
+		file.force();
+		file.putLong(TIME_OFFSET, RelayClock.nowMicros());
+		file.putInt(CURRENT_OFFSET, next);
+		file.force();
+
+		current = next;
+	}
+
+	/**************************************************************************
+	 *
+	 * Write the values of the store, with the time of their last update, to
+	 * one of the copies.
+	 *
+	 *************************************************************************/
+	private void writeCopy(ByteBuffer bb, int copy_number)
+	{
+		store.snapshot(values);
+
+		MessageLayout layout = store.getLayout();
+		int copy = copies_offset + (copy_number * copy_size);
+
+		for (int i = 0; i < offsets.length; i++)
+		{
+			long t = store.getUpdateTime(i);
+			int offset = copy + offsets[i];
+
+			bb.putLong(offset, (t == 0) ? 0 : RelayClock.toMicros(t));
+
+			int pos = layout.getPosition(i);
+			for (int j = 0; j < layout.getLength(i); j++)
+			{
+				bb.putLong(offset + 8 + (j * 8), values[pos + j]);
+			}
+		}
+	}
+}
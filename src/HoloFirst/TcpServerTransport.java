@@ -0,0 +1,383 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/******************************************************************************
+ *
+ * This transport listens for TCP connections, any number of consumers can
+ * connect and each receives every message from then on.
+ *
+ * Everything runs on the sender thread with a single non-blocking Selector,
+ * no thread is started for a connection. Each time the destination is
+ * polled, new connections are accepted, closed connections are removed and
+ * held messages are written to the consumers that can take them. Each
+ * message is encoded once, into the buffer of the pipeline, and the same
+ * buffer is written to every consumer.
+ *
+ * Each consumer has its own ConflatingOutbox, so a slow consumer gets only
+ * the newest message of each id and never holds up the others, and one that
+ * stays behind for max_lag seconds is disconnected. A keyframe is requested
+ * whenever a consumer connects or a held message is replaced.
+ *
+ *****************************************************************************/
+public class TcpServerTransport implements Transport
+{
+	/**************************************************************************
+	 *
+	 * One connected consumer.
+	 *
+	 *************************************************************************/
+	private static class Client
+	{
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ConflatingOutbox outbox;
+		final String name;
+
+		boolean lagging = false;
+		long lagging_since_ns = 0;
+
+		Client(SocketChannel channel, SelectionKey key, ConflatingOutbox outbox, String name)
+		{
+			this.channel = channel;
+			this.key = key;
+			this.outbox = outbox;
+			this.name = name;
+		}
+	}
+
+	private final int port;
+	private final int buffer_size;
+	private final long max_lag_ns;
+	private final int max_clients;
+
+	private Selector selector = null;
+	private ServerSocketChannel server = null;
+	private final ArrayList<Client> clients = new ArrayList<Client>();
+	private final ByteBuffer discard = ByteBuffer.allocateDirect(512);
+
+	private boolean keyframe_needed = false;
+
+	private DestinationMetrics metrics = new DestinationMetrics("");
+
+	/**************************************************************************
+	 *
+	 * @param port			the port to listen on, on every interface
+	 * @param buffer_size	the largest message that will be sent
+	 * @param max_lag		the longest a consumer can stay behind before it is
+	 *                      disconnected (seconds), 0 to never disconnect
+	 * @param max_clients	the most consumers connected at once
+	 *
+	 *************************************************************************/
+	public TcpServerTransport(int port, int buffer_size, float max_lag, int max_clients)
+	{
+		this.port = port;
+		this.buffer_size = buffer_size;
+		this.max_lag_ns = (long)(max_lag * 1.0e9);
+		this.max_clients = max_clients;
+	}
+
+	@Override
+	public void open() throws IOException
+	{
+		selector = Selector.open();
+
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.bind(new InetSocketAddress(port), max_clients);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		RelayLog.info("Listening for consumers on port " + port);
+	}
+
+	/**************************************************************************
+	 *
+	 * Write a message to every consumer, consumers that are behind get it
+	 * through their outbox.
+	 *
+	 * @return true if at least one consumer took the message, written or
+	 *         held in its outbox
+	 *
+	 *************************************************************************/
+	@Override
+	public boolean send(ByteBuffer frame)
+	{
+		if (clients.isEmpty())
+		{
+			return false;
+		}
+
+		int start = frame.position();
+		boolean sent = false;
+
+		for (int i = clients.size() - 1; i >= 0; i--)
+		{
+			Client client = clients.get(i);
+			frame.position(start);
+
+			if (! client.outbox.admit(frame))
+			{
+				// a delta the consumer cannot use, until the keyframe
+				metrics.framesConflated(1);
+				keyframe_needed = true;
+				continue;
+			}
+
+			try
+			{
+				if (client.outbox.isEmpty())
+				{
+					client.channel.write(frame);
+
+					if (frame.hasRemaining())
+					{
+						client.outbox.hold(frame);
+						client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+				}
+				else if (client.outbox.offer(frame))
+				{
+					metrics.framesConflated(1);
+					keyframe_needed = true;
+				}
+				sent = true;
+
+				checkLag(i);
+			}
+			catch (IOException e)
+			{
+				metrics.sendFailed();
+				removeClient(i, "lost connection: " + e.getMessage());
+			}
+		}
+
+		return sent;
+	}
+
+	/**************************************************************************
+	 *
+	 * Accept new consumers, remove closed ones and write held messages.
+	 *
+	 *************************************************************************/
+	@Override
+	public void flush()
+	{
+		if (selector == null)
+		{
+			return;
+		}
+
+		try
+		{
+			selector.selectNow();
+		}
+		catch (IOException e)
+		{
+			RelayLog.error("Select for " + getName() + " failed", e);
+			return;
+		}
+
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext())
+		{
+			SelectionKey key = keys.next();
+			keys.remove();
+
+			if (! key.isValid())
+			{
+				continue;
+			}
+
+			if (key.isAcceptable())
+			{
+				accept();
+				continue;
+			}
+
+			Client client = (Client)key.attachment();
+			try
+			{
+				if (key.isReadable())
+				{
+					// consumers do not send anything, a read only tells
+					// when they close the connection
+					discard.clear();
+					if (client.channel.read(discard) < 0)
+					{
+						removeClient(clients.indexOf(client), "disconnected");
+						continue;
+					}
+				}
+
+				if (key.isWritable() && client.outbox.flush(client.channel))
+				{
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+			catch (IOException e)
+			{
+				metrics.sendFailed();
+				removeClient(clients.indexOf(client), "lost connection: " + e.getMessage());
+			}
+		}
+
+		for (int i = clients.size() - 1; i >= 0; i--)
+		{
+			checkLag(i);
+		}
+	}
+
+	@Override
+	public void setMetrics(DestinationMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	@Override
+	public boolean keyframeNeeded()
+	{
+		boolean k = keyframe_needed;
+		keyframe_needed = false;
+		return k;
+	}
+
+	@Override
+	public void close()
+	{
+		for (int i = clients.size() - 1; i >= 0; i--)
+		{
+			removeClient(i, "closed");
+		}
+
+		try { if (server != null) server.close(); } catch (Exception e) { }
+		try { if (selector != null) selector.close(); } catch (Exception e) { }
+		server = null;
+		selector = null;
+	}
+
+	@Override
+	public String getName()
+	{
+		return "*:" + port + ":TCP server";
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of consumers connected
+	 *
+	 *************************************************************************/
+	public int getClientCount()
+	{
+		return clients.size();
+	}
+
+	/**************************************************************************
+	 *
+	 * Accept every pending connection.
+	 *
+	 *************************************************************************/
+	private void accept()
+	{
+		while (true)
+		{
+			SocketChannel channel;
+			try
+			{
+				channel = server.accept();
+				if (channel == null)
+				{
+					return;
+				}
+			}
+			catch (IOException e)
+			{
+				RelayLog.error("Accept for " + getName() + " failed", e);
+				return;
+			}
+
+			String name = "consumer";
+			try
+			{
+				name = channel.getRemoteAddress().toString();
+
+				if (clients.size() >= max_clients)
+				{
+					RelayLog.warn("Refused " + name + " on " + getName() + ", already " + max_clients + " consumers");
+					channel.close();
+					continue;
+				}
+
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, buffer_size);
+
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				Client client = new Client(channel, key, new ConflatingOutbox(buffer_size), name);
+				key.attach(client);
+				clients.add(client);
+
+				RelayLog.info("Consumer " + name + " connected to " + getName() + ", " + clients.size() + " connected");
+				metrics.clientsConnected(clients.size());
+				keyframe_needed = true;
+			}
+			catch (IOException e)
+			{
+				RelayLog.warn("Could not set up " + name + " on " + getName() + ": " + e.getMessage());
+				try { channel.close(); } catch (Exception e2) { }
+			}
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Keep track of how long a consumer has been behind, and disconnect it if
+	 * that is longer than max_lag.
+	 *
+	 *************************************************************************/
+	private void checkLag(int idx)
+	{
+		Client client = clients.get(idx);
+
+		if (client.outbox.isEmpty())
+		{
+			client.lagging = false;
+			return;
+		}
+
+		long now = System.nanoTime();
+		if (! client.lagging)
+		{
+			client.lagging = true;
+			client.lagging_since_ns = now;
+		}
+		else if ((max_lag_ns > 0) && (now - client.lagging_since_ns > max_lag_ns))
+		{
+			metrics.lagDisconnected();
+			removeClient(idx, "behind for more than " + (max_lag_ns / 1.0e9) + "s");
+		}
+	}
+
+	private void removeClient(int idx, String reason)
+	{
+		if (idx < 0)
+		{
+			return;
+		}
+
+		Client client = clients.remove(idx);
+		client.key.cancel();
+		try { client.channel.close(); } catch (Exception e) { }
+
+		RelayLog.info("Consumer " + client.name + " removed from " + getName() + ", " + reason);
+		metrics.clientsConnected(clients.size());
+	}
+}
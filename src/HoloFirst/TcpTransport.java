@@ -0,0 +1,309 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/******************************************************************************
+ *
+ * This transport writes messages to a non-blocking SocketChannel.
+ *
+ * The connection is made without blocking; each call to send() checks on
+ * a pending connection and, if the connection fails or is lost, the next
+ * attempt is delayed with an exponential backoff. The host name is looked
+ * up when the transport is opened, and again only after a connection
+ * attempt fails, so a lookup that waits for a resolver timeout does not
+ * hold up every attempt of the sender thread.
+ *
+ * If the peer is slow, messages that cannot be written right away go to a
+ * ConflatingOutbox, which finishes any partly written message and keeps
+ * only the newest message of each id behind it. Whenever a message is
+ * replaced a keyframe is requested, so a consumer of delta messages is
+ * always brought back up to date. The send buffer of the socket is kept
+ * small, so messages wait in the outbox where they can be replaced rather
+ * than in the kernel where they only add latency.
+ *
+ * A peer that has not caught up for max_lag seconds is disconnected, the
+ * connection is then made again as after any other failure.
+ *
+ *****************************************************************************/
+public class TcpTransport implements Transport
+{
+	private static final long MIN_BACKOFF_NS = 100000000L; // 0.1 seconds
+
+	private final String dst_host;
+	private final int dst_port;
+	private final long max_backoff_ns;
+
+	private InetSocketAddress address = null;
+	private SocketChannel channel = null;
+	private boolean connected = false;
+	private boolean keyframe_needed = false;
+	private boolean ever_connected = false;
+
+	private DestinationMetrics metrics = new DestinationMetrics("");
+
+	private long backoff_ns = 0;
+	private long next_connect_ns;
+
+	private final int buffer_size;
+	private final ConflatingOutbox outbox;
+	private final long max_lag_ns;
+	private long lagging_since_ns = 0;
+	private boolean lagging = false;
+
+	/**************************************************************************
+	 *
+	 * @param dst_host		the host to connect to
+	 * @param dst_port		the port to connect to
+	 * @param max_backoff	the longest time between connection attempts (seconds)
+	 * @param buffer_size	the largest message that will be sent
+	 *
+	 *************************************************************************/
+	public TcpTransport(String dst_host, int dst_port, float max_backoff, int buffer_size)
+	{
+		this(dst_host, dst_port, max_backoff, buffer_size, 0.0f);
+	}
+
+	/**************************************************************************
+	 *
+	 * @param dst_host		the host to connect to
+	 * @param dst_port		the port to connect to
+	 * @param max_backoff	the longest time between connection attempts (seconds)
+	 * @param buffer_size	the largest message that will be sent
+	 * @param max_lag		the longest a peer can stay behind before it is
+	 *                      disconnected (seconds), 0 to never disconnect
+	 *
+	 *************************************************************************/
+	public TcpTransport(String dst_host, int dst_port, float max_backoff, int buffer_size, float max_lag)
+	{
+		this.dst_host = dst_host;
+		this.dst_port = dst_port;
+		this.max_backoff_ns = Math.max((long)(max_backoff * 1.0e9), MIN_BACKOFF_NS);
+		this.buffer_size = buffer_size;
+		this.outbox = new ConflatingOutbox(buffer_size);
+		this.max_lag_ns = (long)(max_lag * 1.0e9);
+		this.next_connect_ns = System.nanoTime();
+	}
+
+	@Override
+	public void open() throws IOException
+	{
+		address = new InetSocketAddress(dst_host, dst_port);
+		connect();
+	}
+
+	@Override
+	public boolean send(ByteBuffer frame)
+	{
+		if (! connected && ! connect())
+		{
+			return false;
+		}
+
+		if (! outbox.admit(frame))
+		{
+			// a delta the peer cannot use, until the keyframe
+			metrics.framesConflated(1);
+			keyframe_needed = true;
+			return false;
+		}
+
+		try
+		{
+			if (outbox.flush(channel))
+			{
+				channel.write(frame);
+
+				if (frame.hasRemaining())
+				{
+					outbox.hold(frame);
+				}
+			}
+			else if (outbox.offer(frame))
+			{
+				metrics.framesConflated(1);
+				keyframe_needed = true;
+			}
+
+			checkLag();
+			return true;
+		}
+		catch (IOException e)
+		{
+			metrics.sendFailed();
+			RelayLog.warn("Lost connection to " + getName() + ": " + e.getMessage());
+			disconnect();
+			return false;
+		}
+	}
+
+	@Override
+	public void flush()
+	{
+		if (! connected || outbox.isEmpty())
+		{
+			return;
+		}
+
+		try
+		{
+			outbox.flush(channel);
+			checkLag();
+		}
+		catch (IOException e)
+		{
+			metrics.sendFailed();
+			RelayLog.warn("Lost connection to " + getName() + ": " + e.getMessage());
+			disconnect();
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Keep track of how long the peer has been behind, and disconnect it if
+	 * that is longer than max_lag.
+	 *
+	 *************************************************************************/
+	private void checkLag()
+	{
+		if (outbox.isEmpty())
+		{
+			lagging = false;
+			return;
+		}
+
+		long now = System.nanoTime();
+		if (! lagging)
+		{
+			lagging = true;
+			lagging_since_ns = now;
+		}
+		else if ((max_lag_ns > 0) && (now - lagging_since_ns > max_lag_ns))
+		{
+			metrics.lagDisconnected();
+			RelayLog.warn("Disconnecting " + getName() + ", behind for more than " + (max_lag_ns / 1.0e9) + "s");
+			disconnect();
+		}
+	}
+
+	@Override
+	public void setMetrics(DestinationMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	@Override
+	public boolean keyframeNeeded()
+	{
+		boolean k = keyframe_needed;
+		keyframe_needed = false;
+		return k;
+	}
+
+	@Override
+	public void close()
+	{
+		disconnect();
+	}
+
+	@Override
+	public String getName()
+	{
+		return dst_host + ":" + dst_port + ":TCP";
+	}
+
+	public boolean isConnected()
+	{
+		return connected;
+	}
+
+	/**************************************************************************
+	 *
+	 * Start or check on a connection attempt without blocking.
+	 *
+	 * @return true if the connection is established
+	 *
+	 *************************************************************************/
+	private boolean connect()
+	{
+		try
+		{
+			if (channel == null)
+			{
+				if (System.nanoTime() - next_connect_ns < 0)
+				{
+					return false;
+				}
+
+				if (address == null)
+				{
+					// the last attempt failed, the host may have a new address
+					address = new InetSocketAddress(dst_host, dst_port);
+				}
+
+				if (address.isUnresolved())
+				{
+					RelayLog.warn("Could not find the address of " + getName());
+					address = null;
+					disconnect();
+					return false;
+				}
+
+				RelayLog.info("Trying to connection to " + getName());
+
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, buffer_size);
+				connected = channel.connect(address);
+			}
+			else if (channel.isConnectionPending())
+			{
+				connected = channel.finishConnect();
+			}
+
+			if (connected)
+			{
+				RelayLog.info("Connected to " + getName());
+				keyframe_needed = true;
+				backoff_ns = 0;
+
+				if (ever_connected)
+				{
+					metrics.reconnected();
+				}
+				ever_connected = true;
+				outbox.clear();
+				lagging = false;
+			}
+
+			return connected;
+		}
+		catch (IOException e)
+		{
+			address = null;
+			disconnect();
+			return false;
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Close the connection and schedule the next attempt.
+	 *
+	 *************************************************************************/
+	private void disconnect()
+	{
+		try { if (channel != null) channel.close(); } catch (Exception e) { }
+		channel = null;
+		connected = false;
+		outbox.clear();
+		lagging = false;
+
+		backoff_ns = (backoff_ns == 0) ? MIN_BACKOFF_NS : Math.min(backoff_ns * 2, max_backoff_ns);
+		next_connect_ns = System.nanoTime() + backoff_ns;
+	}
+}
@@ -0,0 +1,77 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/******************************************************************************
+ *
+ * A Transport delivers encoded messages to a destination.
+ *
+ * Implementations must never block the caller, a message that cannot be
+ * written right away is dropped (or held by the transport, see
+ * ConflatingOutbox) so a slow or missing destination cannot hold up the
+ * sender.
+ *
+ *****************************************************************************/
+public interface Transport
+{
+	/**************************************************************************
+	 *
+	 * Prepare the transport, this must not block waiting for a connection.
+	 *
+	 *************************************************************************/
+	void open() throws IOException;
+
+	/**************************************************************************
+	 *
+	 * Send one message.
+	 *
+	 * @param frame the message, from position to limit. The position of the
+	 *              buffer may be changed by the transport.
+	 *
+	 * @return true if the message was written or held to be written later,
+	 *         false if it was dropped
+	 *
+	 *************************************************************************/
+	boolean send(ByteBuffer frame);
+
+	/**************************************************************************
+	 *
+	 * Write any messages held by the transport, called each time the
+	 * destination is polled.
+	 *
+	 *************************************************************************/
+	void flush();
+
+	/**************************************************************************
+	 *
+	 * Check if the next message should be a keyframe, because a new consumer
+	 * started receiving messages or held messages were replaced since the
+	 * last call.
+	 *
+	 * @return true once for each new connection or replacement
+	 *
+	 *************************************************************************/
+	boolean keyframeNeeded();
+
+	/**************************************************************************
+	 *
+	 * Set the metrics that send failures and reconnects are counted in.
+	 *
+	 *************************************************************************/
+	void setMetrics(DestinationMetrics metrics);
+
+	/**************************************************************************
+	 *
+	 * Release all resources used by the transport.
+	 *
+	 *************************************************************************/
+	void close();
+
+	/**************************************************************************
+	 *
+	 * @return a description of the destination for log messages
+	 *
+	 *************************************************************************/
+	String getName();
+}
@@ -0,0 +1,100 @@
+package HoloFirst;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/******************************************************************************
+ *
+ * This transport sends each message as a single datagram using a connected,
+ * non-blocking DatagramChannel.
+ *
+ *****************************************************************************/
+public class UdpTransport implements Transport
+{
+	protected final String dst_host;
+	protected final int dst_port;
+
+	protected DatagramChannel channel = null;
+	protected DestinationMetrics metrics = new DestinationMetrics("");
+
+	public UdpTransport(String dst_host, int dst_port)
+	{
+		this.dst_host = dst_host;
+		this.dst_port = dst_port;
+	}
+
+	@Override
+	public void open() throws IOException
+	{
+		channel = openChannel();
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(dst_host, dst_port));
+	}
+
+	/**************************************************************************
+	 *
+	 * Create the channel, subclasses can override this to set options before
+	 * the channel is connected.
+	 *
+	 *************************************************************************/
+	protected DatagramChannel openChannel() throws IOException
+	{
+		return DatagramChannel.open();
+	}
+
+	@Override
+	public boolean send(ByteBuffer frame)
+	{
+		try
+		{
+			// a full send buffer writes nothing and the message is dropped
+			return channel.write(frame) > 0;
+		}
+		catch (PortUnreachableException e)
+		{
+			// nothing is listening yet, keep sending
+			return false;
+		}
+		catch (IOException e)
+		{
+			metrics.sendFailed();
+			RelayLog.error("Send to " + getName() + " failed", e);
+			return false;
+		}
+	}
+
+	@Override
+	public void setMetrics(DestinationMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void flush()
+	{
+		// datagrams are never held
+	}
+
+	@Override
+	public boolean keyframeNeeded()
+	{
+		// datagram consumers rely on the periodic keyframes
+		return false;
+	}
+
+	@Override
+	public void close()
+	{
+		try { if (channel != null) channel.close(); } catch (Exception e) { }
+		channel = null;
+	}
+
+	@Override
+	public String getName()
+	{
+		return dst_host + ":" + dst_port + ":UDP";
+	}
+}
@@ -0,0 +1,133 @@
+package HoloFirst;
+
+import java.util.Arrays;
+
+import edu.wpi.first.wpilibj.networktables.NetworkTable;
+
+import HoloFirst.NetTableToSocket.ValueType;
+
+/******************************************************************************
+ *
+ * A ValueSource is somewhere values come from, named by the source
+ * attribute of a value in the configuration file.
+ *
+ * Each source has a layout of the values it provides (keyed by table and
+ * key) and the ValueStore slot of each of them. A source writes its updates
+ * straight into the slots from its own thread, the store needs no locks so
+ * sources never wait on each other.
+ *
+ *****************************************************************************/
+public abstract class ValueSource
+{
+	public static final String DEFAULT_TABLE = "SmartDashboard";
+
+	protected final String name;
+	protected final NetTableToSocket app;
+
+	protected final MessageLayout layout = new MessageLayout();
+	protected String[] tables = new String[0];
+	protected String[] keys = new String[0];
+	protected int[] store_slots = new int[0];
+
+	/**************************************************************************
+	 *
+	 * @param name	the name of the source, empty for the default source
+	 * @param app	the application to send the updates to
+	 *
+	 *************************************************************************/
+	public ValueSource(String name, NetTableToSocket app)
+	{
+		this.name = name;
+		this.app = app;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the values of this source, in the order they were added
+	 *
+	 *************************************************************************/
+	public MessageLayout getLayout()
+	{
+		return layout;
+	}
+
+	/**************************************************************************
+	 *
+	 * Add a value that this source provides.
+	 *
+	 * @param table			the name of the table the value is in
+	 * @param key			the key of the value in the table
+	 * @param type			the type of the value
+	 * @param default_value a default value
+	 * @param capacity		the capacity of a string or array
+	 * @param store_slot	the slot of the value in the ValueStore
+	 *
+	 * @return the index of the value in the layout of this source, or -1 if
+	 *         the value was already added
+	 *
+	 *************************************************************************/
+	public int addValue(String table, String key, ValueType type, Object default_value, int capacity, int store_slot)
+	{
+		int idx = layout.addValue(table + NetworkTable.PATH_SEPARATOR + key, type, default_value, capacity);
+		if (idx >= 0)
+		{
+			tables = Arrays.copyOf(tables, idx + 1);
+			keys = Arrays.copyOf(keys, idx + 1);
+			store_slots = Arrays.copyOf(store_slots, idx + 1);
+
+			tables[idx] = table;
+			keys[idx] = key;
+			store_slots[idx] = store_slot;
+		}
+
+		return idx;
+	}
+
+	/**************************************************************************
+	 *
+	 * Start receiving values. This is called after all the values have
+	 * been added and the ValueStore has been created.
+	 *
+	 *************************************************************************/
+	public abstract void start() throws Exception;
+
+	/**************************************************************************
+	 *
+	 * @return true if this source cannot run at the same time as a source
+	 *         of the configuration it replaces, for example because both
+	 *         receive on the same port, so that one must be stopped first
+	 *
+	 *************************************************************************/
+	public boolean conflictsWith(ValueSource other)
+	{
+		return false;
+	}
+
+	/**************************************************************************
+	 *
+	 * Stop receiving values, when the configuration is reloaded. No value
+	 * may be written to the old slots after this returns.
+	 *
+	 *************************************************************************/
+	public void stop()
+	{
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the name of the value in the ValueStore, the key for the default
+	 *         source and table, otherwise prefixed with the table path and
+	 *         source name (for example "coproc:/Vision/range")
+	 *
+	 *************************************************************************/
+	public static String storeKey(String source, String table, String key)
+	{
+		String path = table.equals(DEFAULT_TABLE) ? key : (NetworkTable.PATH_SEPARATOR + table + NetworkTable.PATH_SEPARATOR + key);
+		return source.isEmpty() ? path : (source + ":" + path);
+	}
+}
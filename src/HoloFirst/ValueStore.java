@@ -0,0 +1,343 @@
+package HoloFirst;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/******************************************************************************
+ *
+ * This class holds the live value of every slot in a MessageLayout.
+ *
+ * Each slot is a single atomic long holding the converted bits of the value
+ * (see MessageLayout), so the table listener thread can write values without
+ * locks and the sender thread always reads the latest complete value of each
+ * slot, never a torn or stale one.
+ *
+ * A string or array slot is a range of longs, it is guarded by a sequence
+ * number (a seqlock). A writer makes the sequence odd, writes the longs and
+ * makes it even again, a reader copies the longs and tries again if the
+ * sequence was odd or changed while copying. Readers never block a writer,
+ * and the data is converted into a preallocated copy of the slot, so no
+ * update allocates.
+ *
+ * The System.nanoTime() and the number of updates of each slot are kept so
+ * the senders can measure how long an update took to reach the destination
+ * and how many updates were replaced before they were sent.
+ *
+ *****************************************************************************/
+public class ValueStore
+{
+	private final MessageLayout layout;
+	private final AtomicLongArray slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLongArray update_times;
+	private final AtomicLongArray update_counts;
+
+	// the conversion buffer of each string or array slot, only used by the
+	// writer holding the sequence
+	private final long[][] data;
+
+	/**************************************************************************
+	 *
+	 * Create a store with every slot set to its default value.
+	 *
+	 * @param layout the layout that defines the slots
+	 *
+	 *************************************************************************/
+	public ValueStore(MessageLayout layout)
+	{
+		this.layout = layout;
+		this.slots = new AtomicLongArray(layout.createValues());
+		this.sequences = new AtomicLongArray(layout.getSize());
+		this.update_times = new AtomicLongArray(layout.getSize());
+		this.update_counts = new AtomicLongArray(layout.getSize());
+
+		this.data = new long[layout.getSize()][];
+		for (int i = 0; i < data.length; i++)
+		{
+			if (layout.getCapacity(i) > 0)
+			{
+				data[i] = new long[layout.getLength(i)];
+			}
+		}
+	}
+
+	public MessageLayout getLayout()
+	{
+		return layout;
+	}
+
+	/**************************************************************************
+	 *
+	 * Convert a value received from the network table and store it in a slot.
+	 *
+	 * @param idx	the slot index from MessageLayout.getSlot()
+	 * @param value the value
+	 *
+	 * @return true if a string or array was truncated to the capacity of the
+	 *         slot
+	 *
+	 * @throws IllegalArgumentException if the value cannot be converted
+	 *
+	 *************************************************************************/
+	public boolean setValue(int idx, Object value)
+	{
+		if (data[idx] == null)
+		{
+			set(idx, MessageLayout.toBits(layout.getType(idx), value));
+			return false;
+		}
+
+		boolean truncated;
+
+		lock(idx);
+		try
+		{
+			long[] d = data[idx];
+			truncated = MessageLayout.toData(layout.getType(idx), value, layout.getCapacity(idx), d, 0);
+			copyIn(idx, d, 0);
+		}
+		finally
+		{
+			sequences.incrementAndGet(idx);
+		}
+
+		updated(idx);
+		return truncated;
+	}
+
+	/**************************************************************************
+	 *
+	 * Set the bits of a slot that is not a string or array.
+	 *
+	 *************************************************************************/
+	public void set(int idx, long bits)
+	{
+		slots.set(layout.getPosition(idx), bits);
+		updated(idx);
+	}
+
+	/**************************************************************************
+	 *
+	 * Set a slot from slot values of another layout with the same type and
+	 * capacity, for example from a MessageDecoder.
+	 *
+	 * @param idx	the slot index
+	 * @param src	the slot values
+	 * @param pos	the position of the slot in the slot values
+	 *
+	 *************************************************************************/
+	public void set(int idx, long[] src, int pos)
+	{
+		if (data[idx] == null)
+		{
+			set(idx, src[pos]);
+			return;
+		}
+
+		lock(idx);
+		try
+		{
+			copyIn(idx, src, pos);
+		}
+		finally
+		{
+			sequences.incrementAndGet(idx);
+		}
+
+		updated(idx);
+	}
+
+	/**************************************************************************
+	 *
+	 * Set a slot to a value saved by an earlier run (see SnapshotFile), or
+	 * copied from the store of the configuration this one replaces. The slot
+	 * keeps the time of the saved update, and the value is not counted as an
+	 * update, so no latency is measured for it.
+	 *
+	 * @param idx			the slot index
+	 * @param src			the slot values
+	 * @param pos			the position of the slot in the slot values
+	 * @param update_time	the System.nanoTime() of the saved update
+	 *
+	 *************************************************************************/
+	public void restore(int idx, long[] src, int pos, long update_time)
+	{
+		if (data[idx] == null)
+		{
+			slots.set(layout.getPosition(idx), src[pos]);
+		}
+		else
+		{
+			lock(idx);
+			try
+			{
+				copyIn(idx, src, pos);
+			}
+			finally
+			{
+				sequences.incrementAndGet(idx);
+			}
+		}
+
+		update_times.set(idx, update_time);
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the bits of a slot that is not a string or array, the length of
+	 *         a string or array
+	 *
+	 *************************************************************************/
+	public long get(int idx)
+	{
+		return slots.get(layout.getPosition(idx));
+	}
+
+	/**************************************************************************
+	 *
+	 * Copy the current value of a slot.
+	 *
+	 * @param idx	the slot index
+	 * @param dst	the slot values to copy to, with the same type and capacity
+	 * @param pos	the position of the slot in dst
+	 *
+	 *************************************************************************/
+	public void read(int idx, long[] dst, int pos)
+	{
+		int src = layout.getPosition(idx);
+
+		if (data[idx] == null)
+		{
+			dst[pos] = slots.get(src);
+			return;
+		}
+
+		while (true)
+		{
+			long seq = sequences.get(idx);
+			if ((seq & 1) == 0)
+			{
+				// the length is only trusted once the sequence is checked,
+				// so it is limited to the slot while copying
+				int n = 1 + MessageLayout.dataLongs(layout.getType(idx), (int)Math.min(slots.get(src) & 0xFFFF, layout.getCapacity(idx)));
+				for (int i = 0; i < n; i++)
+				{
+					dst[pos + i] = slots.get(src + i);
+				}
+
+				if (sequences.get(idx) == seq)
+				{
+					return;
+				}
+			}
+
+			Thread.yield();
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the System.nanoTime() of the last update of a slot, 0 if the
+	 *         slot has never been updated
+	 *
+	 *************************************************************************/
+	public long getUpdateTime(int idx)
+	{
+		return update_times.get(idx);
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the total number of updates of all slots
+	 *
+	 *************************************************************************/
+	public long getUpdateCount()
+	{
+		long count = 0;
+		for (int i = 0; i < update_counts.length(); i++)
+		{
+			count += update_counts.get(i);
+		}
+		return count;
+	}
+
+	/**************************************************************************
+	 *
+	 * @return the number of updates of a slot
+	 *
+	 *************************************************************************/
+	public long getUpdateCount(int idx)
+	{
+		return update_counts.get(idx);
+	}
+
+	/**************************************************************************
+	 *
+	 * Copy the current value of every slot.
+	 *
+	 * @param values the array to fill, as created by MessageLayout.createValues()
+	 *
+	 *************************************************************************/
+	public void snapshot(long[] values)
+	{
+		for (int i = 0; i < data.length; i++)
+		{
+			read(i, values, layout.getPosition(i));
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Copy the current value of some of the slots.
+	 *
+	 * @param store_slots	the slot to copy to each value
+	 * @param values		the array to fill, the slot values of a layout with
+	 *                      these slots in this order
+	 *
+	 *************************************************************************/
+	public void snapshot(int[] store_slots, long[] values)
+	{
+		int pos = 0;
+		for (int i = 0; i < store_slots.length; i++)
+		{
+			read(store_slots[i], values, pos);
+			pos += layout.getLength(store_slots[i]);
+		}
+	}
+
+	/**************************************************************************
+	 *
+	 * Take the sequence of a string or array slot for writing, waiting for
+	 * any other writer of the slot to finish.
+	 *
+	 *************************************************************************/
+	private void lock(int idx)
+	{
+		while (true)
+		{
+			long seq = sequences.get(idx);
+			if (((seq & 1) == 0) && sequences.compareAndSet(idx, seq, seq + 1))
+			{
+				return;
+			}
+
+			Thread.yield();
+		}
+	}
+
+	private void copyIn(int idx, long[] src, int pos)
+	{
+		int dst = layout.getPosition(idx);
+		int n = 1 + MessageLayout.dataLongs(layout.getType(idx), (int)src[pos]);
+
+		for (int i = 0; i < n; i++)
+		{
+			slots.set(dst + i, src[pos + i]);
+		}
+	}
+
+	private void updated(int idx)
+	{
+		update_times.set(idx, System.nanoTime());
+		update_counts.incrementAndGet(idx);
+	}
+}
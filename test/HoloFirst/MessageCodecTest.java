@@ -0,0 +1,286 @@
+package HoloFirst;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import HoloFirst.NetTableToSocket.ValueType;
+
+/******************************************************************************
+ *
+ * This test encodes messages with a MessageEncoder and decodes them with a
+ * MessageDecoder of the same layout, and checks every value comes back: a
+ * protocol 2 keyframe followed by deltas, bit packed booleans, a quantized
+ * fixed-point value at and beyond its bounds, a batch of samples with
+ * every kind of value, and strings that are not plain ASCII.
+ *
+ * Run it with the Test target of Build.xml, it exits with an error if a
+ * check fails.
+ *
+ *****************************************************************************/
+public class MessageCodecTest
+{
+	private static final int MESSAGE_ID = 7;
+
+	// 6 bits from -8 in steps of 0.25, so -8 to 7.75, every step is exact
+	private static final int RANGE_BITS = 6;
+	private static final double RANGE_SCALE = 0.25;
+	private static final double RANGE_OFFSET = -8.0;
+
+	private static final MessageLayout layout = new MessageLayout();
+	private static final int enabled = layout.addValue("enabled", ValueType.BOOLEAN, Boolean.FALSE);
+	private static final int range = layout.addValue("range", ValueType.DOUBLE, Double.valueOf(0.0));
+	private static final int count = layout.addValue("count", ValueType.INT, Integer.valueOf(0));
+	private static final int target = layout.addValue("target", ValueType.BOOLEAN, Boolean.FALSE);
+	private static final int name = layout.addValue("name", ValueType.STRING, "", 16);
+	private static final int heading = layout.addValue("heading", ValueType.FLOAT, Float.valueOf(0.0f));
+	private static final int pose = layout.addValue("pose", ValueType.DOUBLE_ARRAY, new double[0], 3);
+	private static final int mode = layout.addValue("mode", ValueType.SHORT, Short.valueOf((short)0));
+
+	public static void main(String[] args) throws Exception
+	{
+		layout.setEncoding(enabled, 1, 1.0, 0.0);
+		layout.setEncoding(target, 1, 1.0, 0.0);
+		layout.setEncoding(range, RANGE_BITS, RANGE_SCALE, RANGE_OFFSET);
+
+		keyframeAndDeltas();
+		quantizationBounds();
+		batch();
+		strings();
+
+		System.out.println("MessageCodecTest passed");
+	}
+
+	/**************************************************************************
+	 *
+	 * A keyframe has every value, a delta only the values that changed and
+	 * the decoder keeps the others.
+	 *
+	 *************************************************************************/
+	private static void keyframeAndDeltas()
+	{
+		MessageEncoder encoder = new MessageEncoder(layout);
+		encoder.setProtocol(2, 4);
+		encoder.setTimestamps(true);
+		encoder.setMessageId(MESSAGE_ID);
+		MessageDecoder decoder = new MessageDecoder(layout);
+		ByteBuffer bb = ByteBuffer.allocate(MessageEncoder.MAX_MESSAGE_SIZE);
+
+		long[] values = layout.createValues();
+		set(values, enabled, Boolean.TRUE);
+		set(values, range, Double.valueOf(1.25));
+		set(values, count, Integer.valueOf(-70000));
+		set(values, name, "h\u00e9llo");
+		set(values, heading, Float.valueOf(-0.5f));
+		set(values, pose, new double[] { 1.5, -2.0 });
+		set(values, mode, Short.valueOf((short)-3));
+
+		send(encoder, values, 1000L, bb);
+		check(! MessageDecoder.peekDelta(bb), "the first message is not a keyframe");
+		check(decoder.decode(bb), "keyframe not decoded");
+		check(decoder.getMessageId() == MESSAGE_ID, "wrong message id");
+		check(decoder.getCaptureTime() == 1000L, "wrong capture time");
+		checkValues(values, decoder, "keyframe");
+		checkChanged(decoder, new int[] { enabled, range, count, target, name, heading, pose, mode }, "keyframe");
+
+		// the two packed flags and a string change
+		set(values, enabled, Boolean.FALSE);
+		set(values, target, Boolean.TRUE);
+		set(values, name, "\u03c0");
+		send(encoder, values, 2000L, bb);
+		check(MessageDecoder.peekDelta(bb), "the second message is not a delta");
+		check(decoder.decode(bb), "delta not decoded");
+		checkValues(values, decoder, "delta");
+		checkChanged(decoder, new int[] { enabled, target, name }, "delta");
+
+		// an array gets shorter, a delta of a value after it keeps its place
+		set(values, pose, new double[] { 3.0 });
+		set(values, mode, Short.valueOf((short)12));
+		send(encoder, values, 3000L, bb);
+		check(decoder.decode(bb), "array delta not decoded");
+		checkValues(values, decoder, "array delta");
+		checkChanged(decoder, new int[] { pose, mode }, "array delta");
+
+		// nothing changed
+		send(encoder, values, 4000L, bb);
+		check(decoder.decode(bb), "empty delta not decoded");
+		checkValues(values, decoder, "empty delta");
+		checkChanged(decoder, new int[0], "empty delta");
+
+		// every keyframe_interval messages
+		send(encoder, values, 5000L, bb);
+		check(! MessageDecoder.peekDelta(bb), "no keyframe after keyframe_interval messages");
+		check(decoder.decode(bb), "second keyframe not decoded");
+		checkValues(values, decoder, "second keyframe");
+
+		// a delta that does not fit the layout leaves the values as they were
+		set(values, count, Integer.valueOf(5));
+		send(encoder, values, 6000L, bb);
+		ByteBuffer truncated = bb.duplicate();
+		truncated.limit(truncated.limit() - 1);
+		truncated.putShort(4, (short)truncated.remaining());
+		long[] before = decoder.getValues().clone();
+		check(! decoder.decode(truncated), "a truncated delta was decoded");
+		check(Arrays.equals(before, decoder.getValues()), "a truncated delta changed the values");
+	}
+
+	/**************************************************************************
+	 *
+	 * A quantized value is rounded to its step and limited to its range.
+	 *
+	 *************************************************************************/
+	private static void quantizationBounds()
+	{
+		double max = RANGE_OFFSET + (((1 << RANGE_BITS) - 1) * RANGE_SCALE);
+
+		checkRange(RANGE_OFFSET, RANGE_OFFSET);
+		checkRange(max, max);
+		checkRange(-100.0, RANGE_OFFSET);
+		checkRange(100.0, max);
+		checkRange(1.3, 1.25);
+		checkRange(1.4, 1.5);
+	}
+
+	private static void checkRange(double sent, double expected)
+	{
+		MessageEncoder encoder = new MessageEncoder(layout);
+		encoder.setProtocol(2, 0);
+		MessageDecoder decoder = new MessageDecoder(layout);
+		ByteBuffer bb = ByteBuffer.allocate(MessageEncoder.MAX_MESSAGE_SIZE);
+
+		long[] values = layout.createValues();
+		set(values, range, Double.valueOf(sent));
+		send(encoder, values, 0L, bb);
+		check(decoder.decode(bb), "quantized value not decoded");
+
+		double received = MessageLayout.toDouble(ValueType.DOUBLE, decoder.getValues()[layout.getPosition(range)]);
+		check(received == expected, "range " + sent + " received as " + received + ", not " + expected);
+	}
+
+	/**************************************************************************
+	 *
+	 * A batch message leaves the values and time of its last sample.
+	 *
+	 *************************************************************************/
+	private static void batch()
+	{
+		MessageEncoder encoder = new MessageEncoder(layout);
+		encoder.setProtocol(2, 0);
+		encoder.setMessageId(MESSAGE_ID);
+		MessageDecoder decoder = new MessageDecoder(layout);
+		ByteBuffer bb = ByteBuffer.allocate(MessageEncoder.MAX_MESSAGE_SIZE);
+
+		int samples = 3;
+		long[][] batch = new long[samples][];
+		long[] times = new long[samples];
+		for (int i = 0; i < samples; i++)
+		{
+			batch[i] = layout.createValues();
+			set(batch[i], enabled, Boolean.valueOf(i % 2 == 0));
+			set(batch[i], range, Double.valueOf(-1.0 + i));
+			set(batch[i], count, Integer.valueOf(i * 1000));
+			set(batch[i], target, Boolean.valueOf(i % 2 == 1));
+			set(batch[i], name, "sample " + i);
+			set(batch[i], heading, Float.valueOf(i * 0.5f));
+			set(batch[i], pose, Arrays.copyOf(new double[] { 0.5, 1.5, 2.5 }, i + 1));
+			set(batch[i], mode, Short.valueOf((short)i));
+			times[i] = 10000L + (i * 20000L);
+		}
+
+		bb.clear();
+		encoder.encodeBatch(batch, times, samples, bb);
+		bb.flip();
+		check(decoder.decode(bb), "batch not decoded");
+		check(decoder.getMessageId() == MESSAGE_ID, "wrong batch message id");
+		check(decoder.getCaptureTime() == times[samples - 1], "wrong time of the last sample");
+		checkValues(batch[samples - 1], decoder, "batch");
+	}
+
+	/**************************************************************************
+	 *
+	 * A string is sent as the bytes String.getBytes() gives, a surrogate
+	 * without its pair as '?'.
+	 *
+	 *************************************************************************/
+	private static void strings()
+	{
+		checkString("\u00e9\u03c0\ud83d\ude00", "\u00e9\u03c0\ud83d\ude00");
+		checkString("a\ud800b", "a?b");
+		checkString("a\ude00", "a?");
+		checkString("\ude00\ud83d", "??");
+	}
+
+	private static void checkString(String sent, String expected)
+	{
+		long[] values = layout.createValues();
+		set(values, name, sent);
+
+		int pos = layout.getPosition(name);
+		byte[] bytes = expected.getBytes(StandardCharsets.UTF_8);
+		check(values[pos] == bytes.length, "string of " + bytes.length + " bytes put in " + values[pos]);
+		for (int i = 0; i < bytes.length; i++)
+		{
+			byte b = (byte)(values[pos + 1 + (i >> 3)] >>> (56 - ((i & 7) * 8)));
+			check(b == bytes[i], "byte " + i + " of a string is " + b + ", not " + bytes[i]);
+		}
+		check(Arrays.equals(bytes, sent.getBytes(StandardCharsets.UTF_8)), "a string is not sent as String.getBytes() gives");
+	}
+
+	private static void set(long[] values, int idx, Object value)
+	{
+		if (MessageLayout.isVariable(layout.getType(idx)))
+		{
+			check(! MessageLayout.toData(layout.getType(idx), value, layout.getCapacity(idx), values, layout.getPosition(idx)),
+					"value " + layout.getKey(idx) + " does not fit");
+		}
+		else
+		{
+			values[layout.getPosition(idx)] = MessageLayout.toBits(layout.getType(idx), value);
+		}
+	}
+
+	private static void send(MessageEncoder encoder, long[] values, long capture_time, ByteBuffer bb)
+	{
+		bb.clear();
+		encoder.encode(values, capture_time, bb);
+		bb.flip();
+	}
+
+	private static void checkValues(long[] expected, MessageDecoder decoder, String what)
+	{
+		for (int i = 0; i < layout.getSize(); i++)
+		{
+			Object sent = MessageLayout.toObject(layout.getType(i), expected, layout.getPosition(i));
+			Object received = MessageLayout.toObject(layout.getType(i), decoder.getValues(), layout.getPosition(i));
+
+			boolean same = (sent instanceof double[]) ? Arrays.equals((double[])sent, (double[])received) : sent.equals(received);
+			check(same, what + ": " + layout.getKey(i) + " received as " + toString(received) + ", not " + toString(sent));
+		}
+	}
+
+	private static void checkChanged(MessageDecoder decoder, int[] expected, String what)
+	{
+		boolean[] changed = new boolean[layout.getSize()];
+		for (int idx : expected)
+		{
+			changed[idx] = true;
+		}
+
+		check(Arrays.equals(changed, decoder.getChanged()), what + ": changed " + Arrays.toString(decoder.getChanged()) +
+				", not " + Arrays.toString(changed));
+	}
+
+	private static String toString(Object value)
+	{
+		return (value instanceof double[]) ? Arrays.toString((double[])value) : String.valueOf(value);
+	}
+
+	private static void check(boolean ok, String message)
+	{
+		if (! ok)
+		{
+			System.err.println("MessageCodecTest failed: " + message);
+			System.exit(1);
+		}
+	}
+}
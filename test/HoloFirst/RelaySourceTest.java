@@ -0,0 +1,94 @@
+package HoloFirst;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import HoloFirst.NetTableToSocket.ValueType;
+
+/******************************************************************************
+ *
+ * This test relays a message with a string and a double to a RelaySource
+ * and checks both values reach the store. A string or array takes more
+ * than one long of the slot values, so the values of the decoder and its
+ * slots are not the same length.
+ *
+ * Run it with the Test target of Build.xml, it exits with an error if a
+ * check fails.
+ *
+ *****************************************************************************/
+public class RelaySourceTest
+{
+	private static final long TIMEOUT_NS = 2000000000L;
+
+	public static void main(String[] args) throws Exception
+	{
+		RelayLog.setLevel("warn");
+
+		NetTableToSocket app = new NetTableToSocket();
+		int name_slot = app.addValue("name", ValueType.STRING, "", 16);
+		int range_slot = app.addValue("range", ValueType.DOUBLE, Double.valueOf(-999.0));
+		ValueStore store = app.createStore();
+
+		int port = freePort();
+		RelaySource source = new RelaySource("coproc", app, port, -1);
+		source.addValue(ValueSource.DEFAULT_TABLE, "name", ValueType.STRING, "", 16, name_slot);
+		source.addValue(ValueSource.DEFAULT_TABLE, "range", ValueType.DOUBLE, Double.valueOf(-999.0), 0, range_slot);
+		source.start();
+
+		// what the other relay sends, a message with the same values
+		MessageLayout layout = source.getLayout();
+		long[] values = layout.createValues();
+		MessageLayout.toData(ValueType.STRING, "cube", 16, values, layout.getPosition(0));
+
+		MessageEncoder encoder = new MessageEncoder(layout);
+		ByteBuffer bb = ByteBuffer.allocate(MessageEncoder.MAX_MESSAGE_SIZE);
+		DatagramChannel channel = DatagramChannel.open();
+
+		// the second message is only taken if the first did not stop the source
+		for (int n = 1; n <= 2; n++)
+		{
+			values[layout.getPosition(1)] = MessageLayout.toBits(ValueType.DOUBLE, Double.valueOf(40.0 + n));
+
+			bb.clear();
+			encoder.encode(values, bb);
+			bb.flip();
+			channel.send(bb, new InetSocketAddress("127.0.0.1", port));
+
+			long start = System.nanoTime();
+			while ((store.getUpdateCount(range_slot) < n) && (System.nanoTime() - start < TIMEOUT_NS))
+			{
+				Thread.sleep(1);
+			}
+		}
+		channel.close();
+		source.stop();
+
+		long[] name = new long[layout.getLength(0)];
+		store.read(name_slot, name, 0);
+
+		check(store.getUpdateCount(name_slot) > 0, "the string was not relayed");
+		check("cube".equals(MessageLayout.toObject(ValueType.STRING, name, 0)), "wrong string relayed");
+		check(store.getUpdateCount(range_slot) == 2, "the source stopped after a message with a string");
+		check(MessageLayout.toDouble(ValueType.DOUBLE, store.get(range_slot)) == 42.0, "wrong double relayed");
+
+		System.out.println("RelaySourceTest passed");
+	}
+
+	private static int freePort() throws Exception
+	{
+		DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+		int port = ((InetSocketAddress)channel.getLocalAddress()).getPort();
+		channel.close();
+		return port;
+	}
+
+	private static void check(boolean ok, String message)
+	{
+		if (! ok)
+		{
+			System.err.println("RelaySourceTest failed: " + message);
+			System.exit(1);
+		}
+	}
+}